@@ -0,0 +1,215 @@
+package io.prometheus.cloudwatch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.amazonaws.AmazonServiceException;
+
+import io.prometheus.client.Counter;
+import io.prometheus.cloudwatch.CloudWatchCollector.MetricRule;
+
+/**
+ * Counts CloudWatch API calls by operation, rule and outcome, and estimates what they cost.
+ *
+ * Every call the exporter could have made is recorded as a cache hit, a miss (a billed call), an error or
+ * a throttled call. Billed calls of the last hour are kept per rule in one minute buckets, which with the
+ * configured per-request prices gives the dollar cost per hour of each rule.
+ */
+class ApiAccounting {
+
+    static final String LIST_METRICS = "ListMetrics";
+    static final String GET_METRIC_STATISTICS = "GetMetricStatistics";
+
+    static final String HIT = "hit";
+    static final String MISS = "miss";
+    static final String ERROR = "error";
+    static final String THROTTLED = "throttled";
+
+    private static final String[] OPERATIONS = { LIST_METRICS, GET_METRIC_STATISTICS };
+
+    private static final int WINDOW_MINUTES = 60;
+
+    private static final Counter apiCalls = Counter.build()
+            .name("cloudwatch_exporter_api_calls_total")
+            .labelNames("operation", "aws_namespace", "aws_metric_name", "aws_dimensions", "outcome")
+            .help("CloudWatch API calls by operation, rule and outcome: hit (served from cache), miss, error or throttled.").register();
+
+    /**
+     * Dollars per request, read from the optional api_prices section of the config.
+     * Both operations cost USD 0.01 per 1,000 requests at the time of writing.
+     */
+    static class Prices {
+        double listMetrics = 0.00001;
+        double getMetricStatistics = 0.00001;
+
+        static Prices fromConfig(Map<String, Object> config) {
+            Prices prices = new Prices();
+            if (config == null) {
+                return prices;
+            }
+            if (config.containsKey("list_metrics")) {
+                prices.listMetrics = ((Number) config.get("list_metrics")).doubleValue();
+            }
+            if (config.containsKey("get_metric_statistics")) {
+                prices.getMetricStatistics = ((Number) config.get("get_metric_statistics")).doubleValue();
+            }
+            return prices;
+        }
+
+        double of(int operation) {
+            return operation == 0 ? listMetrics : getMetricStatistics;
+        }
+    }
+
+    /**
+     * Billed calls per minute over the last hour.
+     */
+    private static final class CallWindow {
+        private final long[] counts = new long[WINDOW_MINUTES];
+        private long lastMinute;
+
+        CallWindow(long minute) {
+            lastMinute = minute;
+        }
+
+        synchronized void add(long minute) {
+            advance(minute);
+            counts[(int) (minute % WINDOW_MINUTES)]++;
+        }
+
+        synchronized long total(long minute) {
+            advance(minute);
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            return total;
+        }
+
+        private void advance(long minute) {
+            if (minute <= lastMinute) {
+                return;
+            }
+            for (long m = lastMinute + 1; m <= minute && m <= lastMinute + WINDOW_MINUTES; m++) {
+                counts[(int) (m % WINDOW_MINUTES)] = 0;
+            }
+            lastMinute = minute;
+        }
+    }
+
+    /**
+     * Estimated cost of one rule.
+     */
+    static class RuleCost {
+        final List<String> rule;
+        final double[] callsPerHour = new double[OPERATIONS.length];
+        double dollarsPerHour;
+
+        RuleCost(List<String> rule) {
+            this.rule = rule;
+        }
+    }
+
+    private final long startMinute = currentMinute();
+    private final ConcurrentMap<List<String>, CallWindow[]> windows = new ConcurrentHashMap<List<String>, CallWindow[]>();
+    private volatile Prices prices = new Prices();
+
+    void setPrices(Prices prices) {
+        this.prices = prices;
+    }
+
+    Prices getPrices() {
+        return prices;
+    }
+
+    void record(String operation, MetricRule rule, String outcome) {
+        List<String> ruleLabels = CloudWatchCollector.ruleLabelValues(rule);
+        apiCalls.labels(operation, ruleLabels.get(0), ruleLabels.get(1), ruleLabels.get(2), outcome).inc();
+        if (!outcome.equals(MISS) && !outcome.equals(ERROR)) {
+            return;
+        }
+        CallWindow[] ruleWindows = windows.get(ruleLabels);
+        if (ruleWindows == null) {
+            long minute = currentMinute();
+            ruleWindows = new CallWindow[OPERATIONS.length];
+            for (int i = 0; i < ruleWindows.length; i++) {
+                ruleWindows[i] = new CallWindow(minute);
+            }
+            CallWindow[] existing = windows.putIfAbsent(ruleLabels, ruleWindows);
+            if (existing != null) {
+                ruleWindows = existing;
+            }
+        }
+        ruleWindows[operation.equals(LIST_METRICS) ? 0 : 1].add(currentMinute());
+    }
+
+    /**
+     * Outcome of a failed call: throttled if CloudWatch said so, an error otherwise.
+     */
+    static String failureOutcome(RuntimeException e) {
+        if (e instanceof AmazonServiceException) {
+            AmazonServiceException serviceException = (AmazonServiceException) e;
+            if ("Throttling".equals(serviceException.getErrorCode()) || serviceException.getStatusCode() == 429) {
+                return THROTTLED;
+            }
+        }
+        return ERROR;
+    }
+
+    /**
+     * Estimated cost per rule, most expensive first. Calls are extrapolated to an hour while the exporter
+     * has been up for less than that.
+     */
+    List<RuleCost> costs() {
+        long minute = currentMinute();
+        double hourFactor = (double) WINDOW_MINUTES / Math.min(WINDOW_MINUTES, minute - startMinute + 1);
+        Prices current = prices;
+        List<RuleCost> costs = new ArrayList<RuleCost>();
+        for (Map.Entry<List<String>, CallWindow[]> entry : windows.entrySet()) {
+            RuleCost cost = new RuleCost(entry.getKey());
+            for (int i = 0; i < OPERATIONS.length; i++) {
+                cost.callsPerHour[i] = entry.getValue()[i].total(minute) * hourFactor;
+                cost.dollarsPerHour += cost.callsPerHour[i] * current.of(i);
+            }
+            costs.add(cost);
+        }
+        Collections.sort(costs, new Comparator<RuleCost>() {
+            public int compare(RuleCost a, RuleCost b) {
+                return Double.compare(b.dollarsPerHour, a.dollarsPerHour);
+            }
+        });
+        return costs;
+    }
+
+    /**
+     * Plain text summary for /debug/cost.
+     */
+    String summary() {
+        List<RuleCost> costs = costs();
+        double total = 0;
+        for (RuleCost cost : costs) {
+            total += cost.dollarsPerHour;
+        }
+        Prices current = prices;
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "Estimated CloudWatch API cost: $%.4f per hour, $%.2f per 30 days\n", total, total * 24 * 30));
+        sb.append(String.format(Locale.ROOT, "Prices per request: %s $%s, %s $%s\n\n",
+                LIST_METRICS, current.listMetrics, GET_METRIC_STATISTICS, current.getMetricStatistics));
+        sb.append(String.format(Locale.ROOT, "%12s %12s %20s  %s\n", "$/hour", LIST_METRICS + "/h", GET_METRIC_STATISTICS + "/h", "rule"));
+        for (RuleCost cost : costs) {
+            sb.append(String.format(Locale.ROOT, "%12.4f %12.0f %20.0f  %s %s [%s]\n", cost.dollarsPerHour,
+                    cost.callsPerHour[0], cost.callsPerHour[1], cost.rule.get(0), cost.rule.get(1), cost.rule.get(2)));
+        }
+        return sb.toString();
+    }
+
+    private static long currentMinute() {
+        return System.currentTimeMillis() / 60000;
+    }
+}
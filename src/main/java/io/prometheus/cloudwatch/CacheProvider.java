@@ -1,52 +1,539 @@
 package io.prometheus.cloudwatch;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-import net.sf.ehcache.Cache;
-import net.sf.ehcache.CacheManager;
-import net.sf.ehcache.Element;
-import net.sf.ehcache.config.CacheConfiguration;
-import net.sf.ehcache.statistics.StatisticsGateway;
+import com.amazonaws.services.cloudwatch.model.Dimension;
 
+/**
+ * The exporter's named caches: CloudWatch dimensions and datapoints, resource tags and empty series.
+ *
+ * Each cache is defined once with its time to live and default byte budget, and stored in a
+ * {@link CacheStore} of the configured backend. Values are weighed when they are put, so budgets
+ * hold whatever mix of entries a config produces. Loads through {@link #get(String, String, Loader)}
+ * are shared between concurrent callers of the same key, timed, and, for caches with a refresh
+ * time, redone in the background once an entry is that old while the old value keeps being served.
+ *
+ * With a remote section in the cache config, caches it lists also go through a {@link RemoteCacheTier}
+ * shared with other exporters: loads first look there and take its lock, and stored entries are
+ * written through to it.
+ */
 public class CacheProvider {
+    private static final Logger LOGGER = Logger.getLogger(CloudWatchCollector.class.getName());
 
-    private static CacheManager cm = new CacheManager();
+    /**
+     * Loads the value of a key missing from a cache. A null result is returned but not cached.
+     */
+    public interface Loader {
+        Object load(String key) throws Exception;
+    }
 
-    public static Object getFromCache(String cacheName, String key) {
-        Cache cache = cm.getCache(cacheName);
+    /**
+     * A loader whose values each have their own time to live.
+     */
+    public interface ExpiringLoader extends Loader {
+        int ttlSeconds(Object value);
+    }
+
+    /**
+     * Backends and byte budgets from the optional cache section of the config.
+     */
+    static class Settings {
+        String backend = "in_process";
+        final Map<String, String> backends = new TreeMap<String, String>();
+        final Map<String, Long> maxBytes = new TreeMap<String, Long>();
+        RemoteCacheTier.Settings remote;
+
+        static Settings fromConfig(Map<String, Object> config) {
+            Settings settings = new Settings();
+            if (config == null) {
+                return settings;
+            }
+            if (config.containsKey("backend")) {
+                settings.backend = (String) config.get("backend");
+                if (settings.backend.equals("off_heap")) {
+                    throw new IllegalArgumentException("The off_heap backend can only be set for the es cache, under backends");
+                }
+                factory(settings.backend);
+            }
+            Map<String, Object> backends = (Map<String, Object>) config.get("backends");
+            if (backends != null) {
+                for (Map.Entry<String, Object> backend : backends.entrySet()) {
+                    checkCacheName(backend.getKey(), "backends");
+                    String name = (String) backend.getValue();
+                    if (name.equals("off_heap") && !backend.getKey().equals(CloudWatchCollector.ES_CACHE)) {
+                        throw new IllegalArgumentException("The off_heap backend only holds resource tags, not " + backend.getKey());
+                    }
+                    factory(name);
+                    settings.backends.put(backend.getKey(), name);
+                }
+            }
+            Map<String, Object> sizes = (Map<String, Object>) config.get("max_megabytes");
+            if (sizes != null) {
+                for (Map.Entry<String, Object> size : sizes.entrySet()) {
+                    checkCacheName(size.getKey(), "max_megabytes");
+                    settings.maxBytes.put(size.getKey(), (long) (((Number) size.getValue()).doubleValue() * 1024 * 1024));
+                }
+            }
+            settings.remote = RemoteCacheTier.Settings.fromConfig((Map<String, Object>) config.get("remote"), CACHES.keySet());
+            return settings;
+        }
+
+        private static void checkCacheName(String name, String section) {
+            if (!CACHES.containsKey(name)) {
+                throw new IllegalArgumentException("Unknown cache in " + section + ": " + name + ", known are " + CACHES.keySet());
+            }
+        }
+
+        String backendFor(String cacheName) {
+            String cacheBackend = backends.get(cacheName);
+            return cacheBackend != null ? cacheBackend : backend;
+        }
+
+        private static CacheStore.Factory factory(String backend) {
+            if (backend.equals("in_process")) {
+                return InProcessCacheStore.FACTORY;
+            }
+            if (backend.equals("ehcache")) {
+                return EhcacheStore.FACTORY;
+            }
+            if (backend.equals("off_heap")) {
+                return OffHeapTagStore.FACTORY;
+            }
+            try {
+                return (CacheStore.Factory) Class.forName(backend).newInstance();
+            } catch (Exception e) {
+                throw new IllegalArgumentException("Unknown cache backend " + backend
+                        + ": use in_process, ehcache or a CacheStore.Factory class", e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "backend=" + backend + " backends=" + backends + " max_bytes=" + maxBytes + " remote=" + remote;
+        }
+    }
+
+    /**
+     * Counters of one cache, for the exporter's own metrics.
+     */
+    static class Stats {
+        final String name;
+        final long size;
+        final long weightBytes;
+        final long maxBytes;
+        final long hits;
+        final long misses;
+        final long evictions;
+        final long loads;
+        final double loadSeconds;
+        final long remoteHits;
+        final long remoteMisses;
+        final long remoteErrors;
+        final long lockWaits;
+
+        Stats(NamedCache cache) {
+            CacheStore store = cache.store;
+            this.name = cache.name;
+            this.size = store.size();
+            this.weightBytes = store.weightBytes();
+            this.maxBytes = store.maxBytes();
+            this.hits = cache.hits.get();
+            this.misses = cache.misses.get();
+            this.evictions = cache.evictionsBefore + store.evictions();
+            this.loads = cache.loads.get();
+            this.loadSeconds = cache.loadNanos.get() / 1.0E9;
+            this.remoteHits = cache.remoteHits.get();
+            this.remoteMisses = cache.remoteMisses.get();
+            this.remoteErrors = cache.remoteErrors.get();
+            this.lockWaits = cache.lockWaits.get();
+        }
+
+        double hitRatio() {
+            return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+    }
+
+    private static final class NamedCache {
+        final String name;
+        final int ttlSeconds;
+        final long refreshAfterMillis;
+        final long defaultMaxBytes;
+        volatile CacheStore store;
+        // Evictions of stores replaced by a backend change, so the counter never goes down.
+        volatile long evictionsBefore;
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+        final AtomicLong loads = new AtomicLong();
+        final AtomicLong loadNanos = new AtomicLong();
+        final AtomicLong remoteHits = new AtomicLong();
+        final AtomicLong remoteMisses = new AtomicLong();
+        final AtomicLong remoteErrors = new AtomicLong();
+        final AtomicLong lockWaits = new AtomicLong();
+        final ConcurrentMap<String, FutureTask<Object>> loading = new ConcurrentHashMap<String, FutureTask<Object>>();
+
+        NamedCache(String name, int ttlSeconds, int refreshAfterSeconds, long defaultMaxBytes, CacheStore store) {
+            this.name = name;
+            this.ttlSeconds = ttlSeconds;
+            this.refreshAfterMillis = refreshAfterSeconds * 1000L;
+            this.defaultMaxBytes = defaultMaxBytes;
+            this.store = store;
+        }
+    }
+
+    private static final ConcurrentMap<String, NamedCache> CACHES = new ConcurrentHashMap<String, NamedCache>();
+
+    private static final ExecutorService REFRESH_POOL = Executors.newFixedThreadPool(2, new DaemonThreadFactory("cache-refresh"));
+
+    private static Settings settings = new Settings();
+
+    private static volatile RemoteCacheTier remote;
+
+    /**
+     * Defines a cache. Defining it again keeps the existing one.
+     *
+     * @param refreshAfterSeconds age after which loads through {@link #get(String, String, Loader)} refresh
+     *     an entry in the background, or 0 to only load missing entries
+     */
+    static synchronized void define(String cacheName, int ttlSeconds, int refreshAfterSeconds, long defaultMaxBytes) {
+        if (CACHES.containsKey(cacheName)) {
+            return;
+        }
+        Long maxBytes = settings.maxBytes.get(cacheName);
+        CacheStore store = Settings.factory(settings.backendFor(cacheName)).create(cacheName, maxBytes != null ? maxBytes : defaultMaxBytes);
+        CACHES.put(cacheName, new NamedCache(cacheName, ttlSeconds, refreshAfterSeconds, defaultMaxBytes, store));
+    }
+
+    /**
+     * Applies the backends and byte budgets of a config. A cache whose backend changes starts empty;
+     * changed budgets are applied in place.
+     */
+    static synchronized void configure(Settings updated) {
+        Settings previous = settings;
+        settings = updated;
+        for (NamedCache cache : CACHES.values()) {
+            Long maxBytes = updated.maxBytes.get(cache.name);
+            long budget = maxBytes != null ? maxBytes : cache.defaultMaxBytes;
+            String backend = updated.backendFor(cache.name);
+            if (!backend.equals(previous.backendFor(cache.name))) {
+                CacheStore old = cache.store;
+                cache.evictionsBefore += old.evictions();
+                old.close();
+                cache.store = Settings.factory(backend).create(cache.name, budget);
+                LOGGER.log(Level.INFO, "Cache " + cache.name + " moved to the " + backend + " backend and starts empty");
+            } else if (cache.store.maxBytes() != budget) {
+                cache.store.setMaxBytes(budget);
+            }
+        }
+        if (!String.valueOf(updated.remote).equals(String.valueOf(previous.remote))) {
+            RemoteCacheTier old = remote;
+            remote = updated.remote == null ? null : new RemoteCacheTier(updated.remote);
+            if (old != null) {
+                old.close();
+            }
+            LOGGER.log(Level.INFO, "Remote cache tier: " + updated.remote);
+        }
+    }
+
+    private static NamedCache cache(String cacheName) {
+        NamedCache cache = CACHES.get(cacheName);
         if (cache == null) {
-            cache = initCache(cacheName);
+            throw new IllegalArgumentException("Unknown cache: " + cacheName);
         }
-        Element element = cache.get(key);
-        if (element == null) {
+        return cache;
+    }
+
+    public static Object getFromCache(String cacheName, String key) {
+        NamedCache cache = cache(cacheName);
+        CacheStore.Entry entry = cache.store.get(key);
+        if (entry == null) {
+            cache.misses.incrementAndGet();
             return null;
         }
-        return element.getObjectValue();
+        cache.hits.incrementAndGet();
+        return entry.value;
+    }
+
+    /**
+     * Returns the cached value, loading it if it is missing. Concurrent calls for a missing key share one
+     * load. An entry older than the cache's refresh time is returned and reloaded in the background.
+     * Exceptions thrown by the loader are rethrown, wrapped unless they are runtime exceptions.
+     */
+    public static Object get(String cacheName, final String key, final Loader loader) {
+        return get(cacheName, key, loader, Long.MAX_VALUE);
+    }
+
+    /**
+     * Like {@link #get(String, String, Loader)} for a caller with a deadline: waiting for another exporter
+     * to load the key through the remote tier stops after {@code remainingMillis}, and if the deadline
+     * passed meanwhile null is returned without loading.
+     */
+    public static Object get(String cacheName, final String key, final Loader loader, long remainingMillis) {
+        NamedCache cache = cache(cacheName);
+        CacheStore.Entry entry = cache.store.get(key);
+        if (entry != null) {
+            cache.hits.incrementAndGet();
+            if (cache.refreshAfterMillis > 0 && System.currentTimeMillis() - entry.storedAtMillis >= cache.refreshAfterMillis) {
+                refresh(cache, key, loader);
+            }
+            return entry.value;
+        }
+        cache.misses.incrementAndGet();
+        return awaitLoad(cache, key, loader, remainingMillis);
     }
 
-    public static Cache initCache(String cacheName, int maxEntries, long ttlSeconds) {
-        CacheConfiguration cacheConfiguration = new CacheConfiguration().name(cacheName).maxEntriesLocalHeap(maxEntries).timeToLiveSeconds(ttlSeconds);
-        cm.addCache(new Cache(cacheConfiguration));
-        return cm.getCache(cacheName);
+    /**
+     * Loads a value the caller found missing, unless it was stored meanwhile, and caches it. Like
+     * {@link #get(String, String, Loader)} without counting a second miss, for callers that looked the
+     * key up with {@link #getFromCache(String, String)} and load it on another thread.
+     */
+    public static Object load(String cacheName, String key, Loader loader) {
+        return load(cacheName, key, loader, Long.MAX_VALUE);
     }
 
-    private static Cache initCache(String cacheName) {
-        return initCache(cacheName, 100000, 2000);
+    /**
+     * Like {@link #load(String, String, Loader)} with a deadline, as in {@link #get(String, String, Loader, long)}.
+     */
+    public static Object load(String cacheName, String key, Loader loader, long remainingMillis) {
+        NamedCache cache = cache(cacheName);
+        CacheStore.Entry entry = cache.store.get(key);
+        if (entry != null) {
+            return entry.value;
+        }
+        return awaitLoad(cache, key, loader, remainingMillis);
+    }
+
+    private static Object awaitLoad(NamedCache cache, String key, Loader loader, long remainingMillis) {
+        FutureTask<Object> load = newLoad(cache, key, loader, remainingMillis);
+        FutureTask<Object> running = cache.loading.putIfAbsent(key, load);
+        if (running == null) {
+            running = load;
+            try {
+                load.run();
+            } finally {
+                cache.loading.remove(key, load);
+            }
+        }
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private static void refresh(final NamedCache cache, final String key, Loader loader) {
+        final FutureTask<Object> load = newLoad(cache, key, loader, Long.MAX_VALUE);
+        if (cache.loading.putIfAbsent(key, load) != null) {
+            return;
+        }
+        REFRESH_POOL.execute(new Runnable() {
+            public void run() {
+                try {
+                    load.run();
+                    load.get();
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Refreshing " + key + " in cache " + cache.name + " failed, keeping the old value", e);
+                } finally {
+                    cache.loading.remove(key, load);
+                }
+            }
+        });
+    }
+
+    private static FutureTask<Object> newLoad(final NamedCache cache, final String key, final Loader loader,
+            final long remainingMillis) {
+        return new FutureTask<Object>(new Callable<Object>() {
+            public Object call() throws Exception {
+                RemoteCacheTier tier = remote;
+                if (tier == null || !tier.shares(cache.name) || !tier.isAvailable()) {
+                    return loadAndPut(cache, key, loader);
+                }
+                return loadShared(tier, cache, key, loader, remainingMillis);
+            }
+        });
+    }
+
+    private static Object loadAndPut(NamedCache cache, String key, Loader loader) throws Exception {
+        long start = System.nanoTime();
+        try {
+            Object value = loader.load(key);
+            if (value != null) {
+                put(cache, key, value, loader instanceof ExpiringLoader ? ((ExpiringLoader) loader).ttlSeconds(value) : cache.ttlSeconds);
+            }
+            return value;
+        } finally {
+            cache.loads.incrementAndGet();
+            cache.loadNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Takes a fresh enough entry from the remote tier; otherwise loads under the remote lock of the key,
+     * or waits for the exporter holding it, at most until the caller's deadline. Remote failures fall back
+     * to loading locally; a wait that reaches the deadline returns null without loading.
+     */
+    private static Object loadShared(RemoteCacheTier tier, NamedCache cache, String key, Loader loader, long remainingMillis)
+            throws Exception {
+        long deadline = System.currentTimeMillis() + remainingMillis;
+        if (deadline < 0) {
+            deadline = Long.MAX_VALUE;
+        }
+        String token;
+        try {
+            RemoteCacheTier.Hit hit = tier.get(cache.name, key);
+            if (isFresh(cache, hit)) {
+                return putRemoteHit(cache, key, hit);
+            }
+            token = tier.tryLock(cache.name, key);
+            if (token == null) {
+                cache.lockWaits.incrementAndGet();
+                hit = tier.awaitLoad(cache.name, key, deadline - System.currentTimeMillis());
+                if (isFresh(cache, hit)) {
+                    return putRemoteHit(cache, key, hit);
+                }
+                if (System.currentTimeMillis() >= deadline) {
+                    // Still held when the caller ran out of time: nothing is loaded, the caller treats it as cut short.
+                    return null;
+                }
+            }
+        } catch (IOException e) {
+            cache.remoteErrors.incrementAndGet();
+            return loadAndPut(cache, key, loader);
+        }
+        cache.remoteMisses.incrementAndGet();
+        if (token == null) {
+            // The holder stored nothing, or is taking longer than lock_seconds.
+            return loadAndPut(cache, key, loader);
+        }
+        try {
+            return loadAndPut(cache, key, loader);
+        } finally {
+            try {
+                tier.unlock(cache.name, key, token);
+            } catch (IOException e) {
+                cache.remoteErrors.incrementAndGet();
+            }
+        }
+    }
+
+    private static boolean isFresh(NamedCache cache, RemoteCacheTier.Hit hit) {
+        return hit != null && hit.expiresAtMillis > System.currentTimeMillis()
+                && (cache.refreshAfterMillis == 0 || System.currentTimeMillis() - hit.entry.storedAtMillis < cache.refreshAfterMillis);
+    }
+
+    private static Object putRemoteHit(NamedCache cache, String key, RemoteCacheTier.Hit hit) {
+        cache.remoteHits.incrementAndGet();
+        int ttlSeconds = (int) Math.max((hit.expiresAtMillis - System.currentTimeMillis()) / 1000, 1);
+        cache.store.put(key, hit.entry, estimateBytes(key) + estimateBytes(hit.entry.value) + 32, ttlSeconds);
+        return hit.entry.value;
     }
 
     public static void put(String cacheName, String key, Object element) {
-        Cache cache = cm.getCache(cacheName);
-        if (cache == null) {
-            cache = initCache(cacheName);
+        NamedCache cache = cache(cacheName);
+        put(cache, key, element, cache.ttlSeconds);
+    }
+
+    /**
+     * Puts an entry with its own time to live instead of the cache's.
+     */
+    public static void put(String cacheName, String key, Object element, int ttlSeconds) {
+        put(cache(cacheName), key, element, ttlSeconds);
+    }
+
+    private static void put(NamedCache cache, String key, Object element, int ttlSeconds) {
+        if (element == null) {
+            return;
         }
-        if (element != null) {
-            cache.put(new Element(key, element));
+        CacheStore.Entry entry = new CacheStore.Entry(element, System.currentTimeMillis());
+        cache.store.put(key, entry, estimateBytes(key) + estimateBytes(element) + 32, ttlSeconds);
+        RemoteCacheTier tier = remote;
+        if (tier != null && tier.shares(cache.name) && tier.isAvailable()) {
+            try {
+                tier.put(cache.name, key, entry, ttlSeconds);
+            } catch (IOException e) {
+                cache.remoteErrors.incrementAndGet();
+            }
         }
     }
-    
-    public static StatisticsGateway getStatistics(String cacheName){
-        Cache cache = cm.getCache(cacheName);
-        return cache.getStatistics();
+
+    public static void remove(String cacheName, String key) {
+        cache(cacheName).store.remove(key);
+    }
+
+    /**
+     * Removes every entry whose key starts with the prefix. Walks all keys, so meant for rare events such as reloads.
+     * Only the local store is cleared; remote entries expire on their own, and keys of changed rules differ anyway.
+     */
+    public static int removeByPrefix(String cacheName, String prefix) {
+        return cache(cacheName).store.removeByPrefix(prefix);
+    }
+
+    /**
+     * Empties the local stores. Loads still running are not joined by later callers.
+     */
+    public static void clearAll() {
+        for (NamedCache cache : CACHES.values()) {
+            cache.store.clear();
+            cache.loading.clear();
+        }
+    }
+
+    static List<Stats> stats() {
+        List<Stats> stats = new ArrayList<Stats>();
+        for (NamedCache cache : new TreeMap<String, NamedCache>(CACHES).values()) {
+            stats.add(new Stats(cache));
+        }
+        return stats;
+    }
+
+    /**
+     * Rough heap size of a cached key or value. Strings shared between entries, such as units and the
+     * tag dictionary, are not counted.
+     */
+    static long estimateBytes(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof String) {
+            return 40 + 2L * ((String) value).length();
+        }
+        if (value instanceof SeriesValue) {
+            return ((SeriesValue) value).estimatedBytes();
+        }
+        if (value instanceof ResourceLabels) {
+            return ((ResourceLabels) value).estimatedBytes();
+        }
+        if (value instanceof Dimension) {
+            Dimension dimension = (Dimension) value;
+            return 24 + estimateBytes(dimension.getName()) + estimateBytes(dimension.getValue());
+        }
+        if (value instanceof Collection) {
+            long bytes = 40 + 8L * ((Collection<?>) value).size();
+            for (Object element : (Collection<?>) value) {
+                bytes += estimateBytes(element);
+            }
+            return bytes;
+        }
+        return 64;
     }
 }
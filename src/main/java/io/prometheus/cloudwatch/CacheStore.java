@@ -0,0 +1,77 @@
+package io.prometheus.cloudwatch;
+
+/**
+ * Storage behind one of the exporter's named caches, see {@link CacheProvider}.
+ *
+ * A store keeps entries until their time to live passes or it has to evict them to stay within its
+ * byte budget. Entry weights are estimated by {@link CacheProvider}, which also handles loading,
+ * refreshing and statistics, so a store only stores. Implementations must be thread safe.
+ *
+ * The backend is chosen with <code>cache: backend:</code> in the config, or per cache under
+ * <code>cache: backends:</code>: <code>in_process</code> (the default), <code>ehcache</code>, the name
+ * of a class implementing {@link Factory} with a public no-argument constructor, or for the
+ * <code>es</code> cache only <code>off_heap</code>.
+ */
+public interface CacheStore {
+
+    /**
+     * Creates the store of one named cache.
+     */
+    interface Factory {
+        CacheStore create(String name, long maxBytes);
+    }
+
+    /**
+     * A cached value and when it was stored, so entries can be refreshed by age.
+     */
+    final class Entry {
+        public final Object value;
+        public final long storedAtMillis;
+
+        public Entry(Object value, long storedAtMillis) {
+            this.value = value;
+            this.storedAtMillis = storedAtMillis;
+        }
+    }
+
+    /**
+     * Returns the entry, or null if there is none or it expired.
+     */
+    Entry get(String key);
+
+    /**
+     * @param weightBytes estimated heap size of the key and value
+     * @param ttlSeconds time to live, at least one second
+     */
+    void put(String key, Entry entry, long weightBytes, int ttlSeconds);
+
+    void remove(String key);
+
+    /**
+     * Removes every entry whose key starts with the prefix and returns how many there were.
+     */
+    int removeByPrefix(String prefix);
+
+    void clear();
+
+    void setMaxBytes(long maxBytes);
+
+    long maxBytes();
+
+    long size();
+
+    /**
+     * Estimated bytes held in this process, on the heap or in whatever memory the store keeps entries in.
+     */
+    long weightBytes();
+
+    /**
+     * Entries removed to stay within the byte budget since the store was created.
+     */
+    long evictions();
+
+    /**
+     * Releases the store's resources; it is not used afterwards.
+     */
+    void close();
+}
@@ -0,0 +1,160 @@
+package io.prometheus.cloudwatch;
+
+/**
+ * Count based circuit breaker.
+ *
+ * While closed, the outcome of the last {@code windowSize} calls is kept. Once at least
+ * {@code minimumCalls} have been seen, the breaker opens when the share of failed calls or of calls
+ * slower than {@code slowCallNanos} reaches its threshold. While open every call is rejected. After
+ * {@code openNanos} the breaker goes half-open and lets {@code halfOpenProbes} calls through: if they
+ * all succeed it closes again, the first failure opens it again.
+ */
+class CircuitBreaker {
+
+    enum State {
+        CLOSED, HALF_OPEN, OPEN
+    }
+
+    interface Listener {
+        void onTransition(State from, State to);
+    }
+
+    private final int windowSize;
+    private final int minimumCalls;
+    private final double failureRateThreshold;
+    private final long slowCallNanos;
+    private final double slowCallRateThreshold;
+    private final long openNanos;
+    private final int halfOpenProbes;
+    private final Listener listener;
+
+    private final boolean[] failed;
+    private final boolean[] slow;
+    private int next;
+    private int recorded;
+    private int failures;
+    private int slowCalls;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private int probesStarted;
+    private int probesSucceeded;
+
+    CircuitBreaker(int windowSize, int minimumCalls, double failureRateThreshold, long slowCallNanos,
+            double slowCallRateThreshold, long openNanos, int halfOpenProbes, Listener listener) {
+        if (windowSize < 1 || minimumCalls < 1 || minimumCalls > windowSize || halfOpenProbes < 1) {
+            throw new IllegalArgumentException("Invalid circuit breaker settings");
+        }
+        this.windowSize = windowSize;
+        this.minimumCalls = minimumCalls;
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallNanos = slowCallNanos;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.openNanos = openNanos;
+        this.halfOpenProbes = halfOpenProbes;
+        this.listener = listener;
+        this.failed = new boolean[windowSize];
+        this.slow = new boolean[windowSize];
+    }
+
+    /**
+     * Whether a call may go ahead. Every permitted call must be followed by {@link #onSuccess} or {@link #onFailure}.
+     */
+    synchronized boolean tryAcquire() {
+        if (state == State.OPEN) {
+            if (nanoTime() - openedAt < openNanos) {
+                return false;
+            }
+            transitionTo(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (probesStarted >= halfOpenProbes) {
+                return false;
+            }
+            probesStarted++;
+        }
+        return true;
+    }
+
+    synchronized void onSuccess(long durationNanos) {
+        if (state == State.HALF_OPEN) {
+            if (durationNanos >= slowCallNanos) {
+                transitionTo(State.OPEN);
+            } else if (++probesSucceeded >= halfOpenProbes) {
+                transitionTo(State.CLOSED);
+            }
+            return;
+        }
+        if (state == State.CLOSED) {
+            record(false, durationNanos >= slowCallNanos);
+        }
+    }
+
+    synchronized void onFailure(long durationNanos) {
+        if (state == State.HALF_OPEN) {
+            transitionTo(State.OPEN);
+            return;
+        }
+        if (state == State.CLOSED) {
+            record(true, durationNanos >= slowCallNanos);
+        }
+    }
+
+    /**
+     * Gives back a permit whose call never ran for reasons unrelated to the service, without an outcome.
+     */
+    synchronized void onCancel() {
+        if (state == State.HALF_OPEN && probesStarted > 0) {
+            probesStarted--;
+        }
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    /* Overridden in tests. */
+    long nanoTime() {
+        return System.nanoTime();
+    }
+
+    private void record(boolean isFailure, boolean isSlow) {
+        if (recorded == windowSize) {
+            failures -= failed[next] ? 1 : 0;
+            slowCalls -= slow[next] ? 1 : 0;
+        } else {
+            recorded++;
+        }
+        failed[next] = isFailure;
+        slow[next] = isSlow;
+        failures += isFailure ? 1 : 0;
+        slowCalls += isSlow ? 1 : 0;
+        next = (next + 1) % windowSize;
+
+        if (recorded >= minimumCalls
+                && ((double) failures / recorded >= failureRateThreshold || (double) slowCalls / recorded >= slowCallRateThreshold)) {
+            transitionTo(State.OPEN);
+        }
+    }
+
+    private void transitionTo(State to) {
+        State from = state;
+        state = to;
+        if (to == State.OPEN) {
+            openedAt = nanoTime();
+        }
+        if (to == State.HALF_OPEN) {
+            probesStarted = 0;
+            probesSucceeded = 0;
+        }
+        if (to == State.CLOSED) {
+            next = 0;
+            recorded = 0;
+            failures = 0;
+            slowCalls = 0;
+        }
+        if (listener != null) {
+            listener.onTransition(from, to);
+        }
+    }
+}
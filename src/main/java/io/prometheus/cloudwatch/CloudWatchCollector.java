@@ -2,6 +2,7 @@ package io.prometheus.cloudwatch;
 
 import io.prometheus.client.Collector;
 import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
 
 import java.io.FileReader;
 import java.io.IOException;
@@ -11,17 +12,30 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
 import org.yaml.snakeyaml.Yaml;
 
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
 import com.amazonaws.auth.STSAssumeRoleSessionCredentialsProvider;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.RegionUtils;
@@ -41,18 +55,169 @@ public class CloudWatchCollector extends Collector {
 
     private static final String DIMENSIONS_CACHE = "dimensions";
 
-    private static final String ES_CACHE = "es";
+    static final String ES_CACHE = "es";
+
+    static final int ES_TTL_SECONDS = 6 * 3600;
+
+    private static final String EMPTY_SERIES_CACHE = "empty_series";
+
+    private static final String INVENTORY_CACHE = "inventory";
 
     private static final Logger LOGGER = Logger.getLogger(CloudWatchCollector.class.getName());
 
-    static class ActiveConfig implements Cloneable {
-        ArrayList<MetricRule> rules;
-        AmazonCloudWatchClient client;
-        Map<String, ResourceMapping> mappings;
+    /**
+     * The CloudWatch client of a config with the size of its connection pool. Configs that keep region and
+     * role_arn and fit their namespaces' requests in the pool share it; a client the collector built is shut
+     * down once the last config holding it is closed.
+     */
+    static final class SharedClient {
+        final AmazonCloudWatchClient client;
+        final int maxConnections;
+        private final boolean owned;
+        private int holders;
+
+        SharedClient(AmazonCloudWatchClient client, int maxConnections, boolean owned) {
+            this.client = client;
+            this.maxConnections = maxConnections;
+            this.owned = owned;
+        }
+
+        synchronized void retain() {
+            holders++;
+        }
+
+        void release() {
+            synchronized (this) {
+                if (--holders > 0) {
+                    return;
+                }
+            }
+            if (owned) {
+                client.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Immutable snapshot of the configuration. A reload builds a new snapshot and publishes it in one
+     * step, so a scrape sees either the old or the new configuration and never a mix of both.
+     *
+     * Scrapes hold the snapshot they started with, so resources a reload replaced, such as the pool of a
+     * namespace whose limits changed or the tag lookup pool, are closed only after the last scrape using them is done.
+     */
+    static class ActiveConfig {
+        final List<MetricRule> rules;
+        final AmazonCloudWatchClient client;
+        final SharedClient sharedClient;
+        final Map<String, ResourceMapping> mappings;
+        final String region;
+        final String roleArn;
+        final double scrapeTimeoutSeconds;
+        final double scrapeTimeoutOffsetSeconds;
+        final TagLookup tagLookup;
+        final int maxRequestsInFlight;
+        // By NamespaceBulkhead.key, as are rulesByNamespace.
+        final Map<String, NamespaceBulkhead> bulkheads;
+        final Map<String, List<MetricRule>> rulesByNamespace;
+        final RemoteWriter remoteWriter;
+        final int maxSeries;
+        final ApiAccounting.Prices apiPrices;
+        final int emptySeriesBackoffMaxSeconds;
+        final CacheProvider.Settings cacheSettings;
+        private int scrapes;
+        private boolean retired;
+
+        ActiveConfig(List<MetricRule> rules, SharedClient sharedClient, Map<String, ResourceMapping> mappings, String region, String roleArn,
+                double scrapeTimeoutSeconds, double scrapeTimeoutOffsetSeconds, TagLookup tagLookup, int maxRequestsInFlight,
+                Map<String, NamespaceBulkhead> bulkheads, RemoteWriter remoteWriter, int maxSeries, ApiAccounting.Prices apiPrices, int emptySeriesBackoffMaxSeconds,
+                CacheProvider.Settings cacheSettings) {
+            this.rules = Collections.unmodifiableList(rules);
+            this.client = sharedClient.client;
+            this.sharedClient = sharedClient;
+            sharedClient.retain();
+            this.mappings = Collections.unmodifiableMap(mappings);
+            this.region = region;
+            this.roleArn = roleArn;
+            this.scrapeTimeoutSeconds = scrapeTimeoutSeconds;
+            this.scrapeTimeoutOffsetSeconds = scrapeTimeoutOffsetSeconds;
+            this.tagLookup = tagLookup;
+            tagLookup.retain();
+            this.maxRequestsInFlight = maxRequestsInFlight;
+            this.bulkheads = Collections.unmodifiableMap(bulkheads);
+            for (NamespaceBulkhead bulkhead : bulkheads.values()) {
+                bulkhead.retain();
+            }
+            Map<String, List<MetricRule>> rulesByNamespace = new HashMap<String, List<MetricRule>>();
+            for (MetricRule rule : rules) {
+                String key = NamespaceBulkhead.key(rule.awsNamespace);
+                if (!rulesByNamespace.containsKey(key)) {
+                    rulesByNamespace.put(key, new ArrayList<MetricRule>());
+                }
+                rulesByNamespace.get(key).add(rule);
+            }
+            this.rulesByNamespace = Collections.unmodifiableMap(rulesByNamespace);
+            this.remoteWriter = remoteWriter;
+            this.maxSeries = maxSeries;
+            this.apiPrices = apiPrices;
+            this.emptySeriesBackoffMaxSeconds = emptySeriesBackoffMaxSeconds;
+            this.cacheSettings = cacheSettings;
+        }
+
+        /**
+         * The rules of a namespace in config order, matched case-insensitively, or all rules for null.
+         */
+        List<MetricRule> rules(String namespace) {
+            if (namespace == null) {
+                return rules;
+            }
+            List<MetricRule> namespaceRules = rulesByNamespace.get(NamespaceBulkhead.key(namespace));
+            return namespaceRules == null ? Collections.<MetricRule>emptyList() : namespaceRules;
+        }
+
+        NamespaceBulkhead bulkhead(MetricRule rule) {
+            return bulkheads.get(NamespaceBulkhead.key(rule.awsNamespace));
+        }
 
-        @Override
-        public Object clone() throws CloneNotSupportedException {
-            return super.clone();
+        /**
+         * Registers a scrape using this config. Returns false if the config was retired meanwhile, in which case
+         * the scrape should take the newly published one.
+         */
+        synchronized boolean startScrape() {
+            if (retired) {
+                return false;
+            }
+            scrapes++;
+            return true;
+        }
+
+        void endScrape() {
+            synchronized (this) {
+                if (--scrapes > 0 || !retired) {
+                    return;
+                }
+            }
+            close();
+        }
+
+        /**
+         * Called once a newer config is published: closes what this config holds as soon as no scrape uses it.
+         */
+        void retire() {
+            synchronized (this) {
+                retired = true;
+                if (scrapes > 0) {
+                    return;
+                }
+            }
+            close();
+        }
+
+        private void close() {
+            for (NamespaceBulkhead bulkhead : bulkheads.values()) {
+                bulkhead.release();
+            }
+            tagLookup.release();
+            sharedClient.release();
         }
     }
     
@@ -62,6 +227,9 @@ public class CloudWatchCollector extends Collector {
     	String esResourceIDField;
     	String lookupURL;
     	List<String> additionalLabels;
+    	// Discover dimension sets of id_field from the inventory instead of ListMetrics.
+    	boolean inventoryDiscovery;
+    	int inventoryVerifyHours;
     }
     
     static class MetricRule {
@@ -76,19 +244,60 @@ public class CloudWatchCollector extends Collector {
       Map<String,List<String>> awsDimensionSelect;
       Map<String,List<String>> awsDimensionSelectRegex;
       String help;
+      Map<String,List<String>> tagSelect;
+      int maxSeries;
+      String rankByMetricName;
+      String rankByStatistic;
+      // The rule whose cached datapoints rank_by reads, resolved when the config is loaded.
+      MetricRule rankRule;
+      // Statistics requested for this rule's series, shared with rules that differ from it only in statistics.
+      List<String> fetchStatistics;
+      List<String> fetchExtendedStatistics;
+      LabelSchema labelSchema;
+      Rollup.Settings rollup;
     }
 
-    ActiveConfig activeConfig = new ActiveConfig();
+    volatile ActiveConfig activeConfig;
+
+    final ApiAccounting apiAccounting = new ApiAccounting();
+
+    static final int DIMENSIONS_TTL_SECONDS = 4 * 3600;
+
+    /** Shortest time a datapoint is cached, and how long one is cached when its next period is overdue. */
+    static final int METRICS_TTL_SECONDS = 2 * 60;
 
     static{
-        CacheProvider.initCache(ES_CACHE, 100000, 6 * 3600); // 6 hours
-        CacheProvider.initCache(DIMENSIONS_CACHE, 500, 4 * 3600); // 4 hours
-        CacheProvider.initCache(METRICS_CACHE, 1000000, 2 * 60); // 2 minutes
+        long megabyte = 1024 * 1024;
+        CacheProvider.define(ES_CACHE, ES_TTL_SECONDS, 0, 64 * megabyte);
+        // Dimensions are relisted in the background an hour before they expire, so discovery rarely blocks a scrape.
+        CacheProvider.define(DIMENSIONS_CACHE, DIMENSIONS_TTL_SECONDS, DIMENSIONS_TTL_SECONDS - 3600, 32 * megabyte);
+        CacheProvider.define(METRICS_CACHE, METRICS_TTL_SECONDS, 0, 128 * megabyte);
+        CacheProvider.define(EMPTY_SERIES_CACHE, 24 * 3600, 0, 16 * megabyte); // 1 day
+        CacheProvider.define(INVENTORY_CACHE, DIMENSIONS_TTL_SECONDS, DIMENSIONS_TTL_SECONDS - 3600, 16 * megabyte);
     }
     
+    // CloudWatch names of the statistics in SeriesValue bit order.
+    private static final List<String> STANDARD_STATISTICS = Arrays.asList("Sum", "SampleCount", "Minimum", "Maximum", "Average");
+
+    static final List<String> RULE_LABEL_NAMES = Arrays.asList("aws_namespace", "aws_metric_name", "aws_dimensions");
+
     private static final Counter cloudwatchRequests = Counter.build()
       .name("cloudwatch_requests_total").help("API requests made to CloudWatch").register();
 
+    private static final Gauge inventoryMismatch = Gauge.build()
+      .name("cloudwatch_exporter_inventory_discovery_mismatch")
+      .labelNames("aws_namespace", "aws_metric_name", "aws_dimensions", "kind")
+      .help("Dimension sets found by the last ListMetrics verification of inventory discovery: kind missing were listed"
+          + " by ListMetrics but not the inventory, kind extra the other way round.").register();
+
+    /* Replaced in unit tests. */
+    ResourceInventory.Source inventorySource = ResourceInventory.ES_SOURCE;
+    /* Replaced in unit tests, taking effect on the next config load. */
+    TagLookup.Source tagSource = TagLookup.ES_SOURCE;
+
+    // When ListMetrics last verified the inventory discovery of a rule, by dimensions cache key.
+    private final ConcurrentMap<String, Long> inventoryVerifiedAt = new ConcurrentHashMap<String, Long>();
+
     private static final List<String> brokenDynamoMetrics = Arrays.asList(
             "ConsumedReadCapacityUnits", "ConsumedWriteCapacityUnits",
             "ProvisionedReadCapacityUnits", "ProvisionedWriteCapacityUnits",
@@ -110,16 +319,52 @@ public class CloudWatchCollector extends Collector {
         loadConfig(config, client);
     }
 
-    protected void reloadConfig() throws IOException {
+    /**
+     * Rereads the config file, publishes it and drops the cache entries of rules and mappings it changed.
+     * The AWS client is kept unless the region or role changed, or the namespaces need a larger connection pool.
+     */
+    protected synchronized ConfigDiff reloadConfig() throws IOException {
         LOGGER.log(Level.INFO, "Reloading configuration");
 
-        loadConfig(new FileReader(WebServer.configFilePath), activeConfig.client);
+        Reader in = new FileReader(WebServer.configFilePath);
+        try {
+            ConfigDiff diff = loadConfig(in, null);
+            LOGGER.log(Level.INFO, "Configuration reloaded: " + diff);
+            return diff;
+        } finally {
+            in.close();
+        }
+    }
+
+    protected ConfigDiff loadConfig(Reader in, AmazonCloudWatchClient client) throws IOException {
+        return loadConfig((Map<String, Object>)new Yaml().load(in), client);
     }
 
-    protected void loadConfig(Reader in, AmazonCloudWatchClient client) throws IOException {
-        loadConfig((Map<String, Object>)new Yaml().load(in), client);
+    private ConfigDiff loadConfig(Map<String, Object> config, AmazonCloudWatchClient client) {
+        ActiveConfig previous = activeConfig;
+        ActiveConfig updated = parseConfig(config, client, previous);
+        activeConfig = updated;
+        apiAccounting.setPrices(updated.apiPrices);
+        CacheProvider.configure(updated.cacheSettings);
+        if (previous == null || previous.tagLookup != updated.tagLookup) {
+            updated.tagLookup.start();
+        }
+        if (updated.remoteWriter != null && (previous == null || previous.remoteWriter != updated.remoteWriter)) {
+            updated.remoteWriter.start(this);
+        }
+        if (previous == null) {
+            return new ConfigDiff();
+        }
+        if (previous.remoteWriter != null && previous.remoteWriter != updated.remoteWriter) {
+            previous.remoteWriter.shutdown();
+        }
+        previous.retire();
+        ConfigDiff diff = ConfigDiff.between(previous, updated);
+        invalidateCaches(diff, updated);
+        return diff;
     }
-    private void loadConfig(Map<String, Object> config, AmazonCloudWatchClient client) {
+
+    private ActiveConfig parseConfig(Map<String, Object> config, AmazonCloudWatchClient client, ActiveConfig previous) {
 
         if(config == null) {  // Yaml config empty, set config to empty map.
             config = new HashMap<String, Object>();
@@ -140,19 +385,35 @@ public class CloudWatchCollector extends Collector {
         if (config.containsKey("delay_seconds")) {
           defaultDelay = ((Number)config.get("delay_seconds")).intValue();
         }
+        double scrapeTimeout = 0;
+        if (config.containsKey("scrape_timeout_seconds")) {
+          scrapeTimeout = ((Number)config.get("scrape_timeout_seconds")).doubleValue();
+        }
+        double scrapeTimeoutOffset = 0.5;
+        if (config.containsKey("scrape_timeout_offset_seconds")) {
+          scrapeTimeoutOffset = ((Number)config.get("scrape_timeout_offset_seconds")).doubleValue();
+        }
 
-        if (client == null) {
-          if (config.containsKey("role_arn")) {
-            STSAssumeRoleSessionCredentialsProvider credentialsProvider = new STSAssumeRoleSessionCredentialsProvider(
-              (String) config.get("role_arn"),
-              "cloudwatch_exporter"
-            );
-            client = new AmazonCloudWatchClient(credentialsProvider);
-          } else {
-            client = new AmazonCloudWatchClient();
+        int maxSeries = 0;
+        if (config.containsKey("max_series")) {
+          maxSeries = ((Number)config.get("max_series")).intValue();
+        }
+
+        int emptySeriesBackoffMax = 3600;
+        if (config.containsKey("empty_series_backoff_max_seconds")) {
+          emptySeriesBackoffMax = ((Number)config.get("empty_series_backoff_max_seconds")).intValue();
+        }
+
+        int maxRequestsInFlight = 10;
+        if (config.containsKey("max_requests_in_flight")) {
+          maxRequestsInFlight = ((Number)config.get("max_requests_in_flight")).intValue();
+          if (maxRequestsInFlight < 1) {
+            throw new IllegalArgumentException("max_requests_in_flight must be at least 1");
           }
-          Region region = RegionUtils.getRegion((String) config.get("region"));
-          client.setEndpoint(getMonitoringEndpoint(region));
+        }
+        double maxRequestsPerSecond = 0;
+        if (config.containsKey("max_requests_per_second")) {
+          maxRequestsPerSecond = ((Number)config.get("max_requests_per_second")).doubleValue();
         }
 
         if (!config.containsKey("metrics")) {
@@ -179,6 +440,13 @@ public class CloudWatchCollector extends Collector {
 			  } else {
 				  mapping.esResourceIDField = mapping.resourceIDField;
 			  }
+              String discovery = yamlResourceMapping.containsKey("discovery") ? (String) yamlResourceMapping.get("discovery") : "list_metrics";
+              if (!discovery.equals("list_metrics") && !discovery.equals("inventory")) {
+                  throw new IllegalArgumentException("discovery of " + mapping.resourceType + " must be list_metrics or inventory");
+              }
+              mapping.inventoryDiscovery = discovery.equals("inventory");
+              mapping.inventoryVerifyHours = yamlResourceMapping.containsKey("discovery_verify_hours")
+                  ? ((Number) yamlResourceMapping.get("discovery_verify_hours")).intValue() : 24;
 
               mappings.put(mapping.resourceType, mapping);
             }
@@ -233,16 +501,198 @@ public class CloudWatchCollector extends Collector {
           } else {
             rule.delaySeconds = defaultDelay;
           }
+          if (yamlMetricRule.containsKey("tag_select")) {
+            if (!mappings.containsKey(rule.awsNamespace)) {
+              throw new IllegalArgumentException("tag_select needs a mapping for " + rule.awsNamespace);
+            }
+            // Matched against tag label names, which are sanitized the same way.
+            rule.tagSelect = new HashMap<String, List<String>>();
+            for (Map.Entry<String, List<String>> entry : ((Map<String, List<String>>)yamlMetricRule.get("tag_select")).entrySet()) {
+              rule.tagSelect.put(safeName(toSnakeCase(entry.getKey())), entry.getValue());
+            }
+          }
+          ResourceMapping ruleMapping = mappings.get(rule.awsNamespace);
+          rule.rollup = Rollup.Settings.fromConfig(yamlMetricRule, rule.awsDimensions, rule.awsExtendedStatistics,
+              ruleMapping == null ? null : ruleMapping.resourceIDField);
+          if (yamlMetricRule.containsKey("max_series")) {
+            rule.maxSeries = ((Number)yamlMetricRule.get("max_series")).intValue();
+          }
+          if (yamlMetricRule.containsKey("rank_by")) {
+            Map<String, Object> rankBy = (Map<String, Object>)yamlMetricRule.get("rank_by");
+            if (!rankBy.containsKey("aws_metric_name")) {
+              throw new IllegalArgumentException("rank_by must provide aws_metric_name");
+            }
+            rule.rankByMetricName = (String)rankBy.get("aws_metric_name");
+            rule.rankByStatistic = rankBy.containsKey("aws_statistic") ? (String)rankBy.get("aws_statistic") : "Sum";
+          }
+        }
+        mergeFetches(rules);
+        for (MetricRule rule : rules) {
+          if (rule.rankByMetricName != null) {
+            rule.rankRule = rankingRule(rules, rule);
+          }
+          ResourceMapping mapping = mappings.get(rule.awsNamespace);
+          rule.labelSchema = new LabelSchema(rule.awsNamespace, rule.awsDimensions, mapping == null ? null : mapping.resourceIDField);
+        }
+
+        // One bulkhead per namespace with rules, kept across reloads that leave its limits alone.
+        Set<String> namespaces = new LinkedHashSet<String>();
+        for (MetricRule rule : rules) {
+          namespaces.add(rule.awsNamespace);
+        }
+        Map<String, NamespaceBulkhead.Settings> bulkheadSettings = NamespaceBulkhead.fromConfig(
+            (Map<String, Map<String, Object>>) config.get("namespaces"), namespaces, maxRequestsInFlight, maxRequestsPerSecond);
+        Map<String, NamespaceBulkhead> bulkheads = new LinkedHashMap<String, NamespaceBulkhead>();
+        int connections = 0;
+        for (String namespace : namespaces) {
+          String key = NamespaceBulkhead.key(namespace);
+          if (bulkheads.containsKey(key)) {
+            continue;
+          }
+          NamespaceBulkhead.Settings settings = bulkheadSettings.get(key);
+          NamespaceBulkhead bulkhead = previous == null ? null : previous.bulkheads.get(key);
+          if (bulkhead == null || !bulkhead.settings.toString().equals(settings.toString())) {
+            bulkhead = new NamespaceBulkhead(namespace, settings);
+          }
+          bulkheads.put(key, bulkhead);
+          connections += settings.maxRequestsInFlight;
         }
 
-        loadConfig(mappings, rules, client);
+        String region = (String) config.get("region");
+        String roleArn = (String) config.get("role_arn");
+        SharedClient sharedClient = null;
+        if (client != null) {
+          // Supplied by the caller, who sized it and shuts it down.
+          sharedClient = previous != null && previous.client == client ? previous.sharedClient
+              : new SharedClient(client, Integer.MAX_VALUE, false);
+        } else if (previous != null && region.equals(previous.region)
+                && (roleArn == null ? previous.roleArn == null : roleArn.equals(previous.roleArn))
+                && connections <= previous.sharedClient.maxConnections) {
+          // Namespaces added or removed: the pool only needs to fit their requests.
+          sharedClient = previous.sharedClient;
+        } else {
+          int maxConnections = Math.max(ClientConfiguration.DEFAULT_MAX_CONNECTIONS, connections);
+          ClientConfiguration clientConfiguration = new ClientConfiguration()
+              .withMaxConnections(maxConnections);
+          if (config.containsKey("role_arn")) {
+            STSAssumeRoleSessionCredentialsProvider credentialsProvider = new STSAssumeRoleSessionCredentialsProvider(
+              (String) config.get("role_arn"),
+              "cloudwatch_exporter"
+            );
+            client = new AmazonCloudWatchClient(credentialsProvider, clientConfiguration);
+          } else {
+            client = new AmazonCloudWatchClient(new DefaultAWSCredentialsProviderChain(), clientConfiguration);
+          }
+          client.setEndpoint(getMonitoringEndpoint(RegionUtils.getRegion(region)));
+          sharedClient = new SharedClient(client, maxConnections, true);
+        }
+
+        TagLookup.Settings tagLookupSettings = TagLookup.Settings.fromConfig((Map<String, Object>) config.get("tag_lookup"));
+        TagLookup tagLookup;
+        if (previous != null && previous.tagLookup.source == tagSource
+                && previous.tagLookup.settings.toString().equals(tagLookupSettings.toString())) {
+            tagLookup = previous.tagLookup;
+        } else {
+            tagLookup = new TagLookup(tagLookupSettings, tagSource);
+        }
+
+        RemoteWriter.Settings remoteWriteSettings = RemoteWriter.Settings.fromConfig((Map<String, Object>) config.get("remote_write"));
+        RemoteWriter remoteWriter = null;
+        if (remoteWriteSettings != null) {
+          if (previous != null && previous.remoteWriter != null
+              && previous.remoteWriter.settings.toString().equals(remoteWriteSettings.toString())) {
+            remoteWriter = previous.remoteWriter;
+          } else {
+            remoteWriter = new RemoteWriter(remoteWriteSettings);
+          }
+        }
+
+        return new ActiveConfig(rules, sharedClient, mappings, region, roleArn, scrapeTimeout, scrapeTimeoutOffset, tagLookup,
+            maxRequestsInFlight, bulkheads, remoteWriter, maxSeries,
+            ApiAccounting.Prices.fromConfig((Map<String, Object>) config.get("api_prices")), emptySeriesBackoffMax,
+            CacheProvider.Settings.fromConfig((Map<String, Object>) config.get("cache")));
     }
 
-    private void loadConfig(Map<String, ResourceMapping> mappings, ArrayList<MetricRule> rules, AmazonCloudWatchClient client) {
-        synchronized (activeConfig) {
-            activeConfig.client = client;
-            activeConfig.rules = rules;
-            activeConfig.mappings = mappings;
+    /**
+     * Plans rules that request the same series, differing only in aws_statistics or aws_extended_statistics,
+     * to fetch it once: each of them requests the union of their statistics under the same cache key, so
+     * whichever rule fetches a series first serves the others, and each rule keeps only its own statistics.
+     */
+    static void mergeFetches(List<MetricRule> rules) {
+      Map<String, List<MetricRule>> groups = new LinkedHashMap<String, List<MetricRule>>();
+      for (MetricRule rule : rules) {
+        String group = fetchGroup(rule);
+        if (!groups.containsKey(group)) {
+          groups.put(group, new ArrayList<MetricRule>());
+        }
+        groups.get(group).add(rule);
+      }
+      for (List<MetricRule> group : groups.values()) {
+        Set<String> statistics = new LinkedHashSet<String>();
+        Set<String> extendedStatistics = new LinkedHashSet<String>();
+        for (MetricRule rule : group) {
+          if (rule.awsStatistics != null) {
+            statistics.addAll(rule.awsStatistics);
+          }
+          if (rule.awsExtendedStatistics != null) {
+            extendedStatistics.addAll(rule.awsExtendedStatistics);
+          }
+        }
+        for (MetricRule rule : group) {
+          // Aggregated averages are weighted by sample count.
+          if (rule.rollup != null && statistics.contains("Average")) {
+            statistics.add("SampleCount");
+          }
+        }
+        for (MetricRule rule : group) {
+          rule.fetchStatistics = statistics.isEmpty() ? null : new ArrayList<String>(statistics);
+          rule.fetchExtendedStatistics = extendedStatistics.isEmpty() ? null : new ArrayList<String>(extendedStatistics);
+        }
+        if (group.size() > 1) {
+          LOGGER.log(Level.INFO, group.size() + " rules for " + group.get(0).awsNamespace + " " + group.get(0).awsMetricName
+              + " " + group.get(0).awsDimensions + " share requests for " + statistics + " " + extendedStatistics);
+        }
+      }
+    }
+
+    /**
+     * Everything that determines a rule's GetMetricStatistics requests except the statistics.
+     */
+    static String fetchGroup(MetricRule rule) {
+      return rule.awsNamespace + "#" + rule.awsMetricName + "#" + rule.awsDimensions + "#" + rule.periodSeconds
+          + "#" + rule.rangeSeconds + "#" + rule.delaySeconds;
+    }
+
+    /**
+     * Drops cached dimensions and datapoints of removed or changed rules, and cached tags of changed mappings.
+     * Entries of unchanged rules are kept, as are those under a key some rule of the new config still uses,
+     * such as a rule merged into the same fetch as a removed one.
+     */
+    private void invalidateCaches(ConfigDiff diff, ActiveConfig updated) {
+        Set<String> liveDimensions = new HashSet<String>();
+        Set<String> liveDatapoints = new HashSet<String>();
+        for (MetricRule rule : updated.rules) {
+            liveDimensions.add(dimensionsKey(rule));
+            liveDatapoints.add(datapointKeyPrefix(rule));
+        }
+        List<MetricRule> stale = new ArrayList<MetricRule>(diff.removedRules);
+        stale.addAll(diff.changedRules);
+        for (MetricRule rule : stale) {
+            String dimensionsKey = dimensionsKey(rule);
+            if (!liveDimensions.contains(dimensionsKey)) {
+                CacheProvider.remove(DIMENSIONS_CACHE, dimensionsKey);
+                CacheProvider.remove(DIMENSIONS_CACHE, dimensionsKey + "#inventory");
+            }
+            // Datapoint keys are this prefix followed by the dimension values.
+            String datapointKeyPrefix = datapointKeyPrefix(rule);
+            if (!liveDatapoints.contains(datapointKeyPrefix)) {
+                CacheProvider.removeByPrefix(METRICS_CACHE, datapointKeyPrefix);
+                CacheProvider.removeByPrefix(EMPTY_SERIES_CACHE, datapointKeyPrefix);
+            }
+        }
+        for (ResourceMapping mapping : diff.changedMappings) {
+            CacheProvider.removeByPrefix(ES_CACHE, generateKey(mapping.lookupURL, mapping.esResourceIDField, ""));
+            CacheProvider.remove(INVENTORY_CACHE, generateKey(mapping.lookupURL, mapping.esResourceIDField));
         }
     }
 
@@ -250,18 +700,113 @@ public class CloudWatchCollector extends Collector {
       return "https://" + region.getServiceEndpoint("monitoring");
     }
 
-    private List<List<Dimension>> getDimensions(MetricRule rule, AmazonCloudWatchClient client) {
-        
-      Object dimensionsFromCache = CacheProvider.getFromCache(DIMENSIONS_CACHE, generateKey(rule.awsNamespace, rule.awsMetricName));
-      if (dimensionsFromCache != null) {
-          return (List<List<Dimension>>) dimensionsFromCache;
-      }
-      List<List<Dimension>> dimensions = new ArrayList<List<Dimension>>();
+    List<List<Dimension>> getDimensions(final ActiveConfig config, final MetricRule rule, final ScrapeContext context) {
       if (rule.awsDimensions == null) {
+        List<List<Dimension>> dimensions = new ArrayList<List<Dimension>>();
         dimensions.add(new ArrayList<Dimension>());
         return dimensions;
       }
+      final ResourceMapping inventory = usesInventory(config, rule) ? config.mappings.get(rule.awsNamespace) : null;
+      final boolean[] listed = {false};
+      String key = inventory == null ? dimensionsKey(rule) : dimensionsKey(rule) + "#inventory";
+      Object dimensions = CacheProvider.get(DIMENSIONS_CACHE, key, new CacheProvider.Loader() {
+        public Object load(String key) {
+          if (context.outOfTime()) {
+            context.markIncomplete(rule);
+            return null;
+          }
+          listed[0] = true;
+          if (inventory != null) {
+            List<List<Dimension>> fromInventory = inventoryDimensions(rule, inventory);
+            if (fromInventory != null) {
+              return verifyInventoryDimensions(config, rule, inventory, key, fromInventory);
+            }
+          }
+          return listDimensions(config, rule);
+        }
+      });
+      if (!listed[0] && dimensions != null && inventory == null) {
+        apiAccounting.record(ApiAccounting.LIST_METRICS, rule, ApiAccounting.HIT);
+      }
+      return dimensions == null ? new ArrayList<List<Dimension>>() : (List<List<Dimension>>) dimensions;
+    }
 
+    /**
+     * Whether a rule's dimension sets come from the inventory: its mapping asks for that and the rule has
+     * the mapping's id_field as its only dimension. Rules with more dimensions need ListMetrics.
+     */
+    static boolean usesInventory(ActiveConfig config, MetricRule rule) {
+      ResourceMapping mapping = config.mappings.get(rule.awsNamespace);
+      return mapping != null && mapping.inventoryDiscovery && rule.awsDimensions != null
+          && rule.awsDimensions.size() == 1 && rule.awsDimensions.get(0).equals(mapping.resourceIDField);
+    }
+
+    /**
+     * One dimension set per resource in the inventory, filtered by aws_dimension_select, or null if the
+     * inventory could not be read.
+     */
+    private List<List<Dimension>> inventoryDimensions(MetricRule rule, final ResourceMapping mapping) {
+      List<String> ids;
+      try {
+        ids = (List<String>) CacheProvider.get(INVENTORY_CACHE, generateKey(mapping.lookupURL, mapping.esResourceIDField),
+            new CacheProvider.Loader() {
+              public Object load(String key) throws Exception {
+                return inventorySource.resourceIds(mapping.lookupURL, mapping.esResourceIDField);
+              }
+            });
+      } catch (RuntimeException e) {
+        LOGGER.log(Level.WARNING, "Reading the " + mapping.resourceType + " inventory failed, discovering with ListMetrics", e);
+        return null;
+      }
+      List<List<Dimension>> dimensions = new ArrayList<List<Dimension>>(ids.size());
+      for (String id : ids) {
+        Metric metric = new Metric().withDimensions(new Dimension().withName(mapping.resourceIDField).withValue(id));
+        if (useMetric(rule, metric)) {
+          dimensions.add(metric.getDimensions());
+        }
+      }
+      return dimensions;
+    }
+
+    /**
+     * Once every discovery_verify_hours, also lists the rule's dimensions with ListMetrics, records how the two
+     * differ, and adds dimension sets the inventory lacks. Sets only the inventory has are kept: they are resources
+     * without recent datapoints, which empty series backoff already handles.
+     */
+    private List<List<Dimension>> verifyInventoryDimensions(ActiveConfig config, MetricRule rule, ResourceMapping mapping,
+        String key, List<List<Dimension>> fromInventory) {
+      if (mapping.inventoryVerifyHours <= 0) {
+        return fromInventory;
+      }
+      Long verifiedAt = inventoryVerifiedAt.get(key);
+      long now = System.currentTimeMillis();
+      if (verifiedAt != null && now - verifiedAt < mapping.inventoryVerifyHours * 3600000L) {
+        return fromInventory;
+      }
+      List<List<Dimension>> listed = listDimensions(config, rule);
+      inventoryVerifiedAt.put(key, now);
+      Set<List<Dimension>> known = new HashSet<List<Dimension>>(fromInventory);
+      List<List<Dimension>> merged = new ArrayList<List<Dimension>>(fromInventory);
+      int missing = 0;
+      for (List<Dimension> dimensionSet : listed) {
+        if (!known.contains(dimensionSet)) {
+          merged.add(dimensionSet);
+          missing++;
+        }
+      }
+      int extra = fromInventory.size() - (listed.size() - missing);
+      List<String> labels = ruleLabelValues(rule);
+      inventoryMismatch.labels(labels.get(0), labels.get(1), labels.get(2), "missing").set(missing);
+      inventoryMismatch.labels(labels.get(0), labels.get(1), labels.get(2), "extra").set(extra);
+      if (missing > 0) {
+        LOGGER.log(Level.WARNING, "ListMetrics found " + missing + " " + mapping.resourceIDField + " values for " + rule.awsNamespace
+            + " " + rule.awsMetricName + " that are not in the inventory");
+      }
+      return merged;
+    }
+
+    private List<List<Dimension>> listDimensions(ActiveConfig config, MetricRule rule) {
+      List<List<Dimension>> dimensions = new ArrayList<List<Dimension>>();
       ListMetricsRequest request = new ListMetricsRequest();
       request.setNamespace(rule.awsNamespace);
       request.setMetricName(rule.awsMetricName);
@@ -274,7 +819,19 @@ public class CloudWatchCollector extends Collector {
       String nextToken = null;
       do {
         request.setNextToken(nextToken);
-        ListMetricsResult result = client.listMetrics(request);
+        ListMetricsResult result;
+        try {
+          // Discovery is cached and refreshed in the background, so it waits for its share rather than giving up.
+          config.bulkhead(rule).acquire(Long.MAX_VALUE);
+          result = config.client.listMetrics(request);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new RuntimeException(e);
+        } catch (RuntimeException e) {
+          apiAccounting.record(ApiAccounting.LIST_METRICS, rule, ApiAccounting.failureOutcome(e));
+          throw e;
+        }
+        apiAccounting.record(ApiAccounting.LIST_METRICS, rule, ApiAccounting.MISS);
         cloudwatchRequests.inc();
         LOGGER.log(Level.FINE, cloudwatchRequests.get() + "");
         for (Metric metric: result.getMetrics()) {
@@ -289,8 +846,6 @@ public class CloudWatchCollector extends Collector {
         }
         nextToken = result.getNextToken();
       } while (nextToken != null);
-
-      CacheProvider.put(DIMENSIONS_CACHE, generateKey(rule.awsNamespace, rule.awsMetricName), dimensions);
       return dimensions;
     }
 
@@ -368,11 +923,11 @@ public class CloudWatchCollector extends Collector {
       return newest;
     }
 
-    private String toSnakeCase(String str) {
+    static String toSnakeCase(String str) {
       return str.replaceAll("([a-z0-9])([A-Z])", "$1_$2").toLowerCase();
     }
 
-    private String safeName(String s) {
+    static String safeName(String s) {
       // Change invalid chars to underscore, and merge underscores.
       return s.replaceAll("[^a-zA-Z0-9:_]", "_").replaceAll("__+", "_");
     }
@@ -386,247 +941,834 @@ public class CloudWatchCollector extends Collector {
           + " Unit: " + unit;
     }
 
-    private void scrape(String requestedMetricNamespace, List<MetricFamilySamples> mfs) throws CloneNotSupportedException {
-      ActiveConfig config = (ActiveConfig) activeConfig.clone();
+    /**
+     * One rule moving through the scrape pipeline: dimension discovery, then a datapoint fetch for each
+     * dimension set that is not cached, then sample assembly.
+     */
+    private static class RuleScrape {
+      final MetricRule rule;
+      final ResourceUsage usage;
+      Future<List<List<Dimension>>> dimensions;
+      final List<PendingSeries> series = new ArrayList<PendingSeries>();
 
-      long start = System.currentTimeMillis();
-      int metricQueryCount = 0;
-      for (MetricRule rule: config.rules) {
-        if(requestedMetricNamespace != null && !requestedMetricNamespace.equalsIgnoreCase(rule.awsNamespace)) {
-            continue;
+      RuleScrape(MetricRule rule, ResourceUsage usage) {
+        this.rule = rule;
+        this.usage = usage;
+      }
+    }
+
+    /**
+     * A dimension set with either its cached value or the fetch in flight for it.
+     */
+    private static class PendingSeries {
+      final List<Dimension> dimensions;
+      final SeriesValue cached;
+      final Future<SeriesValue> fetch;
+
+      PendingSeries(List<Dimension> dimensions, SeriesValue cached, Future<SeriesValue> fetch) {
+        this.dimensions = dimensions;
+        this.cached = cached;
+        this.fetch = fetch;
+      }
+    }
+
+    /**
+     * Consecutive fetches of a series that returned no datapoint, and when to try it again.
+     */
+    private static final class EmptySeries {
+      final int streak;
+      final long retryAtMillis;
+
+      EmptySeries(int streak, long retryAtMillis) {
+        this.streak = streak;
+        this.retryAtMillis = retryAtMillis;
+      }
+    }
+
+    /**
+     * Runs discovery and fetches on the pool of each rule's namespace, at most its max_requests_in_flight at a
+     * time, so a slow namespace only holds up its own rules and a scrape
+     * takes about as long as its slowest chain of calls rather than the sum of all of them. Discovery of
+     * every rule is queued first; each rule's fetches are queued as soon as its dimensions are known;
+     * samples are assembled on the calling thread in rule order.
+     *
+     * Requests are blocking, one pool thread each for as long as it is in flight, so max_requests_in_flight
+     * is also the number of fetch threads per namespace. The 1.x SDK's AmazonCloudWatchAsyncClient would
+     * not change that, as it runs the same blocking calls on an executor of its own.
+     */
+    private void scrape(ActiveConfig config, String requestedMetricNamespace, List<MetricFamilySamples> mfs, ScrapeContext context) {
+      List<RuleScrape> rules = new ArrayList<RuleScrape>();
+      for (MetricRule rule: config.rules(requestedMetricNamespace)) {
+        ResourceUsage usage = new ResourceUsage();
+        context.ruleUsage.put(rule, usage);
+        RuleScrape ruleScrape = new RuleScrape(rule, usage);
+        ruleScrape.dimensions = config.bulkhead(rule).pool.submit(discoverDimensions(config, ruleScrape, context));
+        rules.add(ruleScrape);
+      }
+
+      for (RuleScrape ruleScrape: rules) {
+        List<List<Dimension>> dimensions = await(ruleScrape.dimensions, ruleScrape.rule, context);
+        if (dimensions == null) {
+          continue;
         }
-        
-        Date startDate = new Date(start - 1000 * rule.delaySeconds);
-        Date endDate = new Date(start - 1000 * (rule.delaySeconds + rule.rangeSeconds));
-        GetMetricStatisticsRequest request = new GetMetricStatisticsRequest();
-        request.setNamespace(rule.awsNamespace);
-        request.setMetricName(rule.awsMetricName);
-        request.setStatistics(rule.awsStatistics);
-        request.setExtendedStatistics(rule.awsExtendedStatistics);
-        request.setEndTime(startDate);
-        request.setStartTime(endDate);
-        request.setPeriod(rule.periodSeconds);
-
-        String baseName = safeName(rule.awsNamespace.toLowerCase() + "_" + toSnakeCase(rule.awsMetricName));
-        String jobName = safeName(rule.awsNamespace.toLowerCase());
-        List<MetricFamilySamples.Sample> sumSamples = new ArrayList<MetricFamilySamples.Sample>();
-        List<MetricFamilySamples.Sample> sampleCountSamples = new ArrayList<MetricFamilySamples.Sample>();
-        List<MetricFamilySamples.Sample> minimumSamples = new ArrayList<MetricFamilySamples.Sample>();
-        List<MetricFamilySamples.Sample> maximumSamples = new ArrayList<MetricFamilySamples.Sample>();
-        List<MetricFamilySamples.Sample> averageSamples = new ArrayList<MetricFamilySamples.Sample>();
-        HashMap<String, ArrayList<MetricFamilySamples.Sample>> extendedSamples = new HashMap<String, ArrayList<MetricFamilySamples.Sample>>();
-
-        String unit = null;
-
-        if (rule.awsNamespace.equals("AWS/DynamoDB")
-                && rule.awsDimensions.contains("GlobalSecondaryIndexName")
-                && brokenDynamoMetrics.contains(rule.awsMetricName)) {
-            baseName += "_index";
-        }
-
-        for (List<Dimension> dimensions: getDimensions(rule, config.client)) {
-          request.setDimensions(dimensions);
-          String key = generateKey(rule.awsNamespace, rule.awsMetricName, String.join("#", rule.awsStatistics.toArray(new String[0])));
-          for(Dimension dimension: dimensions){
-              key = key + dimension.getName() + dimension.getValue();
-          }
-          Object fromCache = CacheProvider.getFromCache(METRICS_CACHE, key);
-          Datapoint dp = null;
-          if(fromCache != null) {
-              dp = (Datapoint) fromCache;
-          } else {
-              //System.out.println("metricQueryCount " + ++metricQueryCount);
-              GetMetricStatisticsResult result = config.client.getMetricStatistics(request);
-              cloudwatchRequests.inc();
-              dp = getNewestDatapoint(result.getDatapoints());
-              CacheProvider.put(METRICS_CACHE, key, dp);
+        ResourceUsage.Sample sample = ResourceUsage.start();
+        try {
+          dimensions = limitSeries(config, ruleScrape.rule, dimensions, context);
+          submitFetches(config, ruleScrape, dimensions, context);
+        } finally {
+          ruleScrape.usage.add(sample);
+        }
+      }
+
+      // Fetches still running when the deadline passes are left to finish, so they fill the cache for the next scrape.
+      for (RuleScrape ruleScrape: rules) {
+        ResourceUsage.Sample sample = ResourceUsage.start();
+        try {
+          assembleRule(config, ruleScrape, context, mfs);
+        } finally {
+          ruleScrape.usage.add(sample);
+          context.completedRules.incrementAndGet();
+        }
+      }
+    }
+
+    /**
+     * Scrapes all rules without a deadline and discards the samples, which leaves dimensions, tags and
+     * datapoints cached for the first real scrape.
+     */
+    void warmUp(ScrapeContext context) {
+      ActiveConfig config = startScrape();
+      try {
+        scrape(config, null, new ArrayList<MetricFamilySamples>(), context);
+      } finally {
+        config.endScrape();
+      }
+    }
+
+    /**
+     * The active config, held until {@link ActiveConfig#endScrape()}.
+     */
+    private ActiveConfig startScrape() {
+      while (true) {
+        ActiveConfig config = activeConfig;
+        if (config.startScrape()) {
+          return config;
+        }
+      }
+    }
+
+    /**
+     * Adds what a task on a bulkhead pool used to its rule and to the scrape, which only measures its own thread.
+     */
+    private static void addWorkerUsage(RuleScrape ruleScrape, ScrapeContext context, ResourceUsage.Sample sample) {
+      ResourceUsage task = new ResourceUsage();
+      task.add(sample);
+      ruleScrape.usage.add(task);
+      context.workerUsage.add(task);
+    }
+
+    private Callable<List<List<Dimension>>> discoverDimensions(final ActiveConfig config, final RuleScrape ruleScrape, final ScrapeContext context) {
+      return new Callable<List<List<Dimension>>>() {
+        public List<List<Dimension>> call() {
+          ResourceUsage.Sample sample = ResourceUsage.start();
+          try {
+            return selectByTags(config, ruleScrape.rule, getDimensions(config, ruleScrape.rule, context), context);
+          } finally {
+            addWorkerUsage(ruleScrape, context, sample);
           }
-          if (dp == null) {
-            continue;
+        }
+      };
+    }
+
+    /**
+     * Keeps at most the rule's max_series dimension sets, and no more than are left of the global max_series
+     * in this scrape, before anything is fetched. Without rank_by the sets sorting first by dimension values
+     * are kept, so the selection is stable between scrapes. With rank_by they are ranked by the cached value
+     * of that metric and statistic from another rule over the same dimensions, highest first; sets with no
+     * cached value yet rank last.
+     */
+    private List<List<Dimension>> limitSeries(ActiveConfig config, MetricRule rule, List<List<Dimension>> dimensions, ScrapeContext context) {
+      int limit = rule.maxSeries > 0 ? rule.maxSeries : Integer.MAX_VALUE;
+      if (config.maxSeries > 0) {
+        limit = Math.min(limit, context.remainingSeries(config.maxSeries));
+      }
+      if (dimensions.size() <= limit) {
+        context.useSeries(dimensions.size());
+        return dimensions;
+      }
+
+      final MetricRule rankRule = rule.rankRule;
+      final Map<List<Dimension>, Double> rankValues = new HashMap<List<Dimension>, Double>();
+      if (rankRule != null) {
+        for (List<Dimension> dimensionSet: dimensions) {
+          Object cached = CacheProvider.getFromCache(METRICS_CACHE, datapointKey(rankRule, dimensionSet));
+          Double value = cached == null ? null : ((SeriesValue) cached).get(rule.rankByStatistic);
+          if (value != null) {
+            rankValues.put(dimensionSet, value);
           }
-          
-          unit = dp.getUnit();
-
-          List<String> labelNames = new ArrayList<String>();
-          List<String> labelValues = new ArrayList<String>();
-          labelNames.add("job");
-          labelValues.add(jobName);
-          labelNames.add("instance");
-          labelValues.add("");
-          for (Dimension d: dimensions) {
-            labelNames.add(safeName(toSnakeCase(d.getName())));
-            labelValues.add(d.getValue());
-          }
-          addLabelsFromAWSTags(config, rule, labelNames, labelValues);
-          if (dp.getSum() != null) {
-            sumSamples.add(new MetricFamilySamples.Sample(
-                baseName + "_sum", labelNames, labelValues, dp.getSum()));
-          }
-          if (dp.getSampleCount() != null) {
-            sampleCountSamples.add(new MetricFamilySamples.Sample(
-                baseName + "_sample_count", labelNames, labelValues, dp.getSampleCount()));
-          }
-          if (dp.getMinimum() != null) {
-            minimumSamples.add(new MetricFamilySamples.Sample(
-                baseName + "_minimum", labelNames, labelValues, dp.getMinimum()));
-          }
-          if (dp.getMaximum() != null) {
-            maximumSamples.add(new MetricFamilySamples.Sample(
-                baseName + "_maximum",labelNames, labelValues, dp.getMaximum()));
-          }
-          if (dp.getAverage() != null) {
-            averageSamples.add(new MetricFamilySamples.Sample(
-                baseName + "_average", labelNames, labelValues, dp.getAverage()));
-          }
-          if (dp.getExtendedStatistics() != null) {
-            for (Map.Entry<String, Double> entry : dp.getExtendedStatistics().entrySet()) {
-              ArrayList<MetricFamilySamples.Sample> samples = extendedSamples.get(entry.getKey());
-              if (samples == null) {
-                samples = new ArrayList<MetricFamilySamples.Sample>();
-                extendedSamples.put(entry.getKey(), samples);
-              }
-              samples.add(new MetricFamilySamples.Sample(
-                  baseName + "_" + safeName(toSnakeCase(entry.getKey())), labelNames, labelValues, entry.getValue()));
+        }
+      }
+      List<List<Dimension>> sorted = new ArrayList<List<Dimension>>(dimensions);
+      Collections.sort(sorted, new Comparator<List<Dimension>>() {
+        public int compare(List<Dimension> a, List<Dimension> b) {
+          Double valueA = rankValues.get(a);
+          Double valueB = rankValues.get(b);
+          if (valueA != null || valueB != null) {
+            if (valueA == null) {
+              return 1;
+            }
+            if (valueB == null) {
+              return -1;
+            }
+            int byValue = valueB.compareTo(valueA);
+            if (byValue != 0) {
+              return byValue;
             }
           }
+          return dimensionValues(a).compareTo(dimensionValues(b));
+        }
+      });
+
+      context.useSeries(limit);
+      context.dropSeries(rule, dimensions.size() - limit);
+      return sorted.subList(0, limit);
+    }
+
+    /**
+     * The rule whose cached datapoints rank_by reads: same namespace and dimensions, the rank_by metric
+     * and a statistic list containing the rank_by statistic. A config without such a rule is rejected.
+     */
+    private static MetricRule rankingRule(List<MetricRule> rules, MetricRule rule) {
+      for (MetricRule candidate: rules) {
+        if (candidate.awsNamespace.equals(rule.awsNamespace)
+            && candidate.awsMetricName.equals(rule.rankByMetricName)
+            && String.valueOf(candidate.awsDimensions).equals(String.valueOf(rule.awsDimensions))
+            && ((candidate.awsStatistics != null && candidate.awsStatistics.contains(rule.rankByStatistic))
+                || (candidate.awsExtendedStatistics != null && candidate.awsExtendedStatistics.contains(rule.rankByStatistic)))) {
+          return candidate;
         }
+      }
+      throw new IllegalArgumentException("rank_by of " + rule.awsNamespace + " " + rule.awsMetricName + " needs a rule fetching "
+          + rule.rankByMetricName + " " + rule.rankByStatistic + " over " + rule.awsDimensions);
+    }
+
+    private static String dimensionValues(List<Dimension> dimensions) {
+      StringBuilder sb = new StringBuilder();
+      for (Dimension dimension: dimensions) {
+        sb.append(dimension.getValue()).append('\u0000');
+      }
+      return sb.toString();
+    }
 
-        if (!sumSamples.isEmpty()) {
-          mfs.add(new MetricFamilySamples(baseName + "_sum", Type.GAUGE, help(rule, unit, "Sum"), sumSamples));
+    /**
+     * Keeps the dimension sets whose resource has one of the allowed values for every tag in tag_select. Tags
+     * come from the es cache or the rule's mapping, as for labels; a resource whose tags cannot be looked up
+     * has the default values and is only kept if those are allowed, as is one not cached once the scrape is out of time.
+     */
+    List<List<Dimension>> selectByTags(ActiveConfig config, MetricRule rule, List<List<Dimension>> dimensions, ScrapeContext context) {
+      if (rule.tagSelect == null) {
+        return dimensions;
+      }
+      ResourceMapping mapping = config.mappings.get(rule.awsNamespace);
+      List<List<Dimension>> selected = new ArrayList<List<Dimension>>();
+      for (List<Dimension> dimensionSet: dimensions) {
+        int resourceIndex = rule.labelSchema.resourceIndex(dimensionSet);
+        String resourceName = resourceIndex < 0 ? null : networkLoadBalancerName(dimensionSet.get(resourceIndex).getValue());
+        ResourceLabels tags = readTagsForResource(config.tagLookup, mapping.esResourceIDField, resourceName, mapping, rule, context);
+        boolean matches = true;
+        for (Map.Entry<String, List<String>> entry: rule.tagSelect.entrySet()) {
+          if (!entry.getValue().contains(tags.get(entry.getKey()))) {
+            matches = false;
+            break;
+          }
         }
-        if (!sampleCountSamples.isEmpty()) {
-          mfs.add(new MetricFamilySamples(baseName + "_sample_count", Type.GAUGE, help(rule, unit, "SampleCount"), sampleCountSamples));
+        if (matches) {
+          selected.add(dimensionSet);
         }
-        if (!minimumSamples.isEmpty()) {
-          mfs.add(new MetricFamilySamples(baseName + "_minimum", Type.GAUGE, help(rule, unit, "Minimum"), minimumSamples));
+      }
+      return selected;
+    }
+
+    private void submitFetches(ActiveConfig config, RuleScrape ruleScrape, List<List<Dimension>> dimensionSets, ScrapeContext context) {
+      MetricRule rule = ruleScrape.rule;
+      for (List<Dimension> dimensions: dimensionSets) {
+        String key = datapointKey(rule, dimensions);
+        Object fromCache = CacheProvider.getFromCache(METRICS_CACHE, key);
+        if (fromCache != null) {
+          apiAccounting.record(ApiAccounting.GET_METRIC_STATISTICS, rule, ApiAccounting.HIT);
+          ruleScrape.series.add(new PendingSeries(dimensions, (SeriesValue) fromCache, null));
+        } else if (isBackingOff(key, context)) {
+          context.suppressSeries(rule);
+        } else if (context.outOfTime()) {
+          // Out of budget, serve what is cached and skip the rest.
+          context.markIncomplete(rule);
+        } else {
+          ruleScrape.series.add(new PendingSeries(dimensions, null,
+              config.bulkhead(rule).pool.submit(fetchDatapoint(config, ruleScrape, dimensions, key, context))));
         }
-        if (!maximumSamples.isEmpty()) {
-          mfs.add(new MetricFamilySamples(baseName + "_maximum", Type.GAUGE, help(rule, unit, "Maximum"), maximumSamples));
+      }
+    }
+
+    private Callable<SeriesValue> fetchDatapoint(final ActiveConfig config, final RuleScrape ruleScrape, final List<Dimension> dimensions,
+        final String key, final ScrapeContext context) {
+      return new Callable<SeriesValue>() {
+        public SeriesValue call() {
+          if (context.outOfTime()) {
+            // Queued behind other requests until the budget ran out.
+            context.markIncomplete(ruleScrape.rule);
+            return null;
+          }
+          try {
+            if (!config.bulkhead(ruleScrape.rule).acquire(context.remainingMillis())) {
+              // The namespace's request share would only allow this after the deadline.
+              context.markIncomplete(ruleScrape.rule);
+              return null;
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+          }
+          ResourceUsage.Sample sample = ResourceUsage.start();
+          try {
+            // Through the cache so a replica sharing the remote tier fetches each series only once.
+            final boolean[] fetched = new boolean[1];
+            SeriesValue value = (SeriesValue) CacheProvider.load(METRICS_CACHE, key, new CacheProvider.ExpiringLoader() {
+              public Object load(String key) {
+                fetched[0] = true;
+                GetMetricStatisticsResult result;
+                try {
+                  result = config.client.getMetricStatistics(metricStatisticsRequest(ruleScrape.rule, dimensions, context.startMillis));
+                } catch (RuntimeException e) {
+                  apiAccounting.record(ApiAccounting.GET_METRIC_STATISTICS, ruleScrape.rule, ApiAccounting.failureOutcome(e));
+                  throw e;
+                }
+                apiAccounting.record(ApiAccounting.GET_METRIC_STATISTICS, ruleScrape.rule, ApiAccounting.MISS);
+                cloudwatchRequests.inc();
+                return SeriesValue.of(getNewestDatapoint(result.getDatapoints()));
+              }
+
+              public int ttlSeconds(Object value) {
+                return datapointTtlSeconds(ruleScrape.rule, (SeriesValue) value, System.currentTimeMillis());
+              }
+            }, context.remainingMillis());
+            if (value == null && !fetched[0] && context.outOfTime()) {
+              // The deadline passed while another replica held the series' remote lock.
+              context.markIncomplete(ruleScrape.rule);
+              return null;
+            }
+            if (value != null) {
+              CacheProvider.remove(EMPTY_SERIES_CACHE, key);
+            } else if (config.emptySeriesBackoffMaxSeconds > 0) {
+              EmptySeries previous = (EmptySeries) CacheProvider.getFromCache(EMPTY_SERIES_CACHE, key);
+              int streak = previous == null ? 1 : previous.streak + 1;
+              long backoff = emptySeriesBackoffSeconds(ruleScrape.rule, streak, config.emptySeriesBackoffMaxSeconds);
+              CacheProvider.put(EMPTY_SERIES_CACHE, key, new EmptySeries(streak, System.currentTimeMillis() + backoff * 1000));
+            }
+            return value;
+          } finally {
+            addWorkerUsage(ruleScrape, context, sample);
+          }
         }
-        if (!averageSamples.isEmpty()) {
-          mfs.add(new MetricFamilySamples(baseName + "_average", Type.GAUGE, help(rule, unit, "Average"), averageSamples));
+      };
+    }
+
+    /**
+     * Seconds until a newer datapoint than the cached one can exist. The period after the newest datapoint
+     * enters the request window once the period has begun and delay_seconds have passed; before that a
+     * request would return the same data. Datapoints are kept at least {@link #METRICS_TTL_SECONDS}, so
+     * fast metrics are fetched no more often than before, and an overdue period is polled at that rate.
+     */
+    static int datapointTtlSeconds(MetricRule rule, SeriesValue value, long nowMillis) {
+      long nextPeriodVisible = value.getTimestampSeconds() + rule.periodSeconds + rule.delaySeconds;
+      long ttl = nextPeriodVisible - nowMillis / 1000;
+      return (int) Math.max(ttl, METRICS_TTL_SECONDS);
+    }
+
+    /**
+     * How long to skip a series after it came back empty this many times in a row: not at all after the
+     * first time, then two periods, doubling up to empty_series_backoff_max_seconds. Idle load balancers,
+     * stopped instances and detached volumes keep their dimensions in ListMetrics for weeks.
+     */
+    static long emptySeriesBackoffSeconds(MetricRule rule, int streak, int maxSeconds) {
+      if (streak < 2) {
+        return 0;
+      }
+      return Math.min((long) rule.periodSeconds << Math.min(streak - 1, 30), maxSeconds);
+    }
+
+    private static boolean isBackingOff(String key, ScrapeContext context) {
+      EmptySeries empty = (EmptySeries) CacheProvider.getFromCache(EMPTY_SERIES_CACHE, key);
+      return empty != null && empty.retryAtMillis > context.startMillis;
+    }
+
+    private GetMetricStatisticsRequest metricStatisticsRequest(MetricRule rule, List<Dimension> dimensions, long start) {
+      Date startDate = new Date(start - 1000 * rule.delaySeconds);
+      Date endDate = new Date(start - 1000 * (rule.delaySeconds + rule.rangeSeconds));
+      GetMetricStatisticsRequest request = new GetMetricStatisticsRequest();
+      request.setNamespace(rule.awsNamespace);
+      request.setMetricName(rule.awsMetricName);
+      request.setStatistics(rule.fetchStatistics);
+      request.setExtendedStatistics(rule.fetchExtendedStatistics);
+      request.setEndTime(startDate);
+      request.setStartTime(endDate);
+      request.setPeriod(rule.periodSeconds);
+      request.setDimensions(dimensions);
+      return request;
+    }
+
+    /**
+     * Waits for a pipeline stage within the scrape's budget. Returns null and marks the rule incomplete if the
+     * deadline passes first; failures propagate and fail the scrape, as they did when calls were made inline.
+     */
+    private static <T> T await(Future<T> future, MetricRule rule, ScrapeContext context) {
+      try {
+        if (!context.hasDeadline()) {
+          return future.get();
         }
-        for (Map.Entry<String, ArrayList<MetricFamilySamples.Sample>> entry : extendedSamples.entrySet()) {
-          mfs.add(new MetricFamilySamples(baseName + "_" + safeName(toSnakeCase(entry.getKey())), Type.GAUGE, help(rule, unit, entry.getKey()), entry.getValue()));
+        return future.get(context.remainingMillis(), TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        context.markIncomplete(rule);
+        return null;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
         }
+        throw new RuntimeException(e.getCause());
       }
     }
 
-    private void addLabelsFromAWSTags(ActiveConfig config, MetricRule rule, List<String> labelNames, List<String> labelValues) {
-        // TODO: Currently ignores region
-        // Region region = RegionUtils.getRegion((String) config.get("region"));
+    private void assembleRule(ActiveConfig config, RuleScrape ruleScrape, ScrapeContext context, List<MetricFamilySamples> mfs) {
+      MetricRule rule = ruleScrape.rule;
+      String baseName = safeName(rule.awsNamespace.toLowerCase() + "_" + toSnakeCase(rule.awsMetricName));
+      LabelSchema schema = rule.labelSchema;
+      // TODO: Currently ignores region
+      ResourceMapping mapping = config.mappings.get(rule.awsNamespace);
+      if (mapping == null && !ruleScrape.series.isEmpty()) {
+        LOGGER.log(Level.WARNING, "Resource Mapping not configured - " + rule.awsNamespace);
+      }
+      List<MetricFamilySamples.Sample> sumSamples = new ArrayList<MetricFamilySamples.Sample>();
+      List<MetricFamilySamples.Sample> sampleCountSamples = new ArrayList<MetricFamilySamples.Sample>();
+      List<MetricFamilySamples.Sample> minimumSamples = new ArrayList<MetricFamilySamples.Sample>();
+      List<MetricFamilySamples.Sample> maximumSamples = new ArrayList<MetricFamilySamples.Sample>();
+      List<MetricFamilySamples.Sample> averageSamples = new ArrayList<MetricFamilySamples.Sample>();
+      HashMap<String, ArrayList<MetricFamilySamples.Sample>> extendedSamples = new HashMap<String, ArrayList<MetricFamilySamples.Sample>>();
+      Rollup rollup = rule.rollup == null ? null : new Rollup(rule.rollup);
+
+      String unit = null;
+
+      // Values fetched for merged rules also hold the other rules' statistics.
+      int statistics = 0;
+      for (int i = 0; i < STANDARD_STATISTICS.size(); i++) {
+        if (rule.awsStatistics != null && rule.awsStatistics.contains(STANDARD_STATISTICS.get(i))) {
+          statistics |= 1 << i;
+        }
+      }
+
+      if (rule.awsNamespace.equals("AWS/DynamoDB")
+              && rule.awsDimensions.contains("GlobalSecondaryIndexName")
+              && brokenDynamoMetrics.contains(rule.awsMetricName)) {
+          baseName += "_index";
+      }
+
+      for (PendingSeries series: ruleScrape.series) {
+        List<Dimension> dimensions = series.dimensions;
+        SeriesValue value = series.cached;
+        if (series.fetch != null) {
+          value = await(series.fetch, rule, context);
+        }
+        if (value == null) {
+          continue;
+        }
         
-        ResourceMapping mapping = config.mappings.get(rule.awsNamespace);
-        if (mapping != null) {
-            String resourceName = findResourceName(labelNames, labelValues, mapping);
-            Map<String, String> tags = readTagsForResource(mapping.esResourceIDField, resourceName, mapping);
-            for (String key:tags.keySet()){
-                
-                labelNames.add(safeName(toSnakeCase(key)));
-                labelValues.add(tags.get(key));
-            }
-        } else {
-            // TODO: Log warning
-            LOGGER.log(Level.WARNING, "Resource Mapping not configured - " + rule.awsNamespace);
+        unit = value.getUnit();
+
+        int resourceIndex = schema.resourceIndex(dimensions);
+        String resourceName = resourceIndex < 0 ? "" : networkLoadBalancerName(dimensions.get(resourceIndex).getValue());
+        ResourceLabels tags = mapping == null ? ResourceLabels.EMPTY
+            : readTagsForResource(config.tagLookup, mapping.esResourceIDField, resourceName, mapping, rule, context);
+        List<String> labelNames = schema.labelNames(dimensions, tags);
+        List<String> labelValues = schema.labelValues(dimensions, resourceIndex, resourceName, tags);
+        if (rollup != null) {
+          rollup.add(dimensions, labelNames, labelValues, value, statistics);
+          if (!rule.rollup.keepRaw) {
+            continue;
+          }
+        }
+        long timestampMillis = value.getTimestampSeconds() * 1000;
+        if ((statistics & SeriesValue.SUM) != 0 && value.has(SeriesValue.SUM)) {
+          sumSamples.add(new TimestampedSample(
+              baseName + "_sum", labelNames, labelValues, value.get(SeriesValue.SUM), timestampMillis));
+        }
+        if ((statistics & SeriesValue.SAMPLE_COUNT) != 0 && value.has(SeriesValue.SAMPLE_COUNT)) {
+          sampleCountSamples.add(new TimestampedSample(
+              baseName + "_sample_count", labelNames, labelValues, value.get(SeriesValue.SAMPLE_COUNT), timestampMillis));
+        }
+        if ((statistics & SeriesValue.MINIMUM) != 0 && value.has(SeriesValue.MINIMUM)) {
+          minimumSamples.add(new TimestampedSample(
+              baseName + "_minimum", labelNames, labelValues, value.get(SeriesValue.MINIMUM), timestampMillis));
+        }
+        if ((statistics & SeriesValue.MAXIMUM) != 0 && value.has(SeriesValue.MAXIMUM)) {
+          maximumSamples.add(new TimestampedSample(
+              baseName + "_maximum",labelNames, labelValues, value.get(SeriesValue.MAXIMUM), timestampMillis));
+        }
+        if ((statistics & SeriesValue.AVERAGE) != 0 && value.has(SeriesValue.AVERAGE)) {
+          averageSamples.add(new TimestampedSample(
+              baseName + "_average", labelNames, labelValues, value.get(SeriesValue.AVERAGE), timestampMillis));
         }
+        for (int i = 0; i < value.extendedCount(); i++) {
+          String statistic = value.extendedName(i);
+          if (rule.awsExtendedStatistics == null || !rule.awsExtendedStatistics.contains(statistic)) {
+            continue;
+          }
+          ArrayList<MetricFamilySamples.Sample> samples = extendedSamples.get(statistic);
+          if (samples == null) {
+            samples = new ArrayList<MetricFamilySamples.Sample>();
+            extendedSamples.put(statistic, samples);
+          }
+          samples.add(new TimestampedSample(
+              baseName + "_" + safeName(toSnakeCase(statistic)), labelNames, labelValues, value.extendedValue(i), timestampMillis));
+        }
+      }
+
+      if (!sumSamples.isEmpty()) {
+        mfs.add(new MetricFamilySamples(baseName + "_sum", Type.GAUGE, help(rule, unit, "Sum"), sumSamples));
+      }
+      if (!sampleCountSamples.isEmpty()) {
+        mfs.add(new MetricFamilySamples(baseName + "_sample_count", Type.GAUGE, help(rule, unit, "SampleCount"), sampleCountSamples));
+      }
+      if (!minimumSamples.isEmpty()) {
+        mfs.add(new MetricFamilySamples(baseName + "_minimum", Type.GAUGE, help(rule, unit, "Minimum"), minimumSamples));
+      }
+      if (!maximumSamples.isEmpty()) {
+        mfs.add(new MetricFamilySamples(baseName + "_maximum", Type.GAUGE, help(rule, unit, "Maximum"), maximumSamples));
+      }
+      if (!averageSamples.isEmpty()) {
+        mfs.add(new MetricFamilySamples(baseName + "_average", Type.GAUGE, help(rule, unit, "Average"), averageSamples));
+      }
+      for (Map.Entry<String, ArrayList<MetricFamilySamples.Sample>> entry : extendedSamples.entrySet()) {
+        mfs.add(new MetricFamilySamples(baseName + "_" + safeName(toSnakeCase(entry.getKey())), Type.GAUGE, help(rule, unit, entry.getKey()), entry.getValue()));
+      }
+      if (rollup != null) {
+        // Kept raw series own the plain names.
+        String rollupName = rule.rollup.keepRaw ? baseName + "_aggregated" : baseName;
+        for (int i = 0; i < STANDARD_STATISTICS.size(); i++) {
+          String name = rollupName + "_" + safeName(toSnakeCase(STANDARD_STATISTICS.get(i)));
+          List<MetricFamilySamples.Sample> samples = rollup.samples(statistics & (1 << i), name);
+          if (!samples.isEmpty()) {
+            mfs.add(new MetricFamilySamples(name, Type.GAUGE, help(rule, unit, STANDARD_STATISTICS.get(i))
+                + " Aggregated by: " + rule.rollup, samples));
+          }
+        }
+      }
     }
 
-    private String findResourceName(List<String> labelNames, List<String> labelValues, ResourceMapping mapping) {
-        String resourceName = "";
-        for (int i = 0; i < labelNames.size(); i++) {
-            if (labelNames.get(i).equalsIgnoreCase(safeName(toSnakeCase(mapping.resourceIDField)))) {
-            	resourceName = labelValues.get(i);
-            	// special handling for Network ELB
-            	if (resourceName.startsWith("net/")) {
-            		resourceName = resourceName.substring(4, resourceName.indexOf("/", 4));
-            		labelValues.set(i, resourceName);
-            	}
-            }
+    /**
+     * Network ELB dimension values look like net/name/id, while their tags are found by name.
+     */
+    private static String networkLoadBalancerName(String resourceName) {
+        if (resourceName.startsWith("net/")) {
+            return resourceName.substring(4, resourceName.indexOf("/", 4));
         }
         return resourceName;
     }
 
-    private Map<String, String> readTagsForResource(String resourceIDField, String resourceName, ResourceMapping mapping) {
-        String lookupURL = mapping.lookupURL;
+    /**
+     * Tags of a resource from the es cache, or looked up within what is left of the scrape. Once the deadline
+     * has passed no lookup is started: uncached resources get the default tags and the rule is incomplete.
+     */
+    private ResourceLabels readTagsForResource(final TagLookup tagLookup, final String resourceIDField, final String resourceName,
+            final ResourceMapping mapping, final MetricRule rule, final ScrapeContext context) {
+        final String lookupURL = mapping.lookupURL;
         if (lookupURL == null || resourceName == null || resourceName.isEmpty()) {
             // TODO: Log error
             LOGGER.log(Level.WARNING, "Resource Name Label not found in Data from CloudWatch - " + resourceIDField);
+            return ResourceLabels.EMPTY;
+        }
+        String key = generateKey(lookupURL, resourceIDField, resourceName);
+        Object tags;
+        if (context.outOfTime()) {
+            tags = CacheProvider.getFromCache(ES_CACHE, key);
         } else {
-            Map<String, String> tags = (Map<String, String>)CacheProvider.getFromCache(ES_CACHE, generateKey(resourceIDField, resourceName, lookupURL));
-            if(tags == null) {
-                tags = ESClient.findTagsForResource(resourceIDField, resourceName, lookupURL, mapping.additionalLabels);
-                CacheProvider.put(ES_CACHE, generateKey(resourceIDField, resourceName, lookupURL), tags);
-            }
-            return tags;
+            final boolean[] failed = new boolean[1];
+            tags = CacheProvider.get(ES_CACHE, key, new CacheProvider.ExpiringLoader() {
+                public Object load(String key) {
+                    Map<String, String> found = tagLookup.findTags(resourceIDField, resourceName, lookupURL, mapping.additionalLabels,
+                            context.remainingMillis());
+                    if (found != null) {
+                        return ResourceLabels.of(found);
+                    }
+                    if (context.outOfTime() || tagLookup.isShutdown()) {
+                        // Cut short by the deadline or a reload rather than failed, so nothing is cached.
+                        return null;
+                    }
+                    // Lookup failed or was rejected: serve default tags and retry once the breaker could have closed.
+                    failed[0] = true;
+                    return ResourceLabels.of(ESClient.defaultTags(mapping.additionalLabels));
+                }
+
+                public int ttlSeconds(Object value) {
+                    return failed[0] ? (int) tagLookup.settings.openSeconds : ES_TTL_SECONDS;
+                }
+            }, context.remainingMillis());
         }
-                
-        return Collections.emptyMap();
+        if (tags == null) {
+            context.markIncomplete(rule);
+            return ResourceLabels.of(ESClient.defaultTags(mapping.additionalLabels));
+        }
+        return (ResourceLabels) tags;
     }
 	
     private String generateKey(String... fields){
         return String.join("#", fields);
     }
+
+    /**
+     * Dimension sets depend on the dimension names and selectors as well as the metric,
+     * so rules that differ only in those must not share a cache entry.
+     */
+    private String dimensionsKey(MetricRule rule) {
+        return generateKey(rule.awsNamespace, rule.awsMetricName, String.valueOf(rule.awsDimensions),
+                String.valueOf(rule.awsDimensionSelect), String.valueOf(rule.awsDimensionSelectRegex));
+    }
+
+    /**
+     * Everything a GetMetricStatistics request depends on but the dimension values, so that only rules whose
+     * requests are the same, as in {@link #fetchGroup(MetricRule)}, share datapoints.
+     */
+    private String datapointKeyPrefix(MetricRule rule) {
+        return generateKey(rule.awsNamespace, rule.awsMetricName, String.valueOf(rule.awsDimensions), String.valueOf(rule.fetchStatistics),
+                String.valueOf(rule.fetchExtendedStatistics), String.valueOf(rule.periodSeconds), String.valueOf(rule.rangeSeconds),
+                String.valueOf(rule.delaySeconds), "");
+    }
+
+    private String datapointKey(MetricRule rule, List<Dimension> dimensions) {
+        String key = datapointKeyPrefix(rule);
+        for(Dimension dimension: dimensions){
+            key = key + dimension.getName() + dimension.getValue();
+        }
+        return key;
+    }
     public List<MetricFamilySamples> collect() {
         return collect(null);
     }
 	public List<MetricFamilySamples> collect(String requestedMetricNamespace) {
+      return collect(requestedMetricNamespace, 0);
+    }
+
+    /**
+     * Scrapes within a time budget. Once the budget is spent no further requests are made, cached values are
+     * served and the rules that missed data are reported in cloudwatch_exporter_scrape_incomplete.
+     *
+     * @param scrapeTimeoutSeconds the scraper's timeout, e.g. from the X-Prometheus-Scrape-Timeout-Seconds header,
+     *     or zero to use scrape_timeout_seconds from the config. The smaller of the two applies, minus
+     *     scrape_timeout_offset_seconds to leave time for writing the response.
+     */
+    public List<MetricFamilySamples> collect(String requestedMetricNamespace, double scrapeTimeoutSeconds) {
       long start = System.nanoTime();
+      ResourceUsage.Sample usageSample = ResourceUsage.start();
+      ResourceUsage scrapeUsage = new ResourceUsage();
+      ActiveConfig config = startScrape();
+      ScrapeContext context = new ScrapeContext(scrapeBudget(config, scrapeTimeoutSeconds));
+      Map<MetricRule, ResourceUsage> ruleUsage = context.ruleUsage;
       double error = 0;
       List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
       try {
-        scrape(requestedMetricNamespace, mfs);
+        scrape(config, requestedMetricNamespace, mfs, context);
       } catch (Exception e) {
         error = 1;
         LOGGER.log(Level.WARNING, "CloudWatch scrape failed", e);
+      } finally {
+        config.endScrape();
       }
+      scrapeUsage.add(usageSample);
+      scrapeUsage.add(context.workerUsage);
+      double duration = (System.nanoTime() - start) / 1.0E9;
       List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
       samples.add(new MetricFamilySamples.Sample(
-          "cloudwatch_exporter_scrape_duration_seconds", new ArrayList<String>(), new ArrayList<String>(), (System.nanoTime() - start) / 1.0E9));
+          "cloudwatch_exporter_scrape_duration_seconds", new ArrayList<String>(), new ArrayList<String>(), duration));
       mfs.add(new MetricFamilySamples("cloudwatch_exporter_scrape_duration_seconds", Type.GAUGE, "Time this CloudWatch scrape took, in seconds.", samples));
 
+      addResourceUsageSamples(mfs, scrapeUsage, ruleUsage);
+      addIncompleteSamples(mfs, context);
+      addDroppedSeriesSamples(mfs, context);
+      addSuppressedSeriesSamples(mfs, context);
+      addCostSamples(mfs);
+      if (LOGGER.isLoggable(Level.FINE)) {
+        LOGGER.log(Level.FINE, "Scrape of namespace " + requestedMetricNamespace + " took " + duration + "s, " + scrapeUsage);
+        synchronized (ruleUsage) {
+          for (Map.Entry<MetricRule, ResourceUsage> entry : ruleUsage.entrySet()) {
+            LOGGER.log(Level.FINE, "  " + generateKey(ruleLabelValues(entry.getKey()).toArray(new String[0])) + " " + entry.getValue()
+                + (context.incompleteRules.contains(entry.getKey()) ? " incomplete" : ""));
+          }
+        }
+      }
+
       samples = new ArrayList<MetricFamilySamples.Sample>();
       samples.add(new MetricFamilySamples.Sample(
           "cloudwatch_exporter_scrape_error", new ArrayList<String>(), new ArrayList<String>(), error));
       mfs.add(new MetricFamilySamples("cloudwatch_exporter_scrape_error", Type.GAUGE, "Non-zero if this scrape failed.", samples));
       
+      addCacheSamples(mfs);
+
       samples = new ArrayList<MetricFamilySamples.Sample>();
       samples.add(new MetricFamilySamples.Sample(
-          "cloudwatch_exporter_cache_usage", Arrays.asList("cache_name"), Arrays.asList(DIMENSIONS_CACHE), CacheProvider.getStatistics(DIMENSIONS_CACHE).getLocalHeapSize()));
-      samples.add(new MetricFamilySamples.Sample(
-          "cloudwatch_exporter_cache_usage", Arrays.asList("cache_name"), Arrays.asList(METRICS_CACHE), CacheProvider.getStatistics(METRICS_CACHE).getLocalHeapSize()));
-      samples.add(new MetricFamilySamples.Sample(
-          "cloudwatch_exporter_cache_usage", Arrays.asList("cache_name"), Arrays.asList(ES_CACHE), CacheProvider.getStatistics(ES_CACHE).getLocalHeapSize()));
-      mfs.add(new MetricFamilySamples("cloudwatch_exporter_cache_usage", Type.GAUGE, "Memory used by cache.", samples));
-      
-      samples = new ArrayList<MetricFamilySamples.Sample>();
-      samples.add(new MetricFamilySamples.Sample(
-          "cloudwatch_exporter_cache_hitratio", Arrays.asList("cache_name"), Arrays.asList(DIMENSIONS_CACHE), CacheProvider.getStatistics(DIMENSIONS_CACHE).cacheHitRatio()));
-      samples.add(new MetricFamilySamples.Sample(
-          "cloudwatch_exporter_cache_hitratio", Arrays.asList("cache_name"), Arrays.asList(METRICS_CACHE), CacheProvider.getStatistics(METRICS_CACHE).cacheHitRatio()));
-      samples.add(new MetricFamilySamples.Sample(
-          "cloudwatch_exporter_cache_hitratio", Arrays.asList("cache_name"), Arrays.asList(ES_CACHE), CacheProvider.getStatistics(ES_CACHE).cacheHitRatio()));
-      mfs.add(new MetricFamilySamples("cloudwatch_exporter_cache_hitratio", Type.GAUGE, "Cache Hit Ratio.", samples));
-      
-      samples = new ArrayList<MetricFamilySamples.Sample>();
-      samples.add(new MetricFamilySamples.Sample(
-          "cloudwatch_exporter_cache_hitcount", Arrays.asList("cache_name"), Arrays.asList(DIMENSIONS_CACHE), CacheProvider.getStatistics(DIMENSIONS_CACHE).cacheHitCount()));
-      samples.add(new MetricFamilySamples.Sample(
-          "cloudwatch_exporter_cache_hitcount", Arrays.asList("cache_name"), Arrays.asList(METRICS_CACHE), CacheProvider.getStatistics(METRICS_CACHE).cacheHitCount()));
+          "cloudwatch_exporter_label_dictionary_size", new ArrayList<String>(), new ArrayList<String>(), ResourceLabels.dictionarySize()));
+      mfs.add(new MetricFamilySamples("cloudwatch_exporter_label_dictionary_size", Type.GAUGE, "Distinct tag label names and values shared between resources.", samples));
+      return mfs;
+    }
+	
+    private static double scrapeBudget(ActiveConfig config, double scrapeTimeoutSeconds) {
+      double timeout = config.scrapeTimeoutSeconds;
+      if (scrapeTimeoutSeconds > 0 && (timeout <= 0 || scrapeTimeoutSeconds < timeout)) {
+        timeout = scrapeTimeoutSeconds;
+      }
+      if (timeout <= 0) {
+        return 0;
+      }
+      // Never drop to no budget at all, which would mean no limit.
+      return Math.max(timeout - config.scrapeTimeoutOffsetSeconds, 0.001);
+    }
+
+    private void addIncompleteSamples(List<MetricFamilySamples> mfs, ScrapeContext context) {
+      List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
+      synchronized (context.ruleUsage) {
+        for (MetricRule rule : context.ruleUsage.keySet()) {
+          samples.add(new MetricFamilySamples.Sample(
+              "cloudwatch_exporter_scrape_incomplete", RULE_LABEL_NAMES, ruleLabelValues(rule), context.incompleteRules.contains(rule) ? 1 : 0));
+        }
+      }
+      if (!samples.isEmpty()) {
+        mfs.add(new MetricFamilySamples("cloudwatch_exporter_scrape_incomplete", Type.GAUGE, "1 if the scrape deadline passed before this rule fetched all its data.", samples));
+      }
+    }
+
+    private void addDroppedSeriesSamples(List<MetricFamilySamples> mfs, ScrapeContext context) {
+      List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
+      synchronized (context.ruleUsage) {
+        for (MetricRule rule : context.ruleUsage.keySet()) {
+          Integer dropped = context.droppedSeries.get(rule);
+          samples.add(new MetricFamilySamples.Sample(
+              "cloudwatch_exporter_series_dropped", RULE_LABEL_NAMES, ruleLabelValues(rule), dropped == null ? 0 : dropped));
+        }
+      }
+      if (!samples.isEmpty()) {
+        mfs.add(new MetricFamilySamples("cloudwatch_exporter_series_dropped", Type.GAUGE, "Series this rule did not fetch because of max_series.", samples));
+      }
+    }
+
+    private void addSuppressedSeriesSamples(List<MetricFamilySamples> mfs, ScrapeContext context) {
+      List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
+      synchronized (context.ruleUsage) {
+        for (MetricRule rule : context.ruleUsage.keySet()) {
+          Integer suppressed = context.suppressedSeries.get(rule);
+          samples.add(new MetricFamilySamples.Sample(
+              "cloudwatch_exporter_series_suppressed", RULE_LABEL_NAMES, ruleLabelValues(rule), suppressed == null ? 0 : suppressed));
+        }
+      }
+      if (!samples.isEmpty()) {
+        mfs.add(new MetricFamilySamples("cloudwatch_exporter_series_suppressed", Type.GAUGE,
+            "Series of this rule not fetched because they returned no data several times in a row.", samples));
+      }
+    }
+
+    private void addCacheSamples(List<MetricFamilySamples> mfs) {
+      List<String> labelNames = Arrays.asList("cache_name");
+      List<MetricFamilySamples.Sample> usage = new ArrayList<MetricFamilySamples.Sample>();
+      List<MetricFamilySamples.Sample> bytes = new ArrayList<MetricFamilySamples.Sample>();
+      List<MetricFamilySamples.Sample> maxBytes = new ArrayList<MetricFamilySamples.Sample>();
+      List<MetricFamilySamples.Sample> hitRatio = new ArrayList<MetricFamilySamples.Sample>();
+      List<MetricFamilySamples.Sample> hitCount = new ArrayList<MetricFamilySamples.Sample>();
+      List<MetricFamilySamples.Sample> missCount = new ArrayList<MetricFamilySamples.Sample>();
+      List<MetricFamilySamples.Sample> evictions = new ArrayList<MetricFamilySamples.Sample>();
+      List<MetricFamilySamples.Sample> loads = new ArrayList<MetricFamilySamples.Sample>();
+      List<MetricFamilySamples.Sample> loadSeconds = new ArrayList<MetricFamilySamples.Sample>();
+      List<MetricFamilySamples.Sample> remoteHits = new ArrayList<MetricFamilySamples.Sample>();
+      List<MetricFamilySamples.Sample> remoteMisses = new ArrayList<MetricFamilySamples.Sample>();
+      List<MetricFamilySamples.Sample> remoteErrors = new ArrayList<MetricFamilySamples.Sample>();
+      List<MetricFamilySamples.Sample> lockWaits = new ArrayList<MetricFamilySamples.Sample>();
+      for (CacheProvider.Stats stats : CacheProvider.stats()) {
+        List<String> labelValues = Arrays.asList(stats.name);
+        usage.add(new MetricFamilySamples.Sample("cloudwatch_exporter_cache_usage", labelNames, labelValues, stats.size));
+        bytes.add(new MetricFamilySamples.Sample("cloudwatch_exporter_cache_bytes", labelNames, labelValues, stats.weightBytes));
+        maxBytes.add(new MetricFamilySamples.Sample("cloudwatch_exporter_cache_max_bytes", labelNames, labelValues, stats.maxBytes));
+        hitRatio.add(new MetricFamilySamples.Sample("cloudwatch_exporter_cache_hitratio", labelNames, labelValues, stats.hitRatio()));
+        hitCount.add(new MetricFamilySamples.Sample("cloudwatch_exporter_cache_hitcount", labelNames, labelValues, stats.hits));
+        missCount.add(new MetricFamilySamples.Sample("cloudwatch_exporter_cache_misscount", labelNames, labelValues, stats.misses));
+        evictions.add(new MetricFamilySamples.Sample("cloudwatch_exporter_cache_evictions_total", labelNames, labelValues, stats.evictions));
+        loads.add(new MetricFamilySamples.Sample("cloudwatch_exporter_cache_loads_total", labelNames, labelValues, stats.loads));
+        loadSeconds.add(new MetricFamilySamples.Sample("cloudwatch_exporter_cache_load_seconds_total", labelNames, labelValues, stats.loadSeconds));
+        remoteHits.add(new MetricFamilySamples.Sample("cloudwatch_exporter_cache_remote_hits_total", labelNames, labelValues, stats.remoteHits));
+        remoteMisses.add(new MetricFamilySamples.Sample("cloudwatch_exporter_cache_remote_misses_total", labelNames, labelValues, stats.remoteMisses));
+        remoteErrors.add(new MetricFamilySamples.Sample("cloudwatch_exporter_cache_remote_errors_total", labelNames, labelValues, stats.remoteErrors));
+        lockWaits.add(new MetricFamilySamples.Sample("cloudwatch_exporter_cache_remote_lock_waits_total", labelNames, labelValues, stats.lockWaits));
+      }
+      mfs.add(new MetricFamilySamples("cloudwatch_exporter_cache_usage", Type.GAUGE, "Entries in the cache.", usage));
+      mfs.add(new MetricFamilySamples("cloudwatch_exporter_cache_bytes", Type.GAUGE, "Estimated bytes the cache holds in this exporter: heap for the in_process and ehcache backends, "
+          + "direct buffer bytes of live entries for off_heap. Entries in the remote tier are not counted.", bytes));
+      mfs.add(new MetricFamilySamples("cloudwatch_exporter_cache_max_bytes", Type.GAUGE, "Byte budget of the cache.", maxBytes));
+      mfs.add(new MetricFamilySamples("cloudwatch_exporter_cache_hitratio", Type.GAUGE, "Cache Hit Ratio.", hitRatio));
+      mfs.add(new MetricFamilySamples("cloudwatch_exporter_cache_hitcount", Type.COUNTER, "Cache Hit Count.", hitCount));
+      mfs.add(new MetricFamilySamples("cloudwatch_exporter_cache_misscount", Type.COUNTER, "Cache Miss Count.", missCount));
+      mfs.add(new MetricFamilySamples("cloudwatch_exporter_cache_evictions_total", Type.COUNTER, "Entries evicted to stay within the byte budget.", evictions));
+      mfs.add(new MetricFamilySamples("cloudwatch_exporter_cache_loads_total", Type.COUNTER, "Values loaded into the cache by a loader, including background refreshes.", loads));
+      mfs.add(new MetricFamilySamples("cloudwatch_exporter_cache_load_seconds_total", Type.COUNTER, "Time spent loading values into the cache.", loadSeconds));
+      mfs.add(new MetricFamilySamples("cloudwatch_exporter_cache_remote_hits_total", Type.COUNTER, "Values taken from the remote cache tier instead of being loaded.", remoteHits));
+      mfs.add(new MetricFamilySamples("cloudwatch_exporter_cache_remote_misses_total", Type.COUNTER, "Values loaded here because the remote cache tier had none.", remoteMisses));
+      mfs.add(new MetricFamilySamples("cloudwatch_exporter_cache_remote_errors_total", Type.COUNTER, "Failed calls to the remote cache tier.", remoteErrors));
+      mfs.add(new MetricFamilySamples("cloudwatch_exporter_cache_remote_lock_waits_total", Type.COUNTER, "Loads that waited for another exporter holding the remote lock.", lockWaits));
+    }
+
+    private void addCostSamples(List<MetricFamilySamples> mfs) {
+      List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
+      for (ApiAccounting.RuleCost cost : apiAccounting.costs()) {
+        samples.add(new MetricFamilySamples.Sample(
+            "cloudwatch_exporter_estimated_cost_dollars_per_hour", RULE_LABEL_NAMES, cost.rule, cost.dollarsPerHour));
+      }
+      if (!samples.isEmpty()) {
+        mfs.add(new MetricFamilySamples("cloudwatch_exporter_estimated_cost_dollars_per_hour", Type.GAUGE,
+            "Estimated CloudWatch API cost of this rule, from its billed calls in the last hour and api_prices.", samples));
+      }
+    }
+
+    private void addResourceUsageSamples(List<MetricFamilySamples> mfs, ResourceUsage scrapeUsage, Map<MetricRule, ResourceUsage> ruleUsage) {
+      List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
       samples.add(new MetricFamilySamples.Sample(
-          "cloudwatch_exporter_cache_hitcount", Arrays.asList("cache_name"), Arrays.asList(ES_CACHE), CacheProvider.getStatistics(ES_CACHE).cacheHitCount()));
-      mfs.add(new MetricFamilySamples("cloudwatch_exporter_cache_hitcount", Type.COUNTER, "Cache Hit Count.", samples));
-      
+          "cloudwatch_exporter_scrape_cpu_seconds", new ArrayList<String>(), new ArrayList<String>(), scrapeUsage.cpuSeconds()));
+      mfs.add(new MetricFamilySamples("cloudwatch_exporter_scrape_cpu_seconds", Type.GAUGE, "Thread CPU time this CloudWatch scrape used, in seconds.", samples));
+
       samples = new ArrayList<MetricFamilySamples.Sample>();
       samples.add(new MetricFamilySamples.Sample(
-          "cloudwatch_exporter_cache_misscount", Arrays.asList("cache_name"), Arrays.asList(DIMENSIONS_CACHE), CacheProvider.getStatistics(DIMENSIONS_CACHE).cacheMissCount()));
-      samples.add(new MetricFamilySamples.Sample(
-          "cloudwatch_exporter_cache_misscount", Arrays.asList("cache_name"), Arrays.asList(METRICS_CACHE), CacheProvider.getStatistics(METRICS_CACHE).cacheMissCount()));
-      samples.add(new MetricFamilySamples.Sample(
-          "cloudwatch_exporter_cache_misscount", Arrays.asList("cache_name"), Arrays.asList(ES_CACHE), CacheProvider.getStatistics(ES_CACHE).cacheMissCount()));
-      mfs.add(new MetricFamilySamples("cloudwatch_exporter_cache_misscount", Type.COUNTER, "Cache Miss Count.", samples));
-      return mfs;
+          "cloudwatch_exporter_scrape_allocated_bytes", new ArrayList<String>(), new ArrayList<String>(), scrapeUsage.allocatedBytes()));
+      mfs.add(new MetricFamilySamples("cloudwatch_exporter_scrape_allocated_bytes", Type.GAUGE, "Heap bytes allocated by this CloudWatch scrape.", samples));
+
+      List<MetricFamilySamples.Sample> cpuSamples = new ArrayList<MetricFamilySamples.Sample>();
+      List<MetricFamilySamples.Sample> allocatedSamples = new ArrayList<MetricFamilySamples.Sample>();
+      synchronized (ruleUsage) {
+        for (Map.Entry<MetricRule, ResourceUsage> entry : ruleUsage.entrySet()) {
+          List<String> labelValues = ruleLabelValues(entry.getKey());
+          cpuSamples.add(new MetricFamilySamples.Sample(
+              "cloudwatch_exporter_rule_cpu_seconds", RULE_LABEL_NAMES, labelValues, entry.getValue().cpuSeconds()));
+          allocatedSamples.add(new MetricFamilySamples.Sample(
+              "cloudwatch_exporter_rule_allocated_bytes", RULE_LABEL_NAMES, labelValues, entry.getValue().allocatedBytes()));
+        }
+      }
+      if (!cpuSamples.isEmpty()) {
+        mfs.add(new MetricFamilySamples("cloudwatch_exporter_rule_cpu_seconds", Type.GAUGE, "Thread CPU time each rule used in this scrape, in seconds.", cpuSamples));
+        mfs.add(new MetricFamilySamples("cloudwatch_exporter_rule_allocated_bytes", Type.GAUGE, "Heap bytes each rule allocated in this scrape.", allocatedSamples));
+      }
     }
-	
+
+    /**
+     * Label values identifying a rule in the exporter's own metrics, matching {@link #RULE_LABEL_NAMES}.
+     */
+    static List<String> ruleLabelValues(MetricRule rule) {
+      String dimensions = rule.awsDimensions == null ? "" : String.join(",", rule.awsDimensions);
+      return Arrays.asList(rule.awsNamespace, rule.awsMetricName, dimensions);
+    }
+
     static String readFile(String path) throws IOException {
         byte[] encoded = Files.readAllBytes(Paths.get(path));
         return new String(encoded);
@@ -0,0 +1,137 @@
+package io.prometheus.cloudwatch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.prometheus.cloudwatch.CloudWatchCollector.ActiveConfig;
+import io.prometheus.cloudwatch.CloudWatchCollector.MetricRule;
+import io.prometheus.cloudwatch.CloudWatchCollector.ResourceMapping;
+
+/**
+ * What a configuration reload changed.
+ *
+ * Rules are matched on namespace, metric name, dimensions and statistics. A matched rule whose
+ * selectors, tag selectors, period, range, delay, help or series limit differ is reported as changed; {@link #changedRules}
+ * holds the old definitions, as those are what cached entries were built from.
+ */
+class ConfigDiff {
+
+    final List<MetricRule> addedRules = new ArrayList<MetricRule>();
+    final List<MetricRule> removedRules = new ArrayList<MetricRule>();
+    final List<MetricRule> changedRules = new ArrayList<MetricRule>();
+    final List<ResourceMapping> changedMappings = new ArrayList<ResourceMapping>();
+    // Why a new CloudWatch client was built, or null if the client was kept.
+    String clientChange;
+
+    static ConfigDiff between(ActiveConfig old, ActiveConfig updated) {
+        ConfigDiff diff = new ConfigDiff();
+        if (old.client != updated.client) {
+            diff.clientChange = clientChange(old, updated);
+        }
+
+        Map<String, MetricRule> oldRules = indexRules(old.rules);
+        Map<String, MetricRule> newRules = indexRules(updated.rules);
+        for (Map.Entry<String, MetricRule> entry : oldRules.entrySet()) {
+            MetricRule replacement = newRules.get(entry.getKey());
+            if (replacement == null) {
+                diff.removedRules.add(entry.getValue());
+            } else if (!definition(entry.getValue()).equals(definition(replacement))) {
+                diff.changedRules.add(entry.getValue());
+            }
+        }
+        for (Map.Entry<String, MetricRule> entry : newRules.entrySet()) {
+            if (!oldRules.containsKey(entry.getKey())) {
+                diff.addedRules.add(entry.getValue());
+            }
+        }
+
+        for (ResourceMapping mapping : old.mappings.values()) {
+            ResourceMapping replacement = updated.mappings.get(mapping.resourceType);
+            if (replacement == null || !definition(mapping).equals(definition(replacement))) {
+                diff.changedMappings.add(mapping);
+            }
+        }
+        return diff;
+    }
+
+    boolean isEmpty() {
+        return addedRules.isEmpty() && removedRules.isEmpty() && changedRules.isEmpty()
+                && changedMappings.isEmpty() && clientChange == null;
+    }
+
+    @Override
+    public String toString() {
+        if (isEmpty()) {
+            return "No changes\n";
+        }
+        StringBuilder sb = new StringBuilder();
+        describe(sb, "Added", addedRules);
+        describe(sb, "Removed", removedRules);
+        describe(sb, "Changed", changedRules);
+        for (ResourceMapping mapping : changedMappings) {
+            sb.append("Changed mapping: ").append(mapping.resourceType).append('\n');
+        }
+        if (clientChange != null) {
+            sb.append("New CloudWatch client: ").append(clientChange).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String clientChange(ActiveConfig old, ActiveConfig updated) {
+        List<String> reasons = new ArrayList<String>();
+        if (!old.region.equals(updated.region)) {
+            reasons.add("changed region");
+        }
+        if (old.roleArn == null ? updated.roleArn != null : !old.roleArn.equals(updated.roleArn)) {
+            reasons.add("changed role_arn");
+        }
+        if (reasons.isEmpty() && updated.sharedClient.maxConnections > old.sharedClient.maxConnections) {
+            reasons.add("connection pool grown to " + updated.sharedClient.maxConnections + " for max_requests_in_flight");
+        }
+        if (reasons.isEmpty()) {
+            reasons.add("supplied by the caller");
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String reason : reasons) {
+            sb.append(sb.length() == 0 ? "" : ", ").append(reason);
+        }
+        return sb.toString();
+    }
+
+    private static void describe(StringBuilder sb, String change, List<MetricRule> rules) {
+        for (MetricRule rule : rules) {
+            sb.append(change).append(" rule: ").append(identity(rule)).append('\n');
+        }
+    }
+
+    private static Map<String, MetricRule> indexRules(List<MetricRule> rules) {
+        Map<String, MetricRule> index = new LinkedHashMap<String, MetricRule>();
+        for (MetricRule rule : rules) {
+            index.put(identity(rule), rule);
+        }
+        return index;
+    }
+
+    static String identity(MetricRule rule) {
+        return rule.awsNamespace + " " + rule.awsMetricName + " " + listOrEmpty(rule.awsDimensions)
+                + " " + listOrEmpty(rule.awsStatistics) + " " + listOrEmpty(rule.awsExtendedStatistics);
+    }
+
+    private static String definition(MetricRule rule) {
+        return identity(rule) + " " + rule.awsDimensionSelect + " " + rule.awsDimensionSelectRegex
+                + " " + rule.periodSeconds + " " + rule.rangeSeconds + " " + rule.delaySeconds + " " + rule.help
+                + " " + rule.tagSelect + " " + rule.maxSeries + " " + rule.rankByMetricName + " " + rule.rankByStatistic + " " + rule.rollup;
+    }
+
+    private static String definition(ResourceMapping mapping) {
+        return mapping.resourceIDField + " " + mapping.esResourceIDField + " " + mapping.lookupURL
+                + " " + mapping.additionalLabels + " " + mapping.inventoryDiscovery + " " + mapping.inventoryVerifyHours;
+    }
+
+    private static List<String> listOrEmpty(List<String> list) {
+        return list == null ? Collections.<String>emptyList() : list;
+    }
+}
@@ -0,0 +1,104 @@
+package io.prometheus.cloudwatch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reloads the configuration when the config file changes.
+ *
+ * Watches the file's directory rather than the file, so replacing the file, as editors and
+ * Kubernetes ConfigMap updates do, is seen as well. Events are debounced so a burst of writes
+ * causes a single reload.
+ */
+class ConfigFileWatcher implements Runnable {
+    private static final Logger LOGGER = Logger.getLogger(CloudWatchCollector.class.getName());
+
+    private static final long DEBOUNCE_MILLIS = 1000;
+
+    private final CloudWatchCollector collector;
+    private final File file;
+    private final WatchService watchService;
+
+    private ConfigFileWatcher(CloudWatchCollector collector, File file, WatchService watchService) {
+        this.collector = collector;
+        this.file = file;
+        this.watchService = watchService;
+    }
+
+    /**
+     * Starts watching in a daemon thread. Does nothing if the config is not a local file, e.g. a URL.
+     */
+    protected static void start(CloudWatchCollector collector, String configFilePath) {
+        File file = new File(configFilePath).getAbsoluteFile();
+        if (!file.isFile()) {
+            LOGGER.log(Level.INFO, "Config is not a local file, reload on change disabled: " + configFilePath);
+            return;
+        }
+        try {
+            WatchService watchService = FileSystems.getDefault().newWatchService();
+            file.getParentFile().toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            Thread thread = new Thread(new ConfigFileWatcher(collector, file, watchService), "config-file-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not watch config file, reload on change disabled", e);
+        }
+    }
+
+    public void run() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            boolean changed = affectsFile(key);
+            key.reset();
+            if (!changed) {
+                continue;
+            }
+            try {
+                Thread.sleep(DEBOUNCE_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            drainPendingEvents();
+            try {
+                collector.reloadConfig();
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Configuration reload failed", e);
+            }
+        }
+    }
+
+    private boolean affectsFile(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            Object context = event.context();
+            // ConfigMaps swap a ..data symlink instead of touching the file itself.
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || (context instanceof Path
+                    && (((Path) context).toString().equals(file.getName()) || ((Path) context).toString().startsWith("..")))) {
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private void drainPendingEvents() {
+        WatchKey key;
+        while ((key = watchService.poll()) != null) {
+            key.pollEvents();
+            key.reset();
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package io.prometheus.cloudwatch;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Serves /debug/cost: the estimated CloudWatch API cost per hour, per rule, most expensive first.
+ */
+public class CostServlet extends HttpServlet {
+    private final CloudWatchCollector collector;
+
+    public CostServlet(CloudWatchCollector collector) {
+        this.collector = collector;
+    }
+
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        resp.setContentType("text/plain");
+        resp.getWriter().print(collector.apiAccounting.summary());
+    }
+}
@@ -23,9 +23,18 @@ public class DynamicReloadServlet extends HttpServlet {
     }
 
     protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-        collector.reloadConfig();
+        ConfigDiff diff;
+        try {
+            diff = collector.reloadConfig();
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Configuration reload failed", e);
+            resp.setStatus(500);
+            resp.setContentType("text/plain");
+            resp.getWriter().print("Configuration reload failed: " + e.getMessage() + "\n");
+            return;
+        }
 
         resp.setContentType("text/plain");
-        resp.getWriter().print("RELOAD NOT SUPPORTED IN THIS VERSION");
+        resp.getWriter().print(diff);
     }
 }
@@ -7,7 +7,9 @@ import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
@@ -18,7 +20,6 @@ import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocket;
 
 import org.apache.http.client.HttpClient;
-import org.apache.http.conn.ClientConnectionManager;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
@@ -26,7 +27,9 @@ import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.conn.ssl.TrustStrategy;
 import org.apache.http.conn.ssl.X509HostnameVerifier;
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.SingleClientConnManager;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 import com.mashape.unirest.http.JsonNode;
@@ -41,6 +44,14 @@ public class ESClient {
     private static final String TAGS_PREFIX = "tags.";
     private static final String[] TAG_NAMES = { "tags.Environment", "tags.Stack", "tags.Application", "tags.Role", "tags.WorkLoad", "accountname", "region"};
 
+    private static final String PROXY_URL = "https://search.pacman.corporate.t-mobile.com/api/console/proxy?path=";
+
+    static final int INVENTORY_PAGE_SIZE = 1000;
+
+    static {
+        Unirest.setHttpClient(makeClient());
+    }
+
     public static void main(String[] args) throws UnirestException, KeyManagementException, NoSuchAlgorithmException, KeyStoreException {
         String fieldName = "autoscalinggroupname";
         String fieldValue = "mya-mesos-spark-test-01-MesosSparkAsg-172ZF4T9G49GO";
@@ -50,28 +61,42 @@ public class ESClient {
     }
 
     public static Map<String, String> findTagsForResource(String fieldName, String fieldValue, String esPath, List<String> additionalLabels) {
+        try {
+            return lookupTags(fieldName, fieldValue, esPath, additionalLabels);
+        } catch (UnirestException e) {
+            // TODO Log Error
+                LOGGER.warning("Error connecting to Pacman API: " + e.getMessage());
+                LOGGER.info("Inside Catch due to error" + e.getMessage());
+            return defaultTags(additionalLabels);
+        }
+    }
+
+    /**
+     * Tags with every value UNTAGGED, as served when the lookup fails.
+     */
+    static Map<String, String> defaultTags(List<String> additionalLabels) {
         Map<String, String> tags = defaultEmptyTags(TAG_NAMES, additionalLabels);
         tags.put("Resource_type", WebServer.resourceType);
+        return tags;
+    }
+
+    /**
+     * Like {@link #findTagsForResource} but reports a failed request rather than falling back to default tags,
+     * so callers such as {@link TagLookup} can tell failures apart.
+     */
+    static Map<String, String> lookupTags(String fieldName, String fieldValue, String esPath, List<String> additionalLabels) throws UnirestException {
+        Map<String, String> tags = defaultTags(additionalLabels);
         LOGGER.info(" Resource type is : " + WebServer.resourceType);
         LOGGER.info("FieldName: " + fieldName + "   FieldValue: " + fieldValue);
-        Unirest.setHttpClient(makeClient());
         String updatedfieldValue = fieldValue;
         String elasticache = "aws/elasticache";
         if(esPath.equals(elasticache)) {
               updatedfieldValue = RemoveNumbers(fieldValue);
         }
         String sb = buildQuery(fieldName.toLowerCase(), updatedfieldValue);
-        JsonNode node;
-        try {
        //       LOGGER.info("## Connecting to ES " + fieldValue + " " + fieldName);
-            node = Unirest.post("https://search.pacman.corporate.t-mobile.com/api/console/proxy?path=" + esPath.toLowerCase() + "/_search&method=POST").header("kbn-xsrf", "1")
+        JsonNode node = Unirest.post(PROXY_URL + esPath.toLowerCase() + "/_search&method=POST").header("kbn-xsrf", "1")
                     .body(sb).asJson().getBody();
-        } catch (UnirestException e) {
-            // TODO Log Error
-                LOGGER.warning("Error connecting to Pacman API: " + e.getMessage());
-                LOGGER.info("Inside Catch due to error" + e.getMessage());
-            return tags;
-        }
         int totalResults = node.getObject().getJSONObject("hits").getInt("total");
         if(fieldValue =="PRD-SOC-WEB-CUS"){
         LOGGER.info("TotalResults=" + totalResults + "FieldName=" + fieldName + "FieldValue" + fieldValue + "updatedfieldvalue=" + updatedfieldValue);
@@ -97,6 +122,45 @@ public class ESClient {
         return tags;
     }
 
+    /**
+     * Lists the distinct values of the id field of all current resources in an inventory index, paging
+     * through them in id order.
+     */
+    static List<String> listResourceIds(String esPath, String idField) throws UnirestException {
+        String fieldName = idField.toLowerCase();
+        LinkedHashSet<String> ids = new LinkedHashSet<String>();
+        Object after = null;
+        while (true) {
+            JsonNode node = Unirest.post(PROXY_URL + esPath.toLowerCase() + "/_search&method=POST").header("kbn-xsrf", "1")
+                    .body(buildInventoryQuery(fieldName, after)).asJson().getBody();
+            JSONArray hits = node.getObject().getJSONObject("hits").getJSONArray("hits");
+            for (int i = 0; i < hits.length(); i++) {
+                JSONObject source = hits.getJSONObject(i).getJSONObject("_source");
+                if (source.has(fieldName)) {
+                    ids.add(source.getString(fieldName));
+                }
+            }
+            if (hits.length() < INVENTORY_PAGE_SIZE) {
+                break;
+            }
+            after = hits.getJSONObject(hits.length() - 1).getJSONArray("sort").get(0);
+        }
+        LOGGER.info("Inventory " + esPath + " lists " + ids.size() + " resources by " + fieldName);
+        return new ArrayList<String>(ids);
+    }
+
+    static String buildInventoryQuery(String fieldName, Object after) {
+        JSONObject query = new JSONObject();
+        query.put("size", INVENTORY_PAGE_SIZE);
+        query.put("_source", new JSONArray().put(fieldName));
+        query.put("query", new JSONObject().put("match", new JSONObject().put("latest", true)));
+        query.put("sort", new JSONArray().put(new JSONObject().put(fieldName + ".keyword", "asc")));
+        if (after != null) {
+            query.put("search_after", new JSONArray().put(after));
+        }
+        return query.toString();
+    }
+
     private static HashMap<String, String> defaultEmptyTags(String[] tagNames, List<String> additionalLabels) {
         HashMap<String, String> tags = new HashMap<String, String>();
         for (String tagName : tagNames) {
@@ -146,7 +210,21 @@ public class ESClient {
     return fieldValue;
     }
 
+    /**
+     * Installs one thread safe HTTP client for all lookups, instead of a new single connection client per lookup,
+     * which concurrent lookups would have raced on.
+     */
+    static synchronized void configureHttpClient(int maxConnections, long connectTimeoutMillis, long socketTimeoutMillis) {
+        Unirest.setHttpClient(makeClient(maxConnections, connectTimeoutMillis, socketTimeoutMillis));
+    }
+
     public static HttpClient makeClient() {
+        // Unirest's default timeouts.
+        return makeClient(1, 10000, 60000);
+    }
+
+    // Unirest refuses timeouts for a custom client, so they are set on the client itself.
+    private static HttpClient makeClient(int maxConnections, long connectTimeoutMillis, long socketTimeoutMillis) {
         SchemeRegistry schemeRegistry = new SchemeRegistry();
         schemeRegistry.register(new Scheme("http", 80, PlainSocketFactory.getSocketFactory()));
         try {
@@ -160,8 +238,12 @@ public class ESClient {
         } catch (KeyStoreException e) {
             e.printStackTrace();
         }
-        ClientConnectionManager cm = new SingleClientConnManager(schemeRegistry);
+        PoolingClientConnectionManager cm = new PoolingClientConnectionManager(schemeRegistry);
+        cm.setMaxTotal(maxConnections);
+        cm.setDefaultMaxPerRoute(maxConnections);
         DefaultHttpClient httpclient = new DefaultHttpClient(cm);
+        HttpConnectionParams.setConnectionTimeout(httpclient.getParams(), (int) connectTimeoutMillis);
+        HttpConnectionParams.setSoTimeout(httpclient.getParams(), (int) socketTimeoutMillis);
         return httpclient;
     }
 
@@ -0,0 +1,95 @@
+package io.prometheus.cloudwatch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.MemoryUnit;
+
+/**
+ * Adapter for ehcache 2, which sizes entries itself with its SizeOf engine instead of using the
+ * estimated weights.
+ */
+class EhcacheStore implements CacheStore {
+
+    static final Factory FACTORY = new Factory() {
+        public CacheStore create(String name, long maxBytes) {
+            return new EhcacheStore(name, maxBytes);
+        }
+    };
+
+    private static CacheManager cm;
+
+    private final Cache cache;
+
+    EhcacheStore(String name, long maxBytes) {
+        CacheManager manager = manager();
+        manager.removeCache(name);
+        manager.addCache(new Cache(new CacheConfiguration().name(name).maxBytesLocalHeap(maxBytes, MemoryUnit.BYTES)));
+        cache = manager.getCache(name);
+    }
+
+    private static synchronized CacheManager manager() {
+        if (cm == null) {
+            cm = new CacheManager();
+        }
+        return cm;
+    }
+
+    public Entry get(String key) {
+        Element element = cache.get(key);
+        return element == null ? null : (Entry) element.getObjectValue();
+    }
+
+    public void put(String key, Entry entry, long weightBytes, int ttlSeconds) {
+        Element element = new Element(key, entry);
+        element.setTimeToLive(Math.max(ttlSeconds, 1));
+        cache.put(element);
+    }
+
+    public void remove(String key) {
+        cache.remove(key);
+    }
+
+    public int removeByPrefix(String prefix) {
+        List<Object> stale = new ArrayList<Object>();
+        for (Object key : cache.getKeys()) {
+            if (key instanceof String && ((String) key).startsWith(prefix)) {
+                stale.add(key);
+            }
+        }
+        cache.removeAll(stale);
+        return stale.size();
+    }
+
+    public void clear() {
+        cache.removeAll();
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        cache.getCacheConfiguration().setMaxBytesLocalHeap(maxBytes);
+    }
+
+    public long maxBytes() {
+        return cache.getCacheConfiguration().getMaxBytesLocalHeap();
+    }
+
+    public long size() {
+        return cache.getSize();
+    }
+
+    public long weightBytes() {
+        return cache.getStatistics().getLocalHeapSizeInBytes();
+    }
+
+    public long evictions() {
+        return cache.getStatistics().cacheEvictedCount();
+    }
+
+    public void close() {
+        manager().removeCache(cache.getName());
+    }
+}
@@ -15,6 +15,8 @@ public class HomePageServlet extends HttpServlet {
                 + "<body>\n"
                 + "<h1>CloudWatch Exporter</h1>\n"
                 + "<p><a href=\"/metrics\">Metrics</a></p>\n"
+                + "<p><a href=\"/debug/cost\">API cost</a></p>\n"
+                + "<p><a href=\"/-/ready\">Readiness</a></p>\n"
                 + "</body>\n"
                 + "</html>");
     }
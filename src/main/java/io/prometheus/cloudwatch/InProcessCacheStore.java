@@ -0,0 +1,226 @@
+package io.prometheus.cloudwatch;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Least recently used cache bounded by estimated bytes.
+ *
+ * Keys are spread over independently locked stripes, so concurrent fetches rarely wait on each other.
+ * The budget is shared by all stripes: eviction takes the least recently used entry of each stripe in
+ * turn, so a single entry, such as the dimensions of a large account, may use up to the whole budget.
+ * Expired entries are dropped when they are read or when eviction reaches them.
+ */
+class InProcessCacheStore implements CacheStore {
+
+    static final Factory FACTORY = new Factory() {
+        public CacheStore create(String name, long maxBytes) {
+            return new InProcessCacheStore(maxBytes);
+        }
+    };
+
+    private static final int STRIPES = 16;
+
+    private static final class Node {
+        final Entry entry;
+        final long weight;
+        final long expiresAtMillis;
+
+        Node(Entry entry, long weight, long expiresAtMillis) {
+            this.entry = entry;
+            this.weight = weight;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+
+    private static final class Stripe {
+        final LinkedHashMap<String, Node> map = new LinkedHashMap<String, Node>(16, 0.75f, true);
+        long evictions;
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final AtomicLong weight = new AtomicLong();
+    // Stripe eviction starts at, so that no stripe is emptied before the others.
+    private final AtomicInteger evictionCursor = new AtomicInteger();
+    private volatile long maxBytes;
+
+    InProcessCacheStore(long maxBytes) {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+        setMaxBytes(maxBytes);
+    }
+
+    private Stripe stripe(String key) {
+        int h = key.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    public Entry get(String key) {
+        Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            Node node = stripe.map.get(key);
+            if (node == null) {
+                return null;
+            }
+            if (node.expiresAtMillis <= System.currentTimeMillis()) {
+                stripe.map.remove(key);
+                weight.addAndGet(-node.weight);
+                return null;
+            }
+            return node.entry;
+        }
+    }
+
+    public void put(String key, Entry entry, long weightBytes, int ttlSeconds) {
+        Node node = new Node(entry, weightBytes, System.currentTimeMillis() + 1000L * Math.max(ttlSeconds, 1));
+        Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            if (weightBytes > maxBytes) {
+                // Could never fit, so nothing else is evicted for it.
+                Node old = stripe.map.remove(key);
+                if (old != null) {
+                    weight.addAndGet(-old.weight);
+                }
+                stripe.evictions++;
+                return;
+            }
+            Node old = stripe.map.put(key, node);
+            weight.addAndGet(old == null ? weightBytes : weightBytes - old.weight);
+        }
+        evict(key);
+    }
+
+    /**
+     * Evicts until the store is within its budget, the eldest entry of one stripe after another. The entry
+     * just put under keep goes last, only if it alone is over the budget.
+     */
+    private void evict(String keep) {
+        while (weight.get() > maxBytes) {
+            boolean evicted = false;
+            for (int i = 0; i < STRIPES && weight.get() > maxBytes; i++) {
+                Stripe stripe = stripes[evictionCursor.getAndIncrement() & (STRIPES - 1)];
+                synchronized (stripe) {
+                    Iterator<Map.Entry<String, Node>> eldest = stripe.map.entrySet().iterator();
+                    while (eldest.hasNext()) {
+                        Map.Entry<String, Node> entry = eldest.next();
+                        if (!entry.getKey().equals(keep)) {
+                            weight.addAndGet(-entry.getValue().weight);
+                            eldest.remove();
+                            stripe.evictions++;
+                            evicted = true;
+                            break;
+                        }
+                    }
+                }
+            }
+            if (!evicted) {
+                if (keep != null) {
+                    Stripe stripe = stripe(keep);
+                    synchronized (stripe) {
+                        Node node = stripe.map.remove(keep);
+                        if (node != null) {
+                            weight.addAndGet(-node.weight);
+                            stripe.evictions++;
+                        }
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    public void remove(String key) {
+        Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            Node old = stripe.map.remove(key);
+            if (old != null) {
+                weight.addAndGet(-old.weight);
+            }
+        }
+    }
+
+    public int removeByPrefix(String prefix) {
+        int removed = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                Iterator<Map.Entry<String, Node>> it = stripe.map.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<String, Node> entry = it.next();
+                    if (entry.getKey().startsWith(prefix)) {
+                        weight.addAndGet(-entry.getValue().weight);
+                        it.remove();
+                        removed++;
+                    }
+                }
+            }
+        }
+        return removed;
+    }
+
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (Node node : stripe.map.values()) {
+                    weight.addAndGet(-node.weight);
+                }
+                stripe.map.clear();
+            }
+        }
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict(null);
+    }
+
+    public long maxBytes() {
+        return maxBytes;
+    }
+
+    public long size() {
+        long size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.map.size();
+            }
+        }
+        return size;
+    }
+
+    public long weightBytes() {
+        return weight.get();
+    }
+
+    public long evictions() {
+        long evictions = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                evictions += stripe.evictions;
+            }
+        }
+        return evictions;
+    }
+
+    /**
+     * Keys currently held, for tests.
+     */
+    List<String> keys() {
+        List<String> keys = new ArrayList<String>();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                keys.addAll(stripe.map.keySet());
+            }
+        }
+        return keys;
+    }
+
+    public void close() {
+        clear();
+    }
+}
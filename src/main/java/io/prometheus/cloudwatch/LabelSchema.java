@@ -0,0 +1,125 @@
+package io.prometheus.cloudwatch;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+
+/**
+ * Label names and values of a rule's samples: job, an empty instance, the series' dimensions and the
+ * tags of its resource, in that order.
+ *
+ * The names are the same for nearly every series of a rule, as its dimension sets list the same names
+ * in the same order and {@link ResourceLabels} share one names list per set of tag keys. So the schema
+ * keeps the names it built last and hands out that one immutable list while dimension names and tag
+ * names list match it; a series only allocates the array of its values.
+ */
+final class LabelSchema {
+
+    private static final class Layout {
+        final String[] dimensionNames;
+        final List<String> tagNames;
+        final List<String> labelNames;
+
+        Layout(List<Dimension> dimensions, List<String> tagNames, LabelSchema schema) {
+            this.dimensionNames = new String[dimensions.size()];
+            this.tagNames = tagNames;
+            String[] names = new String[2 + dimensions.size() + tagNames.size()];
+            names[0] = "job";
+            names[1] = "instance";
+            for (int i = 0; i < dimensionNames.length; i++) {
+                dimensionNames[i] = dimensions.get(i).getName();
+                names[2 + i] = schema.dimensionLabel(dimensionNames[i]);
+            }
+            for (int i = 0; i < tagNames.size(); i++) {
+                names[2 + dimensionNames.length + i] = tagNames.get(i);
+            }
+            this.labelNames = Collections.unmodifiableList(Arrays.asList(names));
+        }
+
+        boolean matches(List<Dimension> dimensions, List<String> tagNames) {
+            if (this.tagNames != tagNames || dimensionNames.length != dimensions.size()) {
+                return false;
+            }
+            for (int i = 0; i < dimensionNames.length; i++) {
+                if (!dimensionNames[i].equals(dimensions.get(i).getName())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final String jobName;
+    // Sanitized label of the mapping's id_field, or null if the rule's namespace has no mapping.
+    private final String resourceLabel;
+    private final Map<String, String> dimensionLabels = new HashMap<String, String>();
+    private volatile Layout last;
+
+    LabelSchema(String awsNamespace, List<String> awsDimensions, String resourceIDField) {
+        this.jobName = CloudWatchCollector.safeName(awsNamespace.toLowerCase());
+        this.resourceLabel = resourceIDField == null ? null : CloudWatchCollector.safeName(CloudWatchCollector.toSnakeCase(resourceIDField));
+        if (awsDimensions != null) {
+            for (String name : awsDimensions) {
+                dimensionLabels.put(name, CloudWatchCollector.safeName(CloudWatchCollector.toSnakeCase(name)));
+            }
+        }
+    }
+
+    boolean hasResource() {
+        return resourceLabel != null;
+    }
+
+    /**
+     * Label name of a dimension; precomputed for the rule's own dimensions.
+     */
+    String dimensionLabel(String name) {
+        String label = dimensionLabels.get(name);
+        return label != null ? label : CloudWatchCollector.safeName(CloudWatchCollector.toSnakeCase(name));
+    }
+
+    /**
+     * Position of the dimension holding the resource ID, or -1 if there is none.
+     */
+    int resourceIndex(List<Dimension> dimensions) {
+        int index = -1;
+        if (resourceLabel != null) {
+            for (int i = 0; i < dimensions.size(); i++) {
+                if (dimensionLabel(dimensions.get(i).getName()).equalsIgnoreCase(resourceLabel)) {
+                    index = i;
+                }
+            }
+        }
+        return index;
+    }
+
+    List<String> labelNames(List<Dimension> dimensions, ResourceLabels tags) {
+        Layout layout = last;
+        if (layout == null || !layout.matches(dimensions, tags.getNames())) {
+            layout = new Layout(dimensions, tags.getNames(), this);
+            last = layout;
+        }
+        return layout.labelNames;
+    }
+
+    /**
+     * Values in the order of {@link #labelNames}, with the resource dimension's value replaced by the
+     * resource name its tags were found by.
+     */
+    List<String> labelValues(List<Dimension> dimensions, int resourceIndex, String resourceName, ResourceLabels tags) {
+        List<String> tagValues = tags.getValues();
+        String[] values = new String[2 + dimensions.size() + tagValues.size()];
+        values[0] = jobName;
+        values[1] = "";
+        for (int i = 0; i < dimensions.size(); i++) {
+            values[2 + i] = i == resourceIndex ? resourceName : dimensions.get(i).getValue();
+        }
+        for (int i = 0; i < tagValues.size(); i++) {
+            values[2 + dimensions.size() + i] = tagValues.get(i);
+        }
+        return Arrays.asList(values);
+    }
+}
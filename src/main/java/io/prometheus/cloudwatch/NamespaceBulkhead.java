@@ -0,0 +1,173 @@
+package io.prometheus.cloudwatch;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import io.prometheus.client.Counter;
+
+/**
+ * Fetch threads and CloudWatch request rate of one namespace, so a namespace that is slow, huge or
+ * throttled only delays its own rules: its discovery and fetches queue on its own pool, and its
+ * requests draw on its own share of max_requests_per_second, never on another namespace's.
+ *
+ * The rate is a token bucket holding up to one second of requests. A request that would get its
+ * token only after the scrape deadline is not made, like any other request past the deadline.
+ */
+class NamespaceBulkhead {
+
+    private static final Counter rateLimitedSeconds = Counter.build()
+            .name("cloudwatch_exporter_rate_limited_seconds_total").labelNames("aws_namespace")
+            .help("Time CloudWatch requests waited for their namespace's share of max_requests_per_second.").register();
+
+    /**
+     * Limits of one namespace.
+     */
+    static class Settings {
+        final int maxRequestsInFlight;
+        // Zero for no limit.
+        final double requestsPerSecond;
+
+        Settings(int maxRequestsInFlight, double requestsPerSecond) {
+            this.maxRequestsInFlight = maxRequestsInFlight;
+            this.requestsPerSecond = requestsPerSecond;
+        }
+
+        @Override
+        public String toString() {
+            return "max_requests_in_flight=" + maxRequestsInFlight + " requests_per_second=" + requestsPerSecond;
+        }
+    }
+
+    static String key(String namespace) {
+        return namespace.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Settings of each namespace with rules, by {@link #key(String)}. A namespace's entry under namespaces can set
+     * max_requests_in_flight and request_share, its fraction of max_requests_per_second; namespaces without a
+     * request_share split what the others leave equally.
+     */
+    static Map<String, Settings> fromConfig(Map<String, Map<String, Object>> config, Collection<String> ruleNamespaces,
+            int maxRequestsInFlight, double maxRequestsPerSecond) {
+        // Namespaces differing only in case are one.
+        Map<String, String> unique = new LinkedHashMap<String, String>();
+        for (String namespace : ruleNamespaces) {
+            if (!unique.containsKey(key(namespace))) {
+                unique.put(key(namespace), namespace);
+            }
+        }
+        Collection<String> namespaces = unique.values();
+        Map<String, Map<String, Object>> byKey = new LinkedHashMap<String, Map<String, Object>>();
+        if (config != null) {
+            for (Map.Entry<String, Map<String, Object>> entry : config.entrySet()) {
+                byKey.put(key(entry.getKey()), entry.getValue() == null ? new LinkedHashMap<String, Object>() : entry.getValue());
+            }
+        }
+        Map<String, Object> none = new LinkedHashMap<String, Object>();
+        double explicitShare = 0;
+        int withoutShare = 0;
+        for (String namespace : namespaces) {
+            Map<String, Object> options = byKey.containsKey(key(namespace)) ? byKey.get(key(namespace)) : none;
+            if (options.containsKey("request_share")) {
+                double share = ((Number) options.get("request_share")).doubleValue();
+                if (share <= 0 || share > 1) {
+                    throw new IllegalArgumentException("request_share of " + namespace + " must be above 0 and at most 1");
+                }
+                explicitShare += share;
+            } else {
+                withoutShare++;
+            }
+        }
+        if (explicitShare > 1 + 1e-9) {
+            throw new IllegalArgumentException("request_share of all namespaces must add up to at most 1, not " + explicitShare);
+        }
+        Map<String, Settings> settings = new LinkedHashMap<String, Settings>();
+        for (String namespace : namespaces) {
+            Map<String, Object> options = byKey.containsKey(key(namespace)) ? byKey.get(key(namespace)) : none;
+            int inFlight = maxRequestsInFlight;
+            if (options.containsKey("max_requests_in_flight")) {
+                inFlight = ((Number) options.get("max_requests_in_flight")).intValue();
+                if (inFlight < 1) {
+                    throw new IllegalArgumentException("max_requests_in_flight of " + namespace + " must be at least 1");
+                }
+            }
+            double share = options.containsKey("request_share") ? ((Number) options.get("request_share")).doubleValue()
+                    : Math.max(0, 1 - explicitShare) / withoutShare;
+            double rate = maxRequestsPerSecond * share;
+            if (maxRequestsPerSecond > 0 && rate <= 0) {
+                throw new IllegalArgumentException("Namespace " + namespace + " has no request_share left of max_requests_per_second");
+            }
+            settings.put(key(namespace), new Settings(inFlight, rate));
+        }
+        return settings;
+    }
+
+    final String namespace;
+    final Settings settings;
+    final ExecutorService pool;
+    private final Counter.Child waited;
+    private double tokens;
+    private int holders;
+    private long refilledAtNanos = System.nanoTime();
+
+    NamespaceBulkhead(String namespace, Settings settings) {
+        this.namespace = namespace;
+        this.settings = settings;
+        this.pool = Executors.newFixedThreadPool(settings.maxRequestsInFlight, new DaemonThreadFactory("cloudwatch-fetch-" + key(namespace)));
+        this.waited = rateLimitedSeconds.labels(namespace);
+        this.tokens = Math.max(1, settings.requestsPerSecond);
+    }
+
+    /**
+     * Waits until the namespace may make another CloudWatch request. Returns false without waiting if that
+     * would take remainingMillis or longer; Long.MAX_VALUE always waits.
+     */
+    boolean acquire(long remainingMillis) throws InterruptedException {
+        if (settings.requestsPerSecond <= 0) {
+            return true;
+        }
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            double burst = Math.max(1, settings.requestsPerSecond);
+            tokens = Math.min(burst, tokens + (now - refilledAtNanos) / 1.0E9 * settings.requestsPerSecond);
+            refilledAtNanos = now;
+            waitNanos = tokens >= 1 ? 0 : (long) ((1 - tokens) / settings.requestsPerSecond * 1.0E9);
+            if (waitNanos > 0 && TimeUnit.NANOSECONDS.toMillis(waitNanos) >= remainingMillis) {
+                return false;
+            }
+            // Later callers queue behind this reservation.
+            tokens -= 1;
+        }
+        if (waitNanos > 0) {
+            waited.inc(waitNanos / 1.0E9);
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+        return true;
+    }
+
+    /**
+     * Counts a config holding this bulkhead. Configs reusing it across reloads each hold it.
+     */
+    synchronized void retain() {
+        holders++;
+    }
+
+    /**
+     * Drops a config's hold, once no scrape uses that config any more. The pool shuts down with the last
+     * hold; requests already queued still run and fill the cache.
+     */
+    void release() {
+        synchronized (this) {
+            if (--holders > 0) {
+                return;
+            }
+        }
+        pool.shutdown();
+    }
+}
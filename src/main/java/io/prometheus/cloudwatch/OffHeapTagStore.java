@@ -0,0 +1,264 @@
+package io.prometheus.cloudwatch;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps resource tags in a direct buffer outside the Java heap, for the es cache.
+ *
+ * Tags of the same resources stay cached for hours, so on the heap they end up in the old generation,
+ * where every full collection has to walk them. Here each entry is one compactly encoded record in a
+ * direct buffer that is cut into segments and filled one segment after the other; once the buffer is
+ * full the oldest segment is reused and the entries still in it are evicted. Only the key index stays
+ * on the heap. Records are decoded into {@link ResourceLabels} when a scrape reads them, with names
+ * and values going through the label dictionary.
+ *
+ * Record layout: record length (int), expiry and store time (longs, epoch millis), then the key and
+ * each label name and value as a varint of the length plus one (zero for null) followed by UTF-8 bytes,
+ * the labels preceded by their count.
+ */
+class OffHeapTagStore implements CacheStore {
+
+    static final Factory FACTORY = new Factory() {
+        public CacheStore create(String name, long maxBytes) {
+            return new OffHeapTagStore(maxBytes);
+        }
+    };
+
+    private static final int SEGMENTS = 16;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Map<String, Integer> index = new HashMap<String, Integer>();
+    private final int[] segmentEnds = new int[SEGMENTS];
+    private ByteBuffer buffer;
+    private int segmentSize;
+    private int segment;
+    private long liveBytes;
+    private long evictions;
+
+    OffHeapTagStore(long maxBytes) {
+        allocate(maxBytes);
+    }
+
+    private void allocate(long maxBytes) {
+        segmentSize = (int) Math.min(maxBytes / SEGMENTS, Integer.MAX_VALUE / SEGMENTS);
+        buffer = ByteBuffer.allocateDirect(segmentSize * SEGMENTS);
+        index.clear();
+        Arrays.fill(segmentEnds, 0);
+        segment = 0;
+        liveBytes = 0;
+    }
+
+    public synchronized Entry get(String key) {
+        Integer offset = index.get(key);
+        if (offset == null) {
+            return null;
+        }
+        if (buffer.getLong(offset + 4) <= System.currentTimeMillis()) {
+            removeRecord(key, offset);
+            return null;
+        }
+        long storedAt = buffer.getLong(offset + 12);
+        buffer.position(offset + 20);
+        skip(readVarint() - 1);
+        int count = readVarint();
+        String[] names = new String[count];
+        String[] values = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = readString();
+            values[i] = readString();
+        }
+        return new Entry(ResourceLabels.decode(names, values), storedAt);
+    }
+
+    public synchronized void put(String key, Entry entry, long weightBytes, int ttlSeconds) {
+        if (!(entry.value instanceof ResourceLabels)) {
+            throw new IllegalArgumentException("The off-heap store only holds resource tags, not " + entry.value.getClass().getName());
+        }
+        byte[] record = encode(key, (ResourceLabels) entry.value,
+                System.currentTimeMillis() + 1000L * Math.max(ttlSeconds, 1), entry.storedAtMillis);
+        Integer old = index.remove(key);
+        if (old != null) {
+            liveBytes -= buffer.getInt(old);
+        }
+        if (record.length > segmentSize) {
+            return;
+        }
+        if (segmentEnds[segment] + record.length > segmentSize) {
+            segment = (segment + 1) % SEGMENTS;
+            evictSegment(segment);
+        }
+        int offset = segment * segmentSize + segmentEnds[segment];
+        buffer.position(offset);
+        buffer.put(record);
+        segmentEnds[segment] += record.length;
+        index.put(key, offset);
+        liveBytes += record.length;
+    }
+
+    private void evictSegment(int s) {
+        int offset = s * segmentSize;
+        int end = offset + segmentEnds[s];
+        while (offset < end) {
+            int length = buffer.getInt(offset);
+            buffer.position(offset + 20);
+            String key = readString();
+            Integer current = index.get(key);
+            if (current != null && current == offset) {
+                index.remove(key);
+                liveBytes -= length;
+                evictions++;
+            }
+            offset += length;
+        }
+        segmentEnds[s] = 0;
+    }
+
+    private void removeRecord(String key, int offset) {
+        index.remove(key);
+        liveBytes -= buffer.getInt(offset);
+    }
+
+    public synchronized void remove(String key) {
+        Integer offset = index.get(key);
+        if (offset != null) {
+            removeRecord(key, offset);
+        }
+    }
+
+    public synchronized int removeByPrefix(String prefix) {
+        int removed = 0;
+        Iterator<Map.Entry<String, Integer>> it = index.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Integer> entry = it.next();
+            if (entry.getKey().startsWith(prefix)) {
+                liveBytes -= buffer.getInt(entry.getValue());
+                it.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public synchronized void clear() {
+        index.clear();
+        Arrays.fill(segmentEnds, 0);
+        segment = 0;
+        liveBytes = 0;
+    }
+
+    /**
+     * Reallocates the buffer, which drops all entries.
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        if (maxBytes != maxBytes()) {
+            allocate(maxBytes);
+        }
+    }
+
+    public synchronized long maxBytes() {
+        return (long) segmentSize * SEGMENTS;
+    }
+
+    public synchronized long size() {
+        return index.size();
+    }
+
+    /**
+     * Off-heap bytes held by live records.
+     */
+    public synchronized long weightBytes() {
+        return liveBytes;
+    }
+
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    public synchronized void close() {
+        clear();
+    }
+
+    private static byte[] encode(String key, ResourceLabels labels, long expiresAtMillis, long storedAtMillis) {
+        List<String> names = labels.getNames();
+        List<String> values = labels.getValues();
+        byte[][] strings = new byte[1 + 2 * names.size()][];
+        strings[0] = key.getBytes(UTF_8);
+        for (int i = 0; i < names.size(); i++) {
+            strings[1 + 2 * i] = names.get(i).getBytes(UTF_8);
+            String value = values.get(i);
+            strings[2 + 2 * i] = value == null ? null : value.getBytes(UTF_8);
+        }
+        int length = 20 + varintSize(names.size());
+        for (byte[] s : strings) {
+            length += s == null ? 1 : varintSize(s.length + 1) + s.length;
+        }
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.putInt(length);
+        record.putLong(expiresAtMillis);
+        record.putLong(storedAtMillis);
+        writeBytes(record, strings[0]);
+        writeVarint(record, names.size());
+        for (int i = 1; i < strings.length; i++) {
+            writeBytes(record, strings[i]);
+        }
+        return record.array();
+    }
+
+    private static void writeBytes(ByteBuffer record, byte[] bytes) {
+        if (bytes == null) {
+            writeVarint(record, 0);
+            return;
+        }
+        writeVarint(record, bytes.length + 1);
+        record.put(bytes);
+    }
+
+    private static void writeVarint(ByteBuffer record, int value) {
+        while ((value & ~0x7F) != 0) {
+            record.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        record.put((byte) value);
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private int readVarint() {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private void skip(int length) {
+        buffer.position(buffer.position() + length);
+    }
+
+    private String readString() {
+        int length = readVarint();
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length - 1];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
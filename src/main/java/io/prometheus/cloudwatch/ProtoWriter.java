@@ -0,0 +1,85 @@
+package io.prometheus.cloudwatch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Just enough protobuf wire format to write the Prometheus messages the exporter sends, without
+ * depending on protobuf and generated classes.
+ */
+public final class ProtoWriter {
+
+    public static final int VARINT = 0;
+    public static final int FIXED64 = 1;
+    public static final int LENGTH_DELIMITED = 2;
+
+    private ProtoWriter() {
+    }
+
+    public static void writeTag(ByteArrayOutputStream out, int field, int wireType) {
+        out.write((field << 3) | wireType);
+    }
+
+    public static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    public static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+
+    public static void writeDouble(ByteArrayOutputStream out, int field, double value) {
+        writeTag(out, field, FIXED64);
+        long bits = Double.doubleToLongBits(value);
+        for (int i = 0; i < 8; i++) {
+            out.write((int) (bits >>> (8 * i)) & 0xFF);
+        }
+    }
+
+    public static void writeBytes(ByteArrayOutputStream out, int field, byte[] bytes) {
+        writeTag(out, field, LENGTH_DELIMITED);
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Writes a string field; null is written as the empty string.
+     */
+    public static void writeString(ByteArrayOutputStream out, int field, String s) {
+        writeBytes(out, field, utf8(s));
+    }
+
+    /**
+     * Writes a nested message field from its encoded bytes.
+     */
+    public static void writeMessage(ByteArrayOutputStream out, int field, ByteArrayOutputStream message) {
+        writeBytes(out, field, message.toByteArray());
+    }
+
+    /**
+     * Encodes a name/value pair message, as used for both Label and LabelPair.
+     */
+    public static void writeLabel(ByteArrayOutputStream out, int field, String name, String value) {
+        ByteArrayOutputStream label = new ByteArrayOutputStream(32);
+        writeString(label, 1, name);
+        writeString(label, 2, value);
+        writeMessage(out, field, label);
+    }
+
+    static byte[] utf8(String s) {
+        try {
+            return (s == null ? "" : s).getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
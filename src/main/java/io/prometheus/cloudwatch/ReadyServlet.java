@@ -0,0 +1,24 @@
+package io.prometheus.cloudwatch;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Serves /-/ready: 200 once the warm-up has finished or timed out, 503 before, with the progress as text.
+ */
+public class ReadyServlet extends HttpServlet {
+    private final WarmUp warmUp;
+
+    ReadyServlet(WarmUp warmUp) {
+        this.warmUp = warmUp;
+    }
+
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        resp.setStatus(warmUp.isReady() ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        resp.setContentType("text/plain");
+        resp.getWriter().print(warmUp.status());
+    }
+}
@@ -0,0 +1,230 @@
+package io.prometheus.cloudwatch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Minimal client for the Redis protocol (RESP2), covering the few commands the remote cache tier
+ * needs, so any server speaking it can be used: Redis, Valkey, KeyDB, or a local stand-in.
+ *
+ * Connections are opened on demand and up to {@code maxIdle} of them are kept for reuse. A connection
+ * that saw an I/O error is closed rather than reused, since its replies could be out of step.
+ */
+class RedisClient {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Deletes KEYS[1] if it holds ARGV[1]. Scripts run atomically, so no other client can set the key
+     * between the comparison and the delete.
+     */
+    static final String DELETE_IF_EQUALS_SCRIPT =
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) else return 0 end";
+
+    private static final class Connection {
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing left to do with it.
+            }
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final int timeoutMillis;
+    private final String password;
+    private final BlockingQueue<Connection> idle;
+
+    RedisClient(String host, int port, int timeoutMillis, String password, int maxIdle) {
+        this.host = host;
+        this.port = port;
+        this.timeoutMillis = timeoutMillis;
+        this.password = password;
+        this.idle = new ArrayBlockingQueue<Connection>(maxIdle);
+    }
+
+    byte[] get(String key) throws IOException {
+        return (byte[]) command("GET", key);
+    }
+
+    void set(String key, byte[] value, long ttlMillis) throws IOException {
+        command("SET", key, value, "PX", Long.toString(Math.max(ttlMillis, 1)));
+    }
+
+    /**
+     * Sets the key only if it does not exist and returns whether it was set.
+     */
+    boolean setIfAbsent(String key, byte[] value, long ttlMillis) throws IOException {
+        return command("SET", key, value, "NX", "PX", Long.toString(Math.max(ttlMillis, 1))) != null;
+    }
+
+    /**
+     * Deletes the key only if it holds the given value and returns whether it was deleted.
+     */
+    boolean deleteIfEquals(String key, byte[] value) throws IOException {
+        return ((Long) command("EVAL", DELETE_IF_EQUALS_SCRIPT, "1", key, value)) == 1;
+    }
+
+    /**
+     * Sends one command, whose arguments are Strings or byte arrays, and returns the reply: a String
+     * for status replies, a Long, a byte array, a List, or null. Error replies are thrown.
+     */
+    Object command(Object... args) throws IOException {
+        Connection connection = idle.poll();
+        if (connection == null) {
+            connection = connect();
+        }
+        Object reply;
+        try {
+            write(connection.out, args);
+            reply = read(connection.in);
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        } catch (RuntimeException e) {
+            connection.close();
+            throw e;
+        }
+        if (!idle.offer(connection)) {
+            connection.close();
+        }
+        if (reply instanceof ErrorReply) {
+            throw new IOException("Redis error: " + ((ErrorReply) reply).message);
+        }
+        return reply;
+    }
+
+    private Connection connect() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            socket.setTcpNoDelay(true);
+            Connection connection = new Connection(socket);
+            if (password != null) {
+                write(connection.out, new Object[] {"AUTH", password});
+                Object reply = read(connection.in);
+                if (reply instanceof ErrorReply) {
+                    throw new IOException("Redis authentication failed: " + ((ErrorReply) reply).message);
+                }
+            }
+            return connection;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    void close() {
+        Connection connection;
+        while ((connection = idle.poll()) != null) {
+            connection.close();
+        }
+    }
+
+    private static final class ErrorReply {
+        final String message;
+
+        ErrorReply(String message) {
+            this.message = message;
+        }
+    }
+
+    static void write(OutputStream out, Object[] args) throws IOException {
+        out.write(('*' + Integer.toString(args.length) + "\r\n").getBytes(UTF_8));
+        for (Object arg : args) {
+            byte[] bytes = arg instanceof byte[] ? (byte[]) arg : arg.toString().getBytes(UTF_8);
+            out.write(('$' + Integer.toString(bytes.length) + "\r\n").getBytes(UTF_8));
+            out.write(bytes);
+            out.write('\r');
+            out.write('\n');
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads one reply. Error replies are returned as a private marker so the connection stays usable.
+     */
+    static Object read(InputStream in) throws IOException {
+        int type = in.read();
+        if (type == -1) {
+            throw new EOFException("Connection closed by the server");
+        }
+        String line = readLine(in);
+        switch (type) {
+        case '+':
+            return line;
+        case '-':
+            return new ErrorReply(line);
+        case ':':
+            return Long.parseLong(line);
+        case '$': {
+            int length = Integer.parseInt(line);
+            if (length < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            int read = 0;
+            while (read < length) {
+                int n = in.read(bytes, read, length - read);
+                if (n == -1) {
+                    throw new EOFException("Connection closed by the server");
+                }
+                read += n;
+            }
+            readLine(in);
+            return bytes;
+        }
+        case '*': {
+            int count = Integer.parseInt(line);
+            if (count < 0) {
+                return null;
+            }
+            List<Object> elements = new ArrayList<Object>(count);
+            for (int i = 0; i < count; i++) {
+                elements.add(read(in));
+            }
+            return elements;
+        }
+        default:
+            throw new IOException("Unexpected Redis reply type: " + (char) type);
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\r') {
+            if (b == -1) {
+                throw new EOFException("Connection closed by the server");
+            }
+            line.write(b);
+        }
+        in.read();
+        return new String(line.toByteArray(), UTF_8);
+    }
+}
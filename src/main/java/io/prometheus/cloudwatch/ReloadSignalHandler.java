@@ -9,14 +9,19 @@ class ReloadSignalHandler {
     private static final Logger LOGGER = Logger.getLogger(CloudWatchCollector.class.getName());
 
     protected static void start(final CloudWatchCollector collector) {
-//        Signal.handle(new Signal("HUP"), new SignalHandler() {
-//            public void handle(Signal signal) {
-//                try {
-//                    collector.reloadConfig();
-//                } catch (Exception e) {
-//                    LOGGER.log(Level.WARNING, "Configuration reload failed", e);
-//                }
-//            }
-//        });
+        try {
+            Signal.handle(new Signal("HUP"), new SignalHandler() {
+                public void handle(Signal signal) {
+                    try {
+                        collector.reloadConfig();
+                    } catch (Exception e) {
+                        LOGGER.log(Level.WARNING, "Configuration reload failed", e);
+                    }
+                }
+            });
+        } catch (IllegalArgumentException e) {
+            // No SIGHUP on this platform, e.g. Windows.
+            LOGGER.log(Level.INFO, "SIGHUP not available, configuration reload on signal disabled");
+        }
     }
 }
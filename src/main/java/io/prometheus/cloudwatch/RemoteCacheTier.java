@@ -0,0 +1,361 @@
+package io.prometheus.cloudwatch;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+
+/**
+ * Second cache level in a key-value store shared by exporters that scrape the same accounts, such as
+ * the two replicas of a highly available pair, so each CloudWatch, ListMetrics and tag lookup is paid
+ * for once instead of once per replica.
+ *
+ * {@link CacheProvider} reads an entry from here when it is missing locally, writes every entry it
+ * stores through to here, and before loading a missing entry takes a short lock on its key so only one
+ * replica loads it while the others wait for the result. The store is spoken to over the Redis protocol.
+ *
+ * Values are encoded per type: datapoints, tags and dimension lists are shared, other values stay local.
+ * After a failed call the tier is skipped for {@link #RETRY_MILLIS}, so an unreachable store costs each
+ * scrape at most one timeout and the exporter carries on with its local caches.
+ */
+class RemoteCacheTier {
+    private static final Logger LOGGER = Logger.getLogger(CloudWatchCollector.class.getName());
+
+    static final long RETRY_MILLIS = 10000;
+
+    private static final long POLL_MILLIS = 50;
+
+    private static final byte FORMAT = 1;
+    private static final byte SERIES_VALUE = 1;
+    private static final byte RESOURCE_LABELS = 2;
+    private static final byte DIMENSION_LISTS = 3;
+
+    /**
+     * The optional remote section of the cache config.
+     */
+    static class Settings {
+        String host;
+        int port = 6379;
+        String password;
+        String keyPrefix = "cloudwatch_exporter:";
+        final Set<String> caches = new TreeSet<String>(Arrays.asList("dimensions", "es", "metrics"));
+        int timeoutMillis = 250;
+        int lockSeconds = 10;
+
+        static Settings fromConfig(Map<String, Object> config, Set<String> knownCaches) {
+            if (config == null) {
+                return null;
+            }
+            Settings settings = new Settings();
+            String address = (String) config.get("address");
+            if (address == null) {
+                throw new IllegalArgumentException("cache remote needs an address, as host:port");
+            }
+            int colon = address.lastIndexOf(':');
+            settings.host = colon < 0 ? address : address.substring(0, colon);
+            if (colon >= 0) {
+                settings.port = Integer.parseInt(address.substring(colon + 1));
+            }
+            settings.password = (String) config.get("password");
+            if (config.containsKey("key_prefix")) {
+                settings.keyPrefix = (String) config.get("key_prefix");
+            }
+            if (config.containsKey("caches")) {
+                settings.caches.clear();
+                for (Object cache : (List<Object>) config.get("caches")) {
+                    if (!knownCaches.contains(cache)) {
+                        throw new IllegalArgumentException("Unknown cache in remote caches: " + cache + ", known are " + knownCaches);
+                    }
+                    settings.caches.add((String) cache);
+                }
+            }
+            if (config.containsKey("timeout_ms")) {
+                settings.timeoutMillis = ((Number) config.get("timeout_ms")).intValue();
+            }
+            if (config.containsKey("lock_seconds")) {
+                settings.lockSeconds = ((Number) config.get("lock_seconds")).intValue();
+            }
+            if (settings.timeoutMillis < 1 || settings.lockSeconds < 1) {
+                throw new IllegalArgumentException("cache remote timeout_ms and lock_seconds must be positive");
+            }
+            return settings;
+        }
+
+        @Override
+        public String toString() {
+            return "address=" + host + ":" + port + " key_prefix=" + keyPrefix + " caches=" + caches
+                    + " timeout_ms=" + timeoutMillis + " lock_seconds=" + lockSeconds + (password != null ? " password=<set>" : "");
+        }
+    }
+
+    /**
+     * An entry read from the store, with when it expires there.
+     */
+    static final class Hit {
+        final CacheStore.Entry entry;
+        final long expiresAtMillis;
+
+        Hit(CacheStore.Entry entry, long expiresAtMillis) {
+            this.entry = entry;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+
+    final Settings settings;
+    private final RedisClient client;
+    private final String owner = Long.toHexString(new Random().nextLong());
+    private volatile long unavailableUntil;
+
+    RemoteCacheTier(Settings settings) {
+        this(settings, new RedisClient(settings.host, settings.port, settings.timeoutMillis, settings.password, 16));
+    }
+
+    RemoteCacheTier(Settings settings, RedisClient client) {
+        this.settings = settings;
+        this.client = client;
+    }
+
+    boolean shares(String cacheName) {
+        return settings.caches.contains(cacheName);
+    }
+
+    boolean isAvailable() {
+        return System.currentTimeMillis() >= unavailableUntil;
+    }
+
+    /**
+     * Returns the stored entry, or null if there is none or it cannot be decoded.
+     */
+    Hit get(final String cacheName, final String key) throws IOException {
+        byte[] bytes = call(new Call<byte[]>() {
+            byte[] run() throws IOException {
+                return client.get(valueKey(cacheName, key));
+            }
+        }, cacheName, key);
+        return bytes == null ? null : decode(bytes);
+    }
+
+    /**
+     * Stores an entry, unless its value is of a type that is not shared.
+     */
+    void put(final String cacheName, final String key, CacheStore.Entry entry, final int ttlSeconds) throws IOException {
+        final byte[] bytes = encode(entry, System.currentTimeMillis() + 1000L * ttlSeconds);
+        if (bytes == null) {
+            return;
+        }
+        call(new Call<Void>() {
+            Void run() throws IOException {
+                client.set(valueKey(cacheName, key), bytes, 1000L * ttlSeconds);
+                return null;
+            }
+        }, cacheName, key);
+    }
+
+    /**
+     * Takes the load lock of a key for lock_seconds and returns its token, or null if another exporter holds it.
+     */
+    String tryLock(final String cacheName, final String key) throws IOException {
+        final String token = owner + ":" + Thread.currentThread().getId() + ":" + System.nanoTime();
+        boolean locked = call(new Call<Boolean>() {
+            Boolean run() throws IOException {
+                return client.setIfAbsent(lockKey(cacheName, key), token.getBytes("UTF-8"), 1000L * settings.lockSeconds);
+            }
+        }, cacheName, key);
+        return locked ? token : null;
+    }
+
+    /**
+     * Releases a lock taken by {@link #tryLock(String, String)} unless it expired and was taken by someone else meanwhile.
+     * The token is compared and the lock deleted in one step on the server, so a lock that changed hands
+     * in between is never released.
+     */
+    void unlock(final String cacheName, final String key, final String token) throws IOException {
+        call(new Call<Boolean>() {
+            Boolean run() throws IOException {
+                return client.deleteIfEquals(lockKey(cacheName, key), token.getBytes("UTF-8"));
+            }
+        }, cacheName, key);
+    }
+
+    /**
+     * Waits while another exporter holds the load lock of a key, at most lock_seconds or {@code maxWaitMillis},
+     * whichever is shorter, and returns the entry it stored, or null if it stored none in that time.
+     */
+    Hit awaitLoad(final String cacheName, final String key, long maxWaitMillis) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + Math.min(1000L * settings.lockSeconds, Math.max(maxWaitMillis, 0));
+        while (System.currentTimeMillis() < deadline) {
+            Hit hit = get(cacheName, key);
+            if (hit != null) {
+                return hit;
+            }
+            byte[] holder = call(new Call<byte[]>() {
+                byte[] run() throws IOException {
+                    return client.get(lockKey(cacheName, key));
+                }
+            }, cacheName, key);
+            if (holder == null) {
+                return get(cacheName, key);
+            }
+            Thread.sleep(Math.max(Math.min(POLL_MILLIS, deadline - System.currentTimeMillis()), 1));
+        }
+        return null;
+    }
+
+    void close() {
+        client.close();
+    }
+
+    private String valueKey(String cacheName, String key) {
+        return settings.keyPrefix + cacheName + ":" + key;
+    }
+
+    private String lockKey(String cacheName, String key) {
+        return settings.keyPrefix + "lock:" + cacheName + ":" + key;
+    }
+
+    private abstract static class Call<T> {
+        abstract T run() throws IOException;
+    }
+
+    private <T> T call(Call<T> call, String cacheName, String key) throws IOException {
+        if (!isAvailable()) {
+            throw new IOException("Remote cache skipped after an earlier failure");
+        }
+        try {
+            return call.run();
+        } catch (IOException e) {
+            if (isAvailable()) {
+                LOGGER.log(Level.WARNING, "Remote cache at " + settings.host + ":" + settings.port + " failed on "
+                        + cacheName + " " + key + ", using local caches only for " + RETRY_MILLIS / 1000 + "s", e);
+            }
+            unavailableUntil = System.currentTimeMillis() + RETRY_MILLIS;
+            throw e;
+        }
+    }
+
+    /**
+     * Encodes an entry, or returns null if its value is not of a shared type.
+     */
+    static byte[] encode(CacheStore.Entry entry, long expiresAtMillis) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(FORMAT);
+        out.writeLong(entry.storedAtMillis);
+        out.writeLong(expiresAtMillis);
+        Object value = entry.value;
+        if (value instanceof SeriesValue) {
+            out.writeByte(SERIES_VALUE);
+            ((SeriesValue) value).writeTo(out);
+        } else if (value instanceof ResourceLabels) {
+            out.writeByte(RESOURCE_LABELS);
+            ResourceLabels labels = (ResourceLabels) value;
+            out.writeInt(labels.getNames().size());
+            for (int i = 0; i < labels.getNames().size(); i++) {
+                out.writeUTF(labels.getNames().get(i));
+                writeNullable(out, labels.getValues().get(i));
+            }
+        } else if (isDimensionLists(value)) {
+            out.writeByte(DIMENSION_LISTS);
+            List<List<Dimension>> lists = (List<List<Dimension>>) value;
+            out.writeInt(lists.size());
+            for (List<Dimension> dimensions : lists) {
+                out.writeInt(dimensions.size());
+                for (Dimension dimension : dimensions) {
+                    writeNullable(out, dimension.getName());
+                    writeNullable(out, dimension.getValue());
+                }
+            }
+        } else {
+            return null;
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static boolean isDimensionLists(Object value) {
+        if (!(value instanceof List)) {
+            return false;
+        }
+        for (Object element : (List<?>) value) {
+            if (!(element instanceof List)) {
+                return false;
+            }
+            for (Object dimension : (List<?>) element) {
+                if (!(dimension instanceof Dimension)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes an entry, or returns null if it was written in an unknown format, e.g. by a newer version.
+     */
+    static Hit decode(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (in.readByte() != FORMAT) {
+            return null;
+        }
+        long storedAt = in.readLong();
+        long expiresAt = in.readLong();
+        Object value;
+        switch (in.readByte()) {
+        case SERIES_VALUE:
+            value = SeriesValue.readFrom(in);
+            break;
+        case RESOURCE_LABELS: {
+            String[] names = new String[in.readInt()];
+            String[] values = new String[names.length];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = in.readUTF();
+                values[i] = readNullable(in);
+            }
+            value = ResourceLabels.decode(names, values);
+            break;
+        }
+        case DIMENSION_LISTS: {
+            int count = in.readInt();
+            List<List<Dimension>> lists = new ArrayList<List<Dimension>>(count);
+            for (int i = 0; i < count; i++) {
+                int size = in.readInt();
+                List<Dimension> dimensions = new ArrayList<Dimension>(size);
+                for (int j = 0; j < size; j++) {
+                    dimensions.add(new Dimension().withName(readNullable(in)).withValue(readNullable(in)));
+                }
+                lists.add(dimensions);
+            }
+            value = lists;
+            break;
+        }
+        default:
+            return null;
+        }
+        return new Hit(new CacheStore.Entry(value, storedAt), expiresAt);
+    }
+
+    private static void writeNullable(DataOutput out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    private static String readNullable(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,304 @@
+package io.prometheus.cloudwatch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.iq80.snappy.Snappy;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+
+/**
+ * Pushes datapoints to a Prometheus remote_write endpoint.
+ *
+ * Every {@code interval_seconds} the collector is scraped and each series whose CloudWatch datapoint
+ * is newer than the one last pushed for it is queued, with the datapoint's own timestamp. A sender
+ * thread takes batches of up to {@code batch_size} series from the bounded queue, encodes them as a
+ * snappy compressed protobuf WriteRequest and posts them, retrying with exponential backoff on
+ * connection errors, 5xx and 429. When the queue is full new samples are dropped and counted.
+ */
+class RemoteWriter {
+    private static final Logger LOGGER = Logger.getLogger(RemoteWriter.class.getName());
+
+    private static final Counter samples = Counter.build()
+            .name("cloudwatch_exporter_remote_write_samples_total")
+            .labelNames("outcome")
+            .help("Samples handled by remote write, by outcome: sent, dropped (queue full) or failed.").register();
+
+    private static final Counter retries = Counter.build()
+            .name("cloudwatch_exporter_remote_write_retries_total")
+            .help("Remote write requests retried.").register();
+
+    private static final Gauge queueLength = Gauge.build()
+            .name("cloudwatch_exporter_remote_write_queue_length")
+            .help("Samples waiting to be sent by remote write.").register();
+
+    /**
+     * Tunables, read from the optional remote_write section of the config.
+     */
+    static class Settings {
+        String url;
+        double intervalSeconds = 60;
+        int batchSize = 500;
+        int queueSize = 100000;
+        int maxRetries = 5;
+        double retryBackoffSeconds = 1;
+        double timeoutSeconds = 10;
+
+        /**
+         * Returns null if the config has no remote_write section.
+         */
+        static Settings fromConfig(Map<String, Object> config) {
+            if (config == null) {
+                return null;
+            }
+            Settings settings = new Settings();
+            settings.url = (String) config.get("url");
+            if (settings.url == null) {
+                throw new IllegalArgumentException("remote_write needs a url");
+            }
+            if (config.containsKey("interval_seconds")) {
+                settings.intervalSeconds = ((Number) config.get("interval_seconds")).doubleValue();
+            }
+            if (config.containsKey("batch_size")) {
+                settings.batchSize = ((Number) config.get("batch_size")).intValue();
+            }
+            if (config.containsKey("queue_size")) {
+                settings.queueSize = ((Number) config.get("queue_size")).intValue();
+            }
+            if (config.containsKey("max_retries")) {
+                settings.maxRetries = ((Number) config.get("max_retries")).intValue();
+            }
+            if (config.containsKey("retry_backoff_seconds")) {
+                settings.retryBackoffSeconds = ((Number) config.get("retry_backoff_seconds")).doubleValue();
+            }
+            if (config.containsKey("timeout_seconds")) {
+                settings.timeoutSeconds = ((Number) config.get("timeout_seconds")).doubleValue();
+            }
+            return settings;
+        }
+
+        @Override
+        public String toString() {
+            return url + " " + intervalSeconds + " " + batchSize + " " + queueSize + " " + maxRetries + " "
+                    + retryBackoffSeconds + " " + timeoutSeconds;
+        }
+    }
+
+    final Settings settings;
+    private final BlockingQueue<TimestampedSample> queue;
+    private final ScheduledExecutorService scheduler;
+    private Map<String, Long> lastPushed = new HashMap<String, Long>();
+
+    RemoteWriter(Settings settings) {
+        this.settings = settings;
+        this.queue = new ArrayBlockingQueue<TimestampedSample>(settings.queueSize);
+        this.scheduler = Executors.newScheduledThreadPool(2, new DaemonThreadFactory("remote-write"));
+    }
+
+    /**
+     * Starts pushing what the collector scrapes.
+     */
+    void start(final CloudWatchCollector collector) {
+        long intervalMillis = (long) (settings.intervalSeconds * 1000);
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    enqueue(collector.collect());
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Remote write scrape failed", e);
+                }
+            }
+        }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+        scheduler.execute(new Runnable() {
+            public void run() {
+                sendLoop();
+            }
+        });
+    }
+
+    void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Queues the samples that have a newer datapoint than was last pushed for their series. Samples
+     * without a datapoint timestamp, such as the exporter's own metrics, are not pushed.
+     */
+    synchronized void enqueue(List<MetricFamilySamples> mfs) {
+        Map<String, Long> pushed = new HashMap<String, Long>();
+        for (MetricFamilySamples family : mfs) {
+            for (MetricFamilySamples.Sample sample : family.samples) {
+                if (!(sample instanceof TimestampedSample)) {
+                    continue;
+                }
+                TimestampedSample timestamped = (TimestampedSample) sample;
+                String key = seriesKey(timestamped);
+                Long last = lastPushed.get(key);
+                if (last != null && last >= timestamped.timestampMillis) {
+                    pushed.put(key, last);
+                    continue;
+                }
+                if (queue.offer(timestamped)) {
+                    pushed.put(key, timestamped.timestampMillis);
+                } else {
+                    samples.labels("dropped").inc();
+                    if (last != null) {
+                        pushed.put(key, last);
+                    }
+                }
+            }
+        }
+        // Series that are gone are forgotten, so this stays as large as one scrape.
+        lastPushed = pushed;
+        queueLength.set(queue.size());
+    }
+
+    private void sendLoop() {
+        List<TimestampedSample> batch = new ArrayList<TimestampedSample>(settings.batchSize);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                TimestampedSample first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, settings.batchSize - 1);
+                queueLength.set(queue.size());
+                send(batch);
+                batch.clear();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void send(List<TimestampedSample> batch) throws InterruptedException {
+        byte[] body = Snappy.compress(encode(batch));
+        long backoffMillis = (long) (settings.retryBackoffSeconds * 1000);
+        for (int attempt = 0; ; attempt++) {
+            String error;
+            try {
+                int status = post(body);
+                if (status / 100 == 2) {
+                    samples.labels("sent").inc(batch.size());
+                    return;
+                }
+                error = "HTTP " + status;
+                if (status / 100 == 4 && status != 429) {
+                    // The receiver rejected the data, sending it again will not help.
+                    LOGGER.log(Level.WARNING, "Remote write rejected " + batch.size() + " samples: " + error);
+                    samples.labels("failed").inc(batch.size());
+                    return;
+                }
+            } catch (IOException e) {
+                error = e.toString();
+            }
+            if (attempt >= settings.maxRetries) {
+                LOGGER.log(Level.WARNING, "Remote write of " + batch.size() + " samples failed after "
+                        + (attempt + 1) + " attempts: " + error);
+                samples.labels("failed").inc(batch.size());
+                return;
+            }
+            retries.inc();
+            Thread.sleep(backoffMillis);
+            backoffMillis *= 2;
+        }
+    }
+
+    private int post(byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(settings.url).openConnection();
+        try {
+            int timeoutMillis = (int) (settings.timeoutSeconds * 1000);
+            connection.setConnectTimeout(timeoutMillis);
+            connection.setReadTimeout(timeoutMillis);
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/x-protobuf");
+            connection.setRequestProperty("Content-Encoding", "snappy");
+            connection.setRequestProperty("X-Prometheus-Remote-Write-Version", "0.1.0");
+            connection.setFixedLengthStreamingMode(body.length);
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(body);
+            } finally {
+                out.close();
+            }
+            int status = connection.getResponseCode();
+            InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            if (in != null) {
+                // Drain the response so the connection can be reused.
+                byte[] buffer = new byte[1024];
+                while (in.read(buffer) >= 0) {
+                }
+                in.close();
+            }
+            return status;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static String seriesKey(MetricFamilySamples.Sample sample) {
+        return sample.name + sample.labelNames + sample.labelValues;
+    }
+
+    private static final Comparator<String[]> BY_LABEL_NAME = new Comparator<String[]>() {
+        public int compare(String[] a, String[] b) {
+            return a[0].compareTo(b[0]);
+        }
+    };
+
+    /**
+     * Encodes samples as a prometheus.WriteRequest, one TimeSeries per sample. Like Prometheus itself, a series
+     * has its labels sorted by name, __name__ included, and no labels with empty values.
+     */
+    static byte[] encode(List<TimestampedSample> batch) {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        ByteArrayOutputStream series = new ByteArrayOutputStream();
+        ByteArrayOutputStream sample = new ByteArrayOutputStream(20);
+        for (TimestampedSample timestamped : batch) {
+            // TimeSeries: labels = 1, samples = 2.
+            series.reset();
+            List<String[]> labels = new ArrayList<String[]>(timestamped.labelNames.size() + 1);
+            labels.add(new String[]{"__name__", timestamped.name});
+            for (int i = 0; i < timestamped.labelNames.size(); i++) {
+                String value = timestamped.labelValues.get(i);
+                if (value != null && !value.isEmpty()) {
+                    labels.add(new String[]{timestamped.labelNames.get(i), value});
+                }
+            }
+            Collections.sort(labels, BY_LABEL_NAME);
+            for (String[] label : labels) {
+                ProtoWriter.writeLabel(series, 1, label[0], label[1]);
+            }
+            // Sample: value = 1, timestamp = 2 (milliseconds).
+            sample.reset();
+            ProtoWriter.writeDouble(sample, 1, timestamped.value);
+            ProtoWriter.writeTag(sample, 2, ProtoWriter.VARINT);
+            ProtoWriter.writeVarint(sample, timestamped.timestampMillis);
+            ProtoWriter.writeMessage(series, 2, sample);
+            // WriteRequest: timeseries = 1.
+            ProtoWriter.writeMessage(request, 1, series);
+        }
+        return request.toByteArray();
+    }
+}
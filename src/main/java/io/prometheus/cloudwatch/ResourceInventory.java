@@ -0,0 +1,29 @@
+package io.prometheus.cloudwatch;
+
+import java.util.List;
+
+/**
+ * Resource IDs of a mapping's resource type as kept in the Pacman Elasticsearch inventory, for
+ * discovering dimension sets without paging through ListMetrics.
+ *
+ * The inventory lists every current resource, including ones that publish no datapoints, such as
+ * stopped instances; their series come back empty and are backed off like other empty series.
+ */
+class ResourceInventory {
+
+    /**
+     * Lists resource IDs; {@link ESClient} outside of tests.
+     */
+    interface Source {
+        List<String> resourceIds(String esPath, String idField) throws Exception;
+    }
+
+    static final Source ES_SOURCE = new Source() {
+        public List<String> resourceIds(String esPath, String idField) throws Exception {
+            return ESClient.listResourceIds(esPath, idField);
+        }
+    };
+
+    private ResourceInventory() {
+    }
+}
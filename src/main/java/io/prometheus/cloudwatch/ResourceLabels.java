@@ -0,0 +1,126 @@
+package io.prometheus.cloudwatch;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Immutable tag labels of one resource, as kept in the es cache and appended to every sample of that resource.
+ *
+ * Tag values such as account names, regions, environments and UNTAGGED repeat across most resources, so
+ * names and values go through a shared dictionary, and resources with the same tag keys share one
+ * names list. The dictionary holds its strings weakly, so values of resources that are no longer on the
+ * heap, such as those kept in {@link OffHeapTagStore}, do not stay behind in it.
+ */
+final class ResourceLabels {
+
+    static final ResourceLabels EMPTY = new ResourceLabels(Collections.<String>emptyList(), Collections.<String>emptyList());
+
+    private static final Map<String, WeakReference<String>> DICTIONARY = new WeakHashMap<String, WeakReference<String>>();
+
+    private static final ConcurrentMap<List<String>, List<String>> NAME_LISTS = new ConcurrentHashMap<List<String>, List<String>>();
+
+    private final List<String> names;
+    private final List<String> values;
+
+    private ResourceLabels(List<String> names, List<String> values) {
+        this.names = names;
+        this.values = values;
+    }
+
+    /**
+     * Converts tags as returned by {@link ESClient} into sanitized label names and dictionary encoded values.
+     */
+    static ResourceLabels of(Map<String, String> tags) {
+        if (tags == null || tags.isEmpty()) {
+            return EMPTY;
+        }
+        TreeMap<String, String> sorted = new TreeMap<String, String>();
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            sorted.put(CloudWatchCollector.safeName(CloudWatchCollector.toSnakeCase(tag.getKey())), tag.getValue());
+        }
+        String[] names = new String[sorted.size()];
+        String[] values = new String[sorted.size()];
+        int i = 0;
+        for (Map.Entry<String, String> label : sorted.entrySet()) {
+            names[i] = encode(label.getKey());
+            values[i] = encode(label.getValue());
+            i++;
+        }
+        return new ResourceLabels(sharedNames(names), Collections.unmodifiableList(Arrays.asList(values)));
+    }
+
+    /**
+     * Rebuilds labels from names that are already sanitized and sorted, as stored by {@link OffHeapTagStore}.
+     */
+    static ResourceLabels decode(String[] names, String[] values) {
+        if (names.length == 0) {
+            return EMPTY;
+        }
+        for (int i = 0; i < names.length; i++) {
+            names[i] = encode(names[i]);
+            values[i] = encode(values[i]);
+        }
+        return new ResourceLabels(sharedNames(names), Collections.unmodifiableList(Arrays.asList(values)));
+    }
+
+    /**
+     * Returns the shared instance of a label name or value.
+     */
+    static String encode(String s) {
+        if (s == null) {
+            return null;
+        }
+        synchronized (DICTIONARY) {
+            WeakReference<String> ref = DICTIONARY.get(s);
+            String shared = ref == null ? null : ref.get();
+            if (shared == null) {
+                DICTIONARY.put(s, new WeakReference<String>(s));
+                return s;
+            }
+            return shared;
+        }
+    }
+
+    static int dictionarySize() {
+        synchronized (DICTIONARY) {
+            return DICTIONARY.size();
+        }
+    }
+
+    List<String> getNames() {
+        return names;
+    }
+
+    List<String> getValues() {
+        return values;
+    }
+
+    /**
+     * Value of a label by its sanitized name, or null if the resource has no such label.
+     */
+    String get(String name) {
+        int i = names.indexOf(name);
+        return i < 0 ? null : values.get(i);
+    }
+
+    /**
+     * Heap size of this resource's own objects; the dictionary strings and names list are shared and not counted.
+     */
+    long estimatedBytes() {
+        return 24 + 40 + 8L * values.size();
+    }
+
+    private static List<String> sharedNames(String[] names) {
+        List<String> list = Collections.unmodifiableList(new ArrayList<String>(Arrays.asList(names)));
+        List<String> shared = NAME_LISTS.putIfAbsent(list, list);
+        return shared == null ? list : shared;
+    }
+}
@@ -0,0 +1,115 @@
+package io.prometheus.cloudwatch;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread CPU time and heap allocation attributed to a piece of scrape work.
+ *
+ * ThreadMXBean only measures the calling thread, so work spread over several
+ * threads is accounted by taking a {@link Sample} on each thread and adding it
+ * to the same ResourceUsage once that thread is done.
+ */
+class ResourceUsage {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private static final boolean CPU_TIME_SUPPORTED = enableCpuTime();
+
+    private static final boolean ALLOCATION_SUPPORTED = enableAllocation();
+
+    private final AtomicLong cpuNanos = new AtomicLong();
+
+    private final AtomicLong allocatedBytes = new AtomicLong();
+
+    /**
+     * Starts measuring the current thread.
+     */
+    static Sample start() {
+        return new Sample();
+    }
+
+    /**
+     * Adds what the current thread used since the sample was started. Must be called
+     * on the thread that started the sample.
+     */
+    void add(Sample sample) {
+        if (sample.threadId != Thread.currentThread().getId()) {
+            throw new IllegalStateException("Sample must be finished on the thread that started it");
+        }
+        cpuNanos.addAndGet(currentCpuNanos() - sample.cpuNanos);
+        allocatedBytes.addAndGet(currentAllocatedBytes() - sample.allocatedBytes);
+    }
+
+    void add(ResourceUsage other) {
+        cpuNanos.addAndGet(other.cpuNanos.get());
+        allocatedBytes.addAndGet(other.allocatedBytes.get());
+    }
+
+    double cpuSeconds() {
+        return cpuNanos.get() / 1.0E9;
+    }
+
+    long allocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("cpu=%.3fs allocated=%dB", cpuSeconds(), allocatedBytes());
+    }
+
+    private static long currentCpuNanos() {
+        return CPU_TIME_SUPPORTED ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+
+    private static long currentAllocatedBytes() {
+        if (!ALLOCATION_SUPPORTED) {
+            return 0;
+        }
+        return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static boolean enableCpuTime() {
+        try {
+            if (!THREADS.isCurrentThreadCpuTimeSupported()) {
+                return false;
+            }
+            if (!THREADS.isThreadCpuTimeEnabled()) {
+                THREADS.setThreadCpuTimeEnabled(true);
+            }
+            return true;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        } catch (SecurityException e) {
+            return false;
+        }
+    }
+
+    private static boolean enableAllocation() {
+        try {
+            if (!(THREADS instanceof com.sun.management.ThreadMXBean)) {
+                return false;
+            }
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+            if (!threads.isThreadAllocatedMemorySupported()) {
+                return false;
+            }
+            if (!threads.isThreadAllocatedMemoryEnabled()) {
+                threads.setThreadAllocatedMemoryEnabled(true);
+            }
+            return true;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        } catch (SecurityException e) {
+            return false;
+        }
+    }
+
+    static class Sample {
+        final long threadId = Thread.currentThread().getId();
+        final long cpuNanos = currentCpuNanos();
+        final long allocatedBytes = currentAllocatedBytes();
+    }
+}
@@ -0,0 +1,183 @@
+package io.prometheus.cloudwatch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+
+/**
+ * Aggregates the series of one rule and scrape across the dimensions its aggregate_by or
+ * aggregate_without drops, such as AvailabilityZone, after their datapoints were fetched.
+ *
+ * Per group of series with the same kept dimension values, Sum and SampleCount are added up,
+ * Minimum and Maximum take the smallest and largest value, and Average is weighted by SampleCount,
+ * which is fetched along with Average for this, or a plain mean if a series has none. Tags stay on
+ * the aggregated series only if the mapping's id_field is kept, since otherwise a group spans resources.
+ */
+final class Rollup {
+
+    /**
+     * The aggregation options of a rule.
+     */
+    static final class Settings {
+        final Set<String> keptDimensions;
+        final boolean keepRaw;
+        final boolean keepTags;
+
+        private Settings(Set<String> keptDimensions, boolean keepRaw, boolean keepTags) {
+            this.keptDimensions = keptDimensions;
+            this.keepRaw = keepRaw;
+            this.keepTags = keepTags;
+        }
+
+        /**
+         * Reads aggregate_by or aggregate_without and aggregate_keep_raw of a rule, or returns null if it has neither.
+         */
+        static Settings fromConfig(Map<String, Object> yamlMetricRule, List<String> awsDimensions, List<String> awsExtendedStatistics,
+                String resourceIDField) {
+            List<String> by = (List<String>) yamlMetricRule.get("aggregate_by");
+            List<String> without = (List<String>) yamlMetricRule.get("aggregate_without");
+            if (by == null && without == null) {
+                return null;
+            }
+            if (by != null && without != null) {
+                throw new IllegalArgumentException("Must not provide aggregate_by and aggregate_without at the same time");
+            }
+            if (awsDimensions == null) {
+                throw new IllegalArgumentException("aggregate_by and aggregate_without need aws_dimensions");
+            }
+            if (awsExtendedStatistics != null) {
+                throw new IllegalArgumentException("Extended statistics such as percentiles cannot be aggregated");
+            }
+            for (String dimension : by != null ? by : without) {
+                if (!awsDimensions.contains(dimension)) {
+                    throw new IllegalArgumentException("Aggregated dimension " + dimension + " is not in aws_dimensions " + awsDimensions);
+                }
+            }
+            Set<String> kept = new HashSet<String>(awsDimensions);
+            if (by != null) {
+                kept.retainAll(by);
+            } else {
+                kept.removeAll(without);
+            }
+            boolean keepRaw = Boolean.TRUE.equals(yamlMetricRule.get("aggregate_keep_raw"));
+            return new Settings(Collections.unmodifiableSet(kept), keepRaw, resourceIDField != null && kept.contains(resourceIDField));
+        }
+
+        @Override
+        public String toString() {
+            return "by=" + new TreeSet<String>(keptDimensions) + " keep_raw=" + keepRaw;
+        }
+    }
+
+    private static final class Group {
+        final List<String> labelNames;
+        final List<String> labelValues;
+        final double[] values = new double[5];
+        int present;
+        double weightedAverageSum;
+        double averageWeight;
+        double averageSum;
+        int averageCount;
+        boolean unweighted;
+        long timestampSeconds;
+
+        Group(List<String> labelNames, List<String> labelValues) {
+            this.labelNames = labelNames;
+            this.labelValues = labelValues;
+        }
+
+        void add(SeriesValue value, int statistics) {
+            timestampSeconds = Math.max(timestampSeconds, value.getTimestampSeconds());
+            for (int statistic = SeriesValue.SUM; statistic < SeriesValue.AVERAGE; statistic <<= 1) {
+                if ((statistics & statistic) == 0 || !value.has(statistic)) {
+                    continue;
+                }
+                int i = Integer.numberOfTrailingZeros(statistic);
+                double v = value.get(statistic);
+                if ((present & statistic) == 0) {
+                    values[i] = v;
+                } else if (statistic == SeriesValue.MINIMUM) {
+                    values[i] = Math.min(values[i], v);
+                } else if (statistic == SeriesValue.MAXIMUM) {
+                    values[i] = Math.max(values[i], v);
+                } else {
+                    values[i] += v;
+                }
+                present |= statistic;
+            }
+            if ((statistics & SeriesValue.AVERAGE) != 0 && value.has(SeriesValue.AVERAGE)) {
+                double average = value.get(SeriesValue.AVERAGE);
+                averageSum += average;
+                averageCount++;
+                if (value.has(SeriesValue.SAMPLE_COUNT)) {
+                    weightedAverageSum += average * value.get(SeriesValue.SAMPLE_COUNT);
+                    averageWeight += value.get(SeriesValue.SAMPLE_COUNT);
+                } else {
+                    unweighted = true;
+                }
+                present |= SeriesValue.AVERAGE;
+            }
+        }
+
+        double get(int statistic) {
+            if (statistic == SeriesValue.AVERAGE) {
+                return unweighted || averageWeight == 0 ? averageSum / averageCount : weightedAverageSum / averageWeight;
+            }
+            return values[Integer.numberOfTrailingZeros(statistic)];
+        }
+    }
+
+    private final Settings settings;
+    private final Map<List<String>, Group> groups = new LinkedHashMap<List<String>, Group>();
+
+    Rollup(Settings settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * Adds a series with its labels as built by {@link LabelSchema}: job, instance, dimensions, then tags.
+     */
+    void add(List<Dimension> dimensions, List<String> labelNames, List<String> labelValues, SeriesValue value, int statistics) {
+        List<String> names = new ArrayList<String>(labelNames.size());
+        List<String> values = new ArrayList<String>(labelNames.size());
+        for (int i = 0; i < labelNames.size(); i++) {
+            boolean dimension = i >= 2 && i < 2 + dimensions.size();
+            boolean kept = dimension ? settings.keptDimensions.contains(dimensions.get(i - 2).getName()) : i < 2 || settings.keepTags;
+            if (kept) {
+                names.add(labelNames.get(i));
+                values.add(labelValues.get(i));
+            }
+        }
+        List<String> key = new ArrayList<String>(names);
+        key.addAll(values);
+        Group group = groups.get(key);
+        if (group == null) {
+            group = new Group(names, values);
+            groups.put(key, group);
+        }
+        group.add(value, statistics);
+    }
+
+    /**
+     * The aggregated samples of a standard statistic, one per group that had it.
+     */
+    List<MetricFamilySamples.Sample> samples(int statistic, String name) {
+        List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
+        for (Group group : groups.values()) {
+            if ((group.present & statistic) != 0) {
+                samples.add(new TimestampedSample(name, group.labelNames, group.labelValues, group.get(statistic),
+                        group.timestampSeconds * 1000));
+            }
+        }
+        return samples;
+    }
+}
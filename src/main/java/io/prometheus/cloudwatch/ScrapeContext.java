@@ -0,0 +1,96 @@
+package io.prometheus.cloudwatch;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.prometheus.cloudwatch.CloudWatchCollector.MetricRule;
+
+/**
+ * State of a single scrape: its time budget and what each rule used and missed.
+ *
+ * Once the deadline has passed no new CloudWatch or tag requests should be started; rules then
+ * serve whatever is cached and are recorded as incomplete, so a slow namespace turns into a
+ * partial result rather than a scrape Prometheus gives up on.
+ */
+class ScrapeContext {
+
+    /** Wall clock time the scrape started at, used for the request windows. */
+    final long startMillis = System.currentTimeMillis();
+
+    private final long deadlineNanos;
+
+    final Map<MetricRule, ResourceUsage> ruleUsage =
+            Collections.synchronizedMap(new LinkedHashMap<MetricRule, ResourceUsage>());
+
+    final Set<MetricRule> incompleteRules =
+            Collections.newSetFromMap(new ConcurrentHashMap<MetricRule, Boolean>());
+
+    final Map<MetricRule, Integer> droppedSeries = new ConcurrentHashMap<MetricRule, Integer>();
+
+    final Map<MetricRule, Integer> suppressedSeries = new ConcurrentHashMap<MetricRule, Integer>();
+
+    /** What discovery and fetch tasks used on the bulkhead pools, as opposed to the scraping thread. */
+    final ResourceUsage workerUsage = new ResourceUsage();
+
+    /** Rules whose samples have been assembled, for reporting warm-up progress. */
+    final AtomicInteger completedRules = new AtomicInteger();
+
+    private int usedSeries;
+
+    /**
+     * @param budgetSeconds time the scrape may take, or zero or less for no limit
+     */
+    ScrapeContext(double budgetSeconds) {
+        if (budgetSeconds > 0) {
+            deadlineNanos = System.nanoTime() + (long) (budgetSeconds * 1.0E9);
+        } else {
+            deadlineNanos = Long.MAX_VALUE;
+        }
+    }
+
+    boolean hasDeadline() {
+        return deadlineNanos != Long.MAX_VALUE;
+    }
+
+    boolean outOfTime() {
+        return hasDeadline() && System.nanoTime() - deadlineNanos >= 0;
+    }
+
+    /**
+     * Milliseconds left before the deadline, zero once it has passed, or Long.MAX_VALUE without a deadline.
+     */
+    long remainingMillis() {
+        if (!hasDeadline()) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, (deadlineNanos - System.nanoTime()) / 1000000);
+    }
+
+    void markIncomplete(MetricRule rule) {
+        incompleteRules.add(rule);
+    }
+
+    /**
+     * Series still allowed under a global limit, given those already taken by earlier rules.
+     */
+    synchronized int remainingSeries(int maxSeries) {
+        return Math.max(0, maxSeries - usedSeries);
+    }
+
+    synchronized void useSeries(int count) {
+        usedSeries += count;
+    }
+
+    void dropSeries(MetricRule rule, int count) {
+        droppedSeries.put(rule, count);
+    }
+
+    synchronized void suppressSeries(MetricRule rule) {
+        Integer count = suppressedSeries.get(rule);
+        suppressedSeries.put(rule, count == null ? 1 : count + 1);
+    }
+}
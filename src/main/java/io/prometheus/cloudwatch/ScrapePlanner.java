@@ -0,0 +1,278 @@
+package io.prometheus.cloudwatch;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+
+import io.prometheus.cloudwatch.CloudWatchCollector.ActiveConfig;
+import io.prometheus.cloudwatch.CloudWatchCollector.MetricRule;
+
+/**
+ * Predicts what a config will cost before it is rolled out.
+ *
+ * Runs dimension discovery only, either live against CloudWatch or from a file recorded by an earlier
+ * run, and reports per rule the series it would fetch, the API calls per scrape and per hour given the
+ * cache TTLs, and how long a scrape would take at a given concurrency and per-call latency.
+ *
+ * <pre>
+ * java -cp cloudwatch_exporter.jar io.prometheus.cloudwatch.ScrapePlanner config.yml
+ *     [--interval 60] [--concurrency 10] [--latency-ms 150] [--record file | --replay file]
+ * </pre>
+ */
+public class ScrapePlanner {
+
+    /** Most metrics one ListMetrics page returns. */
+    static final int LIST_METRICS_PAGE_SIZE = 500;
+
+    static class Options {
+        String configFile;
+        double intervalSeconds = 60;
+        int concurrency = 10;
+        double latencySeconds = 0.15;
+        String recordFile;
+        String replayFile;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("--interval")) {
+                    options.intervalSeconds = Double.parseDouble(args[++i]);
+                } else if (arg.equals("--concurrency")) {
+                    options.concurrency = Integer.parseInt(args[++i]);
+                } else if (arg.equals("--latency-ms")) {
+                    options.latencySeconds = Double.parseDouble(args[++i]) / 1000;
+                } else if (arg.equals("--record")) {
+                    options.recordFile = args[++i];
+                } else if (arg.equals("--replay")) {
+                    options.replayFile = args[++i];
+                } else if (options.configFile == null) {
+                    options.configFile = arg;
+                } else {
+                    throw new IllegalArgumentException("Unexpected argument: " + arg);
+                }
+            }
+            if (options.configFile == null) {
+                throw new IllegalArgumentException("No config file given");
+            }
+            return options;
+        }
+    }
+
+    static class RulePlan {
+        final MetricRule rule;
+        final int discovered;
+        final int series;
+        // Series not already fetched for an earlier rule merged with this one.
+        final int fetchedSeries;
+        final int listMetricsPages;
+        final double listMetricsPerHour;
+        final double getMetricStatisticsPerHour;
+
+        RulePlan(MetricRule rule, int discovered, int series, int fetchedSeries, int listMetricsPages, double listMetricsPerHour,
+                double getMetricStatisticsPerHour) {
+            this.rule = rule;
+            this.discovered = discovered;
+            this.series = series;
+            this.fetchedSeries = fetchedSeries;
+            this.listMetricsPages = listMetricsPages;
+            this.listMetricsPerHour = listMetricsPerHour;
+            this.getMetricStatisticsPerHour = getMetricStatisticsPerHour;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: ScrapePlanner <yml configuration file> [--interval seconds] [--concurrency n]"
+                    + " [--latency-ms ms] [--record file | --replay file]");
+            System.exit(1);
+            return;
+        }
+
+        Reader in = new FileReader(options.configFile);
+        CloudWatchCollector collector;
+        try {
+            collector = new CloudWatchCollector(in);
+        } finally {
+            in.close();
+        }
+        ActiveConfig config = collector.activeConfig;
+
+        Map<MetricRule, Integer> discovered;
+        if (options.replayFile != null) {
+            Reader recording = new FileReader(options.replayFile);
+            try {
+                discovered = replay(config, recording);
+            } finally {
+                recording.close();
+            }
+        } else {
+            Map<MetricRule, List<List<Dimension>>> dimensions = discover(collector, config);
+            if (options.recordFile != null) {
+                Writer out = new FileWriter(options.recordFile);
+                try {
+                    record(dimensions, out);
+                } finally {
+                    out.close();
+                }
+            }
+            discovered = new LinkedHashMap<MetricRule, Integer>();
+            for (Map.Entry<MetricRule, List<List<Dimension>>> entry : dimensions.entrySet()) {
+                discovered.put(entry.getKey(), entry.getValue().size());
+            }
+        }
+
+        System.out.print(report(plan(config, discovered, options), config, options));
+        collector.activeConfig.retire();
+    }
+
+    /**
+     * Live discovery, including tag_select filtering.
+     */
+    static Map<MetricRule, List<List<Dimension>>> discover(CloudWatchCollector collector, ActiveConfig config) {
+        Map<MetricRule, List<List<Dimension>>> dimensions = new LinkedHashMap<MetricRule, List<List<Dimension>>>();
+        for (MetricRule rule : config.rules) {
+            ScrapeContext context = new ScrapeContext(0);
+            dimensions.put(rule, collector.selectByTags(config, rule, collector.getDimensions(config, rule, context), context));
+        }
+        return dimensions;
+    }
+
+    /**
+     * Writes one line per discovered dimension set: the rule's labels and the dimensions, tab separated.
+     */
+    static void record(Map<MetricRule, List<List<Dimension>>> dimensions, Writer out) throws IOException {
+        for (Map.Entry<MetricRule, List<List<Dimension>>> entry : dimensions.entrySet()) {
+            String rule = ruleKey(entry.getKey());
+            for (List<Dimension> dimensionSet : entry.getValue()) {
+                out.write(rule);
+                for (Dimension dimension : dimensionSet) {
+                    out.write('\t');
+                    out.write(dimension.getName());
+                    out.write('=');
+                    out.write(dimension.getValue());
+                }
+                out.write('\n');
+            }
+        }
+    }
+
+    /**
+     * Counts the recorded dimension sets of each rule. Rules missing from the recording count as not discovered.
+     */
+    static Map<MetricRule, Integer> replay(ActiveConfig config, Reader recording) throws IOException {
+        Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+        BufferedReader reader = new BufferedReader(recording);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] fields = line.split("\t", -1);
+            if (fields.length < 3) {
+                continue;
+            }
+            String rule = fields[0] + "\t" + fields[1] + "\t" + fields[2];
+            Integer count = counts.get(rule);
+            counts.put(rule, count == null ? 1 : count + 1);
+        }
+        Map<MetricRule, Integer> discovered = new LinkedHashMap<MetricRule, Integer>();
+        for (MetricRule rule : config.rules) {
+            Integer count = counts.get(ruleKey(rule));
+            discovered.put(rule, count == null ? 0 : count);
+        }
+        return discovered;
+    }
+
+    private static String ruleKey(MetricRule rule) {
+        List<String> labels = CloudWatchCollector.ruleLabelValues(rule);
+        return labels.get(0) + "\t" + labels.get(1) + "\t" + labels.get(2);
+    }
+
+    /**
+     * Applies max_series and the cache TTLs to the discovered series counts. A cached entry is refetched
+     * by the first scrape after it expires, so a series costs one call every TTL rounded up to whole intervals.
+     * Datapoints stay cached until the next period can be published, at least {@link CloudWatchCollector#METRICS_TTL_SECONDS}.
+     * Rules merged by {@link CloudWatchCollector#mergeFetches(List)} share their series, which are counted for the first of them.
+     */
+    static List<RulePlan> plan(ActiveConfig config, Map<MetricRule, Integer> discovered, Options options) {
+        double dimensionsRefresh = refreshSeconds(CloudWatchCollector.DIMENSIONS_TTL_SECONDS, options.intervalSeconds);
+        int remaining = config.maxSeries > 0 ? config.maxSeries : Integer.MAX_VALUE;
+        List<RulePlan> plans = new ArrayList<RulePlan>();
+        Map<String, Integer> fetchedByGroup = new HashMap<String, Integer>();
+        for (MetricRule rule : config.rules) {
+            Integer count = discovered.get(rule);
+            int found = count == null ? 0 : count;
+            int series = Math.min(found, remaining);
+            if (rule.maxSeries > 0) {
+                series = Math.min(series, rule.maxSeries);
+            }
+            if (config.maxSeries > 0) {
+                remaining -= series;
+            }
+            int pages = rule.awsDimensions == null || CloudWatchCollector.usesInventory(config, rule)
+                    ? 0 : Math.max(1, (found + LIST_METRICS_PAGE_SIZE - 1) / LIST_METRICS_PAGE_SIZE);
+            String group = CloudWatchCollector.fetchGroup(rule);
+            int fetchedBefore = fetchedByGroup.containsKey(group) ? fetchedByGroup.get(group) : 0;
+            int fetched = Math.max(series - fetchedBefore, 0);
+            fetchedByGroup.put(group, fetchedBefore + fetched);
+            double metricsRefresh = refreshSeconds(Math.max(rule.periodSeconds, CloudWatchCollector.METRICS_TTL_SECONDS), options.intervalSeconds);
+            plans.add(new RulePlan(rule, found, series, fetched, pages, pages * 3600 / dimensionsRefresh, fetched * 3600 / metricsRefresh));
+        }
+        return plans;
+    }
+
+    private static double refreshSeconds(int ttlSeconds, double intervalSeconds) {
+        return Math.ceil(ttlSeconds / intervalSeconds) * intervalSeconds;
+    }
+
+    static String report(List<RulePlan> plans, ActiveConfig config, Options options) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "%10s %10s %12s %12s %12s  %s\n",
+                "discovered", "series", "calls/scrape", "cold/scrape", "calls/hour", "rule"));
+        int coldCalls = 0;
+        int maxPages = 0;
+        double callsPerHour = 0;
+        double cost = 0;
+        for (RulePlan plan : plans) {
+            double ruleCallsPerHour = plan.listMetricsPerHour + plan.getMetricStatisticsPerHour;
+            int ruleColdCalls = plan.listMetricsPages + plan.fetchedSeries;
+            List<String> labels = CloudWatchCollector.ruleLabelValues(plan.rule);
+            sb.append(String.format(Locale.ROOT, "%10d %10d %12.1f %12d %12.0f  %s %s [%s]\n", plan.discovered, plan.series,
+                    ruleCallsPerHour * options.intervalSeconds / 3600, ruleColdCalls, ruleCallsPerHour,
+                    labels.get(0), labels.get(1), labels.get(2)));
+            coldCalls += ruleColdCalls;
+            maxPages = Math.max(maxPages, plan.listMetricsPages);
+            callsPerHour += ruleCallsPerHour;
+            cost += plan.listMetricsPerHour * config.apiPrices.listMetrics
+                    + plan.getMetricStatisticsPerHour * config.apiPrices.getMetricStatistics;
+        }
+        double steadyCalls = callsPerHour * options.intervalSeconds / 3600;
+        // ListMetrics pages of one rule are requested one after the other.
+        double coldSeconds = Math.max(maxPages, Math.ceil((double) coldCalls / options.concurrency)) * options.latencySeconds;
+        double steadySeconds = Math.ceil(steadyCalls / options.concurrency) * options.latencySeconds;
+
+        sb.append(String.format(Locale.ROOT, "\nCalls: %.1f per scrape on average, %d with a cold cache, %.0f per hour.\n",
+                steadyCalls, coldCalls, callsPerHour));
+        sb.append(String.format(Locale.ROOT, "Estimated cost: $%.4f per hour, $%.2f per 30 days.\n", cost, cost * 24 * 30));
+        sb.append(String.format(Locale.ROOT, "Scrape time at concurrency %d and %.0fms per call: %.1fs on average, %.1fs with a cold cache,"
+                + " for a %.0fs interval.\n", options.concurrency, options.latencySeconds * 1000, steadySeconds, coldSeconds, options.intervalSeconds));
+        double budget = config.scrapeTimeoutSeconds > 0 ? config.scrapeTimeoutSeconds : options.intervalSeconds;
+        if (coldSeconds > budget) {
+            sb.append(String.format(Locale.ROOT, "A cold scrape does not fit in %.0fs; raise max_requests_in_flight or lower max_series.\n", budget));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,198 @@
+package io.prometheus.cloudwatch;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.amazonaws.services.cloudwatch.model.Datapoint;
+
+/**
+ * Compact, immutable copy of the newest CloudWatch datapoint of a series, as kept in the metrics cache.
+ *
+ * A {@link Datapoint} holds boxed Doubles, a Date, its own unit string and a HashMap of extended
+ * statistics. Here the statistics that are present are flagged in a bitmask and their values packed
+ * into one primitive array, the timestamp is kept in epoch seconds, and the unit and extended
+ * statistic names are shared between all series.
+ */
+final class SeriesValue {
+
+    static final int SUM = 1;
+    static final int SAMPLE_COUNT = 1 << 1;
+    static final int MINIMUM = 1 << 2;
+    static final int MAXIMUM = 1 << 3;
+    static final int AVERAGE = 1 << 4;
+
+    // CloudWatch names of the standard statistics, in bit order.
+    private static final List<String> STANDARD_NAMES = Arrays.asList("Sum", "SampleCount", "Minimum", "Maximum", "Average");
+
+    private static final String[] NO_NAMES = new String[0];
+
+    private static final ConcurrentMap<List<String>, String[]> EXTENDED_NAMES = new ConcurrentHashMap<List<String>, String[]>();
+
+    private final byte present;
+    private final long timestampSeconds;
+    private final String unit;
+    private final String[] extendedNames;
+    // Present standard statistics in bit order, followed by the extended statistics.
+    private final double[] values;
+
+    private SeriesValue(byte present, long timestampSeconds, String unit, String[] extendedNames, double[] values) {
+        this.present = present;
+        this.timestampSeconds = timestampSeconds;
+        this.unit = unit;
+        this.extendedNames = extendedNames;
+        this.values = values;
+    }
+
+    /**
+     * Returns null for a null datapoint, so absent series stay absent in the cache.
+     */
+    static SeriesValue of(Datapoint dp) {
+        if (dp == null) {
+            return null;
+        }
+        Double[] standard = { dp.getSum(), dp.getSampleCount(), dp.getMinimum(), dp.getMaximum(), dp.getAverage() };
+        int present = 0;
+        int count = 0;
+        for (int i = 0; i < standard.length; i++) {
+            if (standard[i] != null) {
+                present |= 1 << i;
+                count++;
+            }
+        }
+        Map<String, Double> extended = dp.getExtendedStatistics();
+        String[] names = NO_NAMES;
+        if (extended != null && !extended.isEmpty()) {
+            names = internNames(extended.keySet().toArray(new String[extended.size()]));
+        }
+        double[] values = new double[count + names.length];
+        int next = 0;
+        for (Double value : standard) {
+            if (value != null) {
+                values[next++] = value;
+            }
+        }
+        for (String name : names) {
+            values[next++] = extended.get(name);
+        }
+        long timestamp = dp.getTimestamp() == null ? 0 : dp.getTimestamp().getTime() / 1000;
+        String unit = dp.getUnit() == null ? null : dp.getUnit().intern();
+        return new SeriesValue((byte) present, timestamp, unit, names, values);
+    }
+
+    boolean has(int statistic) {
+        return (present & statistic) != 0;
+    }
+
+    /**
+     * Value of one of the standard statistics, which must be present.
+     */
+    double get(int statistic) {
+        if (!has(statistic)) {
+            throw new IllegalArgumentException("Statistic not present: " + statistic);
+        }
+        return values[Integer.bitCount(present & (statistic - 1))];
+    }
+
+    /**
+     * Value of a standard or extended statistic by its CloudWatch name, or null if it is not present.
+     */
+    Double get(String statistic) {
+        int standard = STANDARD_NAMES.indexOf(statistic);
+        if (standard >= 0) {
+            return has(1 << standard) ? get(1 << standard) : null;
+        }
+        for (int i = 0; i < extendedNames.length; i++) {
+            if (extendedNames[i].equals(statistic)) {
+                return extendedValue(i);
+            }
+        }
+        return null;
+    }
+
+    int extendedCount() {
+        return extendedNames.length;
+    }
+
+    String extendedName(int i) {
+        return extendedNames[i];
+    }
+
+    double extendedValue(int i) {
+        return values[Integer.bitCount(present) + i];
+    }
+
+    long getTimestampSeconds() {
+        return timestampSeconds;
+    }
+
+    String getUnit() {
+        return unit;
+    }
+
+    /**
+     * Heap size of this value; the unit and extended statistic names are shared and not counted.
+     */
+    long estimatedBytes() {
+        return 40 + 16 + 8L * values.length;
+    }
+
+    /**
+     * Writes this value for the remote cache tier, see {@link #readFrom(DataInput)}.
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeByte(present);
+        out.writeLong(timestampSeconds);
+        out.writeBoolean(unit != null);
+        if (unit != null) {
+            out.writeUTF(unit);
+        }
+        out.writeShort(extendedNames.length);
+        for (String name : extendedNames) {
+            out.writeUTF(name);
+        }
+        for (double value : values) {
+            out.writeDouble(value);
+        }
+    }
+
+    /**
+     * Reads a value written by {@link #writeTo(DataOutput)}, sharing the unit and names like {@link #of(Datapoint)}.
+     */
+    static SeriesValue readFrom(DataInput in) throws IOException {
+        byte present = in.readByte();
+        long timestamp = in.readLong();
+        String unit = in.readBoolean() ? in.readUTF().intern() : null;
+        String[] names = new String[in.readShort()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = in.readUTF();
+        }
+        names = names.length == 0 ? NO_NAMES : internNames(names);
+        double[] values = new double[Integer.bitCount(present & 0xFF) + names.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readDouble();
+        }
+        return new SeriesValue(present, timestamp, unit, names, values);
+    }
+
+    private static String[] internNames(String[] names) {
+        Arrays.sort(names);
+        List<String> key = Arrays.asList(names);
+        String[] shared = EXTENDED_NAMES.get(key);
+        if (shared == null) {
+            for (int i = 0; i < names.length; i++) {
+                names[i] = names[i].intern();
+            }
+            shared = EXTENDED_NAMES.putIfAbsent(Arrays.asList(names), names);
+            if (shared == null) {
+                shared = names;
+            }
+        }
+        return shared;
+    }
+}
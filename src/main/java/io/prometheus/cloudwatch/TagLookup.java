@@ -0,0 +1,240 @@
+package io.prometheus.cloudwatch;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+
+/**
+ * Tag lookups against the Pacman/Elasticsearch proxy, isolated from the scrape.
+ *
+ * Lookups run in their own small thread pool (a bulkhead), so a degraded proxy can tie up at most
+ * {@code max_concurrency} threads, and go through a {@link CircuitBreaker} that stops calling the
+ * proxy once too many lookups fail or are slow. A lookup that is rejected, times out or fails
+ * returns null, and the caller falls back to cached or default tags.
+ */
+class TagLookup {
+    private static final Logger LOGGER = Logger.getLogger(TagLookup.class.getName());
+
+    private static final Gauge circuitState = Gauge.build()
+            .name("cloudwatch_exporter_tag_lookup_circuit_state")
+            .help("State of the tag lookup circuit breaker: 0 closed, 1 half-open, 2 open.").register();
+
+    private static final Counter circuitTransitions = Counter.build()
+            .name("cloudwatch_exporter_tag_lookup_circuit_transitions_total")
+            .labelNames("from", "to")
+            .help("Tag lookup circuit breaker state changes.").register();
+
+    private static final Counter lookups = Counter.build()
+            .name("cloudwatch_exporter_tag_lookups_total")
+            .labelNames("outcome")
+            .help("Tag lookups by outcome: success, failure, timeout, circuit_open or pool_full.").register();
+
+    /**
+     * Tunables, read from the optional tag_lookup section of the config.
+     */
+    static class Settings {
+        int maxConcurrency = 4;
+        int queueSize = 16;
+        double timeoutSeconds = 5;
+        int windowSize = 20;
+        int minimumCalls = 10;
+        double failureRateThreshold = 0.5;
+        double slowCallSeconds = 2;
+        double slowCallRateThreshold = 0.8;
+        double openSeconds = 30;
+        int halfOpenProbes = 3;
+
+        static Settings fromConfig(Map<String, Object> config) {
+            Settings settings = new Settings();
+            if (config == null) {
+                return settings;
+            }
+            if (config.containsKey("max_concurrency")) {
+                settings.maxConcurrency = ((Number) config.get("max_concurrency")).intValue();
+            }
+            if (config.containsKey("queue_size")) {
+                settings.queueSize = ((Number) config.get("queue_size")).intValue();
+            }
+            if (config.containsKey("timeout_seconds")) {
+                settings.timeoutSeconds = ((Number) config.get("timeout_seconds")).doubleValue();
+            }
+            if (config.containsKey("window_size")) {
+                settings.windowSize = ((Number) config.get("window_size")).intValue();
+            }
+            if (config.containsKey("minimum_calls")) {
+                settings.minimumCalls = ((Number) config.get("minimum_calls")).intValue();
+            }
+            if (config.containsKey("failure_rate_threshold")) {
+                settings.failureRateThreshold = ((Number) config.get("failure_rate_threshold")).doubleValue();
+            }
+            if (config.containsKey("slow_call_seconds")) {
+                settings.slowCallSeconds = ((Number) config.get("slow_call_seconds")).doubleValue();
+            }
+            if (config.containsKey("slow_call_rate_threshold")) {
+                settings.slowCallRateThreshold = ((Number) config.get("slow_call_rate_threshold")).doubleValue();
+            }
+            if (config.containsKey("open_seconds")) {
+                settings.openSeconds = ((Number) config.get("open_seconds")).doubleValue();
+            }
+            if (config.containsKey("half_open_probes")) {
+                settings.halfOpenProbes = ((Number) config.get("half_open_probes")).intValue();
+            }
+            return settings;
+        }
+
+        @Override
+        public String toString() {
+            return maxConcurrency + " " + queueSize + " " + timeoutSeconds + " " + windowSize + " " + minimumCalls + " "
+                    + failureRateThreshold + " " + slowCallSeconds + " " + slowCallRateThreshold + " " + openSeconds + " " + halfOpenProbes;
+        }
+    }
+
+    /**
+     * Does the actual lookup; {@link ESClient} outside of tests.
+     */
+    interface Source {
+        Map<String, String> lookup(String fieldName, String fieldValue, String esPath, List<String> additionalLabels) throws Exception;
+    }
+
+    static final Source ES_SOURCE = new Source() {
+        public Map<String, String> lookup(String fieldName, String fieldValue, String esPath, List<String> additionalLabels) throws Exception {
+            return ESClient.lookupTags(fieldName, fieldValue, esPath, additionalLabels);
+        }
+    };
+
+    final Settings settings;
+    final Source source;
+    private final CircuitBreaker breaker;
+    private final ThreadPoolExecutor pool;
+    private int holders;
+
+    TagLookup(Settings settings, Source source) {
+        this.settings = settings;
+        this.source = source;
+        this.breaker = new CircuitBreaker(settings.windowSize, settings.minimumCalls, settings.failureRateThreshold,
+                (long) (settings.slowCallSeconds * 1.0E9), settings.slowCallRateThreshold, (long) (settings.openSeconds * 1.0E9),
+                settings.halfOpenProbes, new CircuitBreaker.Listener() {
+                    public void onTransition(CircuitBreaker.State from, CircuitBreaker.State to) {
+                        LOGGER.log(to == CircuitBreaker.State.OPEN ? Level.WARNING : Level.INFO,
+                                "Tag lookup circuit breaker " + from + " -> " + to);
+                        circuitState.set(to.ordinal());
+                        circuitTransitions.labels(from.name().toLowerCase(), to.name().toLowerCase()).inc();
+                    }
+                });
+        circuitState.set(CircuitBreaker.State.CLOSED.ordinal());
+        this.pool = new ThreadPoolExecutor(settings.maxConcurrency, settings.maxConcurrency, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(settings.queueSize), new DaemonThreadFactory("tag-lookup"));
+        this.pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Sizes the shared HTTP client for these settings. Called once the config holding this lookup is active,
+     * so a config that fails to load never changes the client the active one uses.
+     */
+    void start() {
+        if (source == ES_SOURCE) {
+            long timeoutMillis = (long) (settings.timeoutSeconds * 1000);
+            ESClient.configureHttpClient(settings.maxConcurrency, timeoutMillis, timeoutMillis);
+        }
+    }
+
+    /**
+     * Returns the tags of a resource, or null if the lookup was rejected or failed or did not finish within
+     * the timeout or remainingMillis, whichever is shorter.
+     */
+    Map<String, String> findTags(final String fieldName, final String fieldValue, final String esPath, final List<String> additionalLabels,
+            long remainingMillis) {
+        if (!breaker.tryAcquire()) {
+            lookups.labels("circuit_open").inc();
+            return null;
+        }
+        Future<Map<String, String>> future;
+        try {
+            future = pool.submit(new Callable<Map<String, String>>() {
+                public Map<String, String> call() throws Exception {
+                    long start = System.nanoTime();
+                    try {
+                        Map<String, String> tags = source.lookup(fieldName, fieldValue, esPath, additionalLabels);
+                        breaker.onSuccess(System.nanoTime() - start);
+                        return tags;
+                    } catch (Exception e) {
+                        breaker.onFailure(System.nanoTime() - start);
+                        throw e;
+                    } catch (Error e) {
+                        breaker.onFailure(System.nanoTime() - start);
+                        throw e;
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            if (pool.isShutdown()) {
+                // Replaced by a reload, which says nothing about the proxy.
+                breaker.onCancel();
+                return null;
+            }
+            // The call never ran, so count it against the breaker to keep its permit accounting balanced.
+            breaker.onFailure(0);
+            lookups.labels("pool_full").inc();
+            return null;
+        }
+        try {
+            Map<String, String> tags = future.get(Math.min((long) (settings.timeoutSeconds * 1000), remainingMillis), TimeUnit.MILLISECONDS);
+            lookups.labels("success").inc();
+            return tags;
+        } catch (TimeoutException e) {
+            // Keeps running until the HTTP timeout, and reports its outcome to the breaker then.
+            lookups.labels("timeout").inc();
+            return null;
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.WARNING, "Tag lookup failed for " + fieldName + "=" + fieldValue + ": " + e.getCause());
+            lookups.labels("failure").inc();
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    CircuitBreaker.State getState() {
+        return breaker.getState();
+    }
+
+    boolean isShutdown() {
+        return pool.isShutdown();
+    }
+
+    /**
+     * Counts a config holding this lookup. Configs reusing it across reloads each hold it.
+     */
+    synchronized void retain() {
+        holders++;
+    }
+
+    /**
+     * Drops a config's hold, once no scrape uses that config any more, and shuts down with the last one.
+     */
+    void release() {
+        synchronized (this) {
+            if (--holders > 0) {
+                return;
+            }
+        }
+        shutdown();
+    }
+
+    void shutdown() {
+        pool.shutdown();
+    }
+}
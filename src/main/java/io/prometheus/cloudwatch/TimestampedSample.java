@@ -0,0 +1,21 @@
+package io.prometheus.cloudwatch;
+
+import java.util.List;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+
+/**
+ * A sample that carries the timestamp of the CloudWatch datapoint it came from.
+ *
+ * The 0.0.4 text format ignores it; OpenMetrics, protobuf and remote write send it, so Prometheus
+ * stores each value at the time CloudWatch measured it rather than at the time it was scraped.
+ */
+public class TimestampedSample extends MetricFamilySamples.Sample {
+
+    public final long timestampMillis;
+
+    public TimestampedSample(String name, List<String> labelNames, List<String> labelValues, double value, long timestampMillis) {
+        super(name, labelNames, labelValues, value);
+        this.timestampMillis = timestampMillis;
+    }
+}
@@ -0,0 +1,88 @@
+package io.prometheus.cloudwatch;
+
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fills the caches before the exporter announces itself.
+ *
+ * Right after a start every rule needs its dimensions, tags and datapoints fetched, which takes longer
+ * than a scrape may. The warm-up runs one scrape of all rules without a deadline in the background;
+ * the exporter counts as ready once it has finished, or once the timeout has passed so a slow or
+ * failing account cannot keep it out of service discovery for good.
+ */
+class WarmUp implements Runnable {
+    private static final Logger LOGGER = Logger.getLogger(CloudWatchCollector.class.getName());
+
+    private final CloudWatchCollector collector;
+    private final long timeoutNanos;
+    private final ScrapeContext context = new ScrapeContext(0);
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final int totalRules;
+    private volatile long startNanos;
+    private volatile long finishNanos;
+    private volatile boolean failed;
+
+    /**
+     * @param timeoutSeconds time after which the exporter is ready even if the warm-up has not finished
+     */
+    WarmUp(CloudWatchCollector collector, double timeoutSeconds) {
+        this.collector = collector;
+        this.timeoutNanos = (long) (timeoutSeconds * 1.0E9);
+        this.totalRules = collector.activeConfig.rules.size();
+    }
+
+    /**
+     * Starts the warm-up in a daemon thread.
+     */
+    void start() {
+        startNanos = System.nanoTime();
+        Thread thread = new Thread(this, "warm-up");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void run() {
+        try {
+            collector.warmUp(context);
+        } catch (Exception e) {
+            failed = true;
+            LOGGER.log(Level.WARNING, "Warm-up failed", e);
+        } finally {
+            finishNanos = System.nanoTime();
+            done.countDown();
+        }
+        LOGGER.log(Level.INFO, status());
+    }
+
+    boolean isFinished() {
+        return done.getCount() == 0;
+    }
+
+    boolean isReady() {
+        return isFinished() || System.nanoTime() - startNanos >= timeoutNanos;
+    }
+
+    /**
+     * Blocks until the warm-up has finished or timed out.
+     */
+    void awaitReady() throws InterruptedException {
+        long remaining = timeoutNanos - (System.nanoTime() - startNanos);
+        if (remaining > 0) {
+            done.await(remaining, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    String status() {
+        if (isFinished()) {
+            return String.format(Locale.ROOT, "Ready: warm-up %s, %d of %d rules in %.1fs\n", failed ? "failed" : "finished",
+                    context.completedRules.get(), totalRules, (finishNanos - startNanos) / 1.0E9);
+        }
+        double elapsed = (System.nanoTime() - startNanos) / 1.0E9;
+        return String.format(Locale.ROOT, "%s: warm-up running, %d of %d rules, %.1fs of %.1fs\n",
+                isReady() ? "Ready" : "Not ready", context.completedRules.get(), totalRules, elapsed, timeoutNanos / 1.0E9);
+    }
+}
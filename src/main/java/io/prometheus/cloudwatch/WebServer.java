@@ -11,13 +11,16 @@ import java.net.URLConnection;
 import java.util.logging.Logger;
 
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
 import com.mashape.unirest.http.HttpResponse;
 import com.mashape.unirest.http.Unirest;
 
 import io.prometheus.cloudwatch.servlet.CouldWatchMetricsServlet;
+import io.prometheus.cloudwatch.servlet.ScrapeAdmission;
 
 public class WebServer {
         private static Logger log = Logger.getLogger(WebServer.class.getName());
@@ -25,6 +28,17 @@ public class WebServer {
     private static final String CONFIG_FILE = "CONFIG_FILE";
     private static final String CONSUL_SERVERS = "CONSUL_SERVERS";
     private static final String RESOURCE_TYPE = "RESOURCE_TYPE";
+    private static final String WARM_UP_TIMEOUT_SECONDS = "WARM_UP_TIMEOUT_SECONDS";
+    private static final double DEFAULT_WARM_UP_TIMEOUT_SECONDS = 120;
+    // Jetty's own threads: acceptors take connections, workers run requests; requests beyond that queue up to HTTP_MAX_QUEUED.
+    private static final String HTTP_ACCEPTORS = "HTTP_ACCEPTORS";
+    private static final String HTTP_MIN_THREADS = "HTTP_MIN_THREADS";
+    private static final String HTTP_MAX_THREADS = "HTTP_MAX_THREADS";
+    private static final String HTTP_MAX_QUEUED = "HTTP_MAX_QUEUED";
+    // Admission control for /metrics, see ScrapeAdmission.
+    private static final String MAX_CONCURRENT_SCRAPES = "MAX_CONCURRENT_SCRAPES";
+    private static final String SCRAPE_QUEUE_SIZE = "SCRAPE_QUEUE_SIZE";
+    private static final String SCRAPE_QUEUE_TIMEOUT_SECONDS = "SCRAPE_QUEUE_TIMEOUT_SECONDS";
     public static String REQUEST_TEMPLATE =
             "{" +
             "   \"ID\": \"CloudWatchExporter-{HOST}-{PORT}\"," +
@@ -59,12 +73,6 @@ public class WebServer {
             configFilePath = args[1];
         }
 
-        // get consul config
-        String consulServers = System.getenv(CONSUL_SERVERS);
-        if (consulServers != null) {
-            registerOnConsul(consulServers);
-        }
-
         // get resource type
         String resourceTypeValue = System.getenv(RESOURCE_TYPE);
         if (resourceTypeValue != null) {
@@ -78,19 +86,60 @@ public class WebServer {
         CloudWatchCollector collector = new CloudWatchCollector(getConfigFileReader(configFilePath));
 
         ReloadSignalHandler.start(collector);
+        ConfigFileWatcher.start(collector, configFilePath);
+
+        String warmUpTimeout = System.getenv(WARM_UP_TIMEOUT_SECONDS);
+        WarmUp warmUp = new WarmUp(collector,
+                warmUpTimeout != null ? Double.parseDouble(warmUpTimeout) : DEFAULT_WARM_UP_TIMEOUT_SECONDS);
+        warmUp.start();
 
         int port = Integer.parseInt(args[0]);
-        Server server = new Server(port);
+        Server server = new Server();
+        QueuedThreadPool threadPool = new QueuedThreadPool();
+        threadPool.setName("http");
+        threadPool.setMinThreads(intFromEnv(HTTP_MIN_THREADS, 4));
+        threadPool.setMaxThreads(intFromEnv(HTTP_MAX_THREADS, 32));
+        threadPool.setMaxQueued(intFromEnv(HTTP_MAX_QUEUED, 256));
+        server.setThreadPool(threadPool);
+        SelectChannelConnector connector = new SelectChannelConnector();
+        connector.setPort(port);
+        connector.setAcceptors(intFromEnv(HTTP_ACCEPTORS, 1));
+        server.addConnector(connector);
+
+        ScrapeAdmission admission = new ScrapeAdmission(intFromEnv(MAX_CONCURRENT_SCRAPES, 4), intFromEnv(SCRAPE_QUEUE_SIZE, 16),
+                doubleFromEnv(SCRAPE_QUEUE_TIMEOUT_SECONDS, 60));
+        log.info("Scrape admission: " + admission);
         ServletContextHandler context = new ServletContextHandler();
         context.setContextPath("/");
         server.setHandler(context);
-        context.addServlet(new ServletHolder(new CouldWatchMetricsServlet(collector)), "/metrics/*");
+        ServletHolder metrics = new ServletHolder(new CouldWatchMetricsServlet(collector, admission));
+        metrics.setAsyncSupported(true);
+        context.addServlet(metrics, "/metrics/*");
         context.addServlet(new ServletHolder(new DynamicReloadServlet(collector)), "/-/reload");
+        context.addServlet(new ServletHolder(new CostServlet(collector)), "/debug/cost");
+        context.addServlet(new ServletHolder(new ReadyServlet(warmUp)), "/-/ready");
         context.addServlet(new ServletHolder(new HomePageServlet()), "/");
         server.start();
+
+        // Register only once the caches are warm, so the first scrapes Consul sends our way do not time out.
+        String consulServers = System.getenv(CONSUL_SERVERS);
+        if (consulServers != null) {
+            warmUp.awaitReady();
+            registerOnConsul(consulServers);
+        }
         server.join();
     }
 
+    private static int intFromEnv(String name, int defaultValue) {
+        String value = System.getenv(name);
+        return value != null ? Integer.parseInt(value.trim()) : defaultValue;
+    }
+
+    private static double doubleFromEnv(String name, double defaultValue) {
+        String value = System.getenv(name);
+        return value != null ? Double.parseDouble(value.trim()) : defaultValue;
+    }
+
     private static Reader getConfigFileReader(String configFilePath) throws IOException {
         URL configURL = null;
         try {
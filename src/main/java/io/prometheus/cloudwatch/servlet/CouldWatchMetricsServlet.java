@@ -1,13 +1,21 @@
 package io.prometheus.cloudwatch.servlet;
 
-import io.prometheus.client.exporter.common.TextFormat;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.CollectorRegistry;
 import io.prometheus.cloudwatch.CloudWatchCollector;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Enumeration;
+import java.util.List;
 
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -15,26 +23,117 @@ import javax.servlet.http.HttpServletResponse;
 
 public class CouldWatchMetricsServlet extends HttpServlet {
 
+    private static final String SCRAPE_TIMEOUT_HEADER = "X-Prometheus-Scrape-Timeout-Seconds";
+
+    private static final Logger LOGGER = Logger.getLogger(CouldWatchMetricsServlet.class.getName());
+
     private CloudWatchCollector collector;
+    private final ScrapeAdmission admission;
 
     public CouldWatchMetricsServlet(CloudWatchCollector collector) {
+        this(collector, null);
+    }
+
+    /**
+     * Collects on the admission's scrape threads, asynchronously, so waiting scrapes do not hold container threads.
+     * Needs the servlet to be registered with async support.
+     */
+    public CouldWatchMetricsServlet(CloudWatchCollector collector, ScrapeAdmission admission) {
         this.collector = collector;
+        this.admission = admission;
     }
 
     @Override
     protected void doGet(final HttpServletRequest req, final HttpServletResponse resp) throws ServletException, IOException {
-        resp.setStatus(HttpServletResponse.SC_OK);
-        resp.setContentType(TextFormat.CONTENT_TYPE_004);
+        if (admission == null) {
+            serve(req, resp, scrapeTimeout(req));
+            return;
+        }
+        final double scrapeTimeout = scrapeTimeout(req);
+        final AsyncContext async = req.startAsync();
+        // Scrapes end on their own deadline; the admission turns away those that waited too long.
+        async.setTimeout(0);
+        boolean admitted = admission.submit(new ScrapeAdmission.Scrape() {
+            public void run(double waitedSeconds, boolean expired) {
+                HttpServletResponse response = (HttpServletResponse) async.getResponse();
+                try {
+                    if (expired) {
+                        reject(response, "Scrape waited " + waitedSeconds + "s in the queue");
+                    } else {
+                        serve((HttpServletRequest) async.getRequest(), response,
+                                scrapeTimeout > 0 ? Math.max(scrapeTimeout - waitedSeconds, 0.001) : 0);
+                    }
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Scrape failed", e);
+                    if (!response.isCommitted()) {
+                        response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                    }
+                } finally {
+                    async.complete();
+                }
+            }
+        }, scrapeTimeout);
+        if (!admitted) {
+            try {
+                reject(resp, "Too many scrapes queued");
+            } finally {
+                async.complete();
+            }
+        }
+    }
+
+    private static void reject(HttpServletResponse resp, String reason) throws IOException {
+        resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        resp.setHeader("Retry-After", "1");
+        resp.setContentType("text/plain");
+        resp.getWriter().print(reason + "\n");
+    }
+
+    private void serve(HttpServletRequest req, HttpServletResponse resp, double scrapeTimeout) throws IOException {
         String namespace = req.getParameter("namespace");
+        List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>(collector.collect(namespace, scrapeTimeout));
+        if (namespace == null) {
+            // The exporter's own counters, such as API calls and tag lookups, once rather than per namespace.
+            mfs.addAll(Collections.list(CollectorRegistry.defaultRegistry.metricFamilySamples()));
+        }
+        ExpositionFormat format = ExpositionFormat.negotiate(req.getHeader("Accept"));
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType(format.contentType);
+        if (format == ExpositionFormat.PROTOBUF) {
+            OutputStream out = new BufferedOutputStream(resp.getOutputStream());
+            try {
+                ExpositionFormat.writeProtobuf(out, mfs);
+                out.flush();
+            } finally {
+                out.close();
+            }
+            return;
+        }
         Writer writer = resp.getWriter();
         try {
-            TextFormat.write004(writer, Collections.enumeration(collector.collect(namespace)));
+            if (format == ExpositionFormat.OPENMETRICS) {
+                ExpositionFormat.writeOpenMetrics(writer, mfs);
+            } else {
+                ExpositionFormat.writeText(writer, mfs);
+            }
             writer.flush();
         } finally {
             writer.close();
         }
     }
 
+    private static double scrapeTimeout(HttpServletRequest req) {
+        String header = req.getHeader(SCRAPE_TIMEOUT_HEADER);
+        if (header == null) {
+            return 0;
+        }
+        try {
+            return Double.parseDouble(header);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     @Override
     protected void doPost(final HttpServletRequest req, final HttpServletResponse resp) throws ServletException, IOException {
         doGet(req, resp);
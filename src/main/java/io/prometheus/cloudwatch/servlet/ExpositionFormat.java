@@ -0,0 +1,222 @@
+package io.prometheus.cloudwatch.servlet;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.exporter.common.TextFormat;
+import io.prometheus.cloudwatch.ProtoWriter;
+import io.prometheus.cloudwatch.TimestampedSample;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The exposition formats /metrics can serve, chosen from the scraper's Accept header.
+ *
+ * OpenMetrics and the delimited protobuf format carry the CloudWatch datapoint timestamps; protobuf
+ * is also smaller and cheaper for Prometheus to parse than text. The 0.0.4 text format stays the
+ * default for scrapers that ask for nothing else.
+ */
+enum ExpositionFormat {
+
+    TEXT_004(TextFormat.CONTENT_TYPE_004),
+
+    OPENMETRICS("application/openmetrics-text; version=1.0.0; charset=utf-8"),
+
+    PROTOBUF("application/vnd.google.protobuf; proto=io.prometheus.client.MetricFamily; encoding=delimited");
+
+    final String contentType;
+
+    ExpositionFormat(String contentType) {
+        this.contentType = contentType;
+    }
+
+    /**
+     * Picks protobuf or OpenMetrics if the Accept header names them, in that order of preference, and text otherwise.
+     */
+    static ExpositionFormat negotiate(String accept) {
+        if (accept == null) {
+            return TEXT_004;
+        }
+        boolean openMetrics = false;
+        for (String part : accept.split(",")) {
+            String mediaRange = part.trim();
+            if (mediaRange.startsWith("application/vnd.google.protobuf")
+                    && mediaRange.contains("proto=io.prometheus.client.MetricFamily")
+                    && mediaRange.contains("encoding=delimited")) {
+                return PROTOBUF;
+            }
+            if (mediaRange.startsWith("application/openmetrics-text")) {
+                openMetrics = true;
+            }
+        }
+        return openMetrics ? OPENMETRICS : TEXT_004;
+    }
+
+    static void writeText(Writer writer, List<MetricFamilySamples> mfs) throws IOException {
+        TextFormat.write004(writer, Collections.enumeration(mfs));
+    }
+
+    /**
+     * Writes OpenMetrics text. Counter families are named without their _total suffix, as the format requires.
+     * Counters whose samples lack the suffix, such as cloudwatch_exporter_cache_hitcount, are written as unknown,
+     * which keeps their names valid without renaming the series.
+     */
+    static void writeOpenMetrics(Writer writer, List<MetricFamilySamples> mfs) throws IOException {
+        for (MetricFamilySamples family : mfs) {
+            String name = family.name;
+            String type = openMetricsType(family.type);
+            if (family.type == Collector.Type.COUNTER) {
+                if (name.endsWith("_total")) {
+                    name = name.substring(0, name.length() - "_total".length());
+                } else {
+                    type = "unknown";
+                }
+            }
+            writer.write("# TYPE ");
+            writer.write(name);
+            writer.write(' ');
+            writer.write(type);
+            writer.write('\n');
+            writer.write("# HELP ");
+            writer.write(name);
+            writer.write(' ');
+            writeEscaped(writer, family.help);
+            writer.write('\n');
+            for (MetricFamilySamples.Sample sample : family.samples) {
+                writer.write(sample.name);
+                if (!sample.labelNames.isEmpty()) {
+                    writer.write('{');
+                    for (int i = 0; i < sample.labelNames.size(); i++) {
+                        if (i > 0) {
+                            writer.write(',');
+                        }
+                        writer.write(sample.labelNames.get(i));
+                        writer.write("=\"");
+                        writeEscaped(writer, sample.labelValues.get(i));
+                        writer.write('"');
+                    }
+                    writer.write('}');
+                }
+                writer.write(' ');
+                writer.write(Collector.doubleToGoString(sample.value));
+                if (sample instanceof TimestampedSample) {
+                    long millis = ((TimestampedSample) sample).timestampMillis;
+                    writer.write(' ');
+                    writer.write(Long.toString(millis / 1000));
+                    if (millis % 1000 != 0) {
+                        writer.write('.');
+                        writer.write(Long.toString(1000 + millis % 1000).substring(1));
+                    }
+                }
+                writer.write('\n');
+            }
+        }
+        writer.write("# EOF\n");
+    }
+
+    private static String openMetricsType(Collector.Type type) {
+        switch (type) {
+            case COUNTER:
+                return "counter";
+            case GAUGE:
+                return "gauge";
+            case SUMMARY:
+                return "summary";
+            case HISTOGRAM:
+                return "histogram";
+            default:
+                return "unknown";
+        }
+    }
+
+    private static void writeEscaped(Writer writer, String s) throws IOException {
+        if (s == null) {
+            return;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                default:
+                    writer.write(c);
+            }
+        }
+    }
+
+    /**
+     * Writes length delimited io.prometheus.client.MetricFamily messages.
+     *
+     * A MetricFamily has one name, so samples are grouped by sample name. Summary and histogram
+     * families, which the exporter does not produce from CloudWatch data, are written as one untyped
+     * family per sample name rather than rebuilt into quantiles and buckets.
+     */
+    static void writeProtobuf(OutputStream out, List<MetricFamilySamples> mfs) throws IOException {
+        ByteArrayOutputStream family = new ByteArrayOutputStream();
+        ByteArrayOutputStream metric = new ByteArrayOutputStream();
+        ByteArrayOutputStream value = new ByteArrayOutputStream(9);
+        ByteArrayOutputStream length = new ByteArrayOutputStream(5);
+        for (MetricFamilySamples mf : mfs) {
+            Map<String, List<MetricFamilySamples.Sample>> byName = new LinkedHashMap<String, List<MetricFamilySamples.Sample>>();
+            for (MetricFamilySamples.Sample sample : mf.samples) {
+                List<MetricFamilySamples.Sample> samples = byName.get(sample.name);
+                if (samples == null) {
+                    samples = new ArrayList<MetricFamilySamples.Sample>();
+                    byName.put(sample.name, samples);
+                }
+                samples.add(sample);
+            }
+            for (Map.Entry<String, List<MetricFamilySamples.Sample>> entry : byName.entrySet()) {
+                // MetricType: COUNTER = 0, GAUGE = 1, UNTYPED = 3. Metric fields: counter = 3, gauge = 2, untyped = 5.
+                int type = 3;
+                int valueField = 5;
+                if (entry.getKey().equals(mf.name) && mf.type == Collector.Type.GAUGE) {
+                    type = 1;
+                    valueField = 2;
+                } else if (entry.getKey().equals(mf.name) && mf.type == Collector.Type.COUNTER) {
+                    type = 0;
+                    valueField = 3;
+                }
+
+                family.reset();
+                ProtoWriter.writeString(family, 1, entry.getKey());
+                ProtoWriter.writeString(family, 2, mf.help);
+                ProtoWriter.writeTag(family, 3, ProtoWriter.VARINT);
+                ProtoWriter.writeVarint(family, type);
+                for (MetricFamilySamples.Sample sample : entry.getValue()) {
+                    // Metric: label = 1, the value message, timestamp_ms = 6.
+                    metric.reset();
+                    for (int i = 0; i < sample.labelNames.size(); i++) {
+                        ProtoWriter.writeLabel(metric, 1, sample.labelNames.get(i), sample.labelValues.get(i));
+                    }
+                    value.reset();
+                    ProtoWriter.writeDouble(value, 1, sample.value);
+                    ProtoWriter.writeMessage(metric, valueField, value);
+                    if (sample instanceof TimestampedSample) {
+                        ProtoWriter.writeTag(metric, 6, ProtoWriter.VARINT);
+                        ProtoWriter.writeVarint(metric, ((TimestampedSample) sample).timestampMillis);
+                    }
+                    ProtoWriter.writeMessage(family, 4, metric);
+                }
+                length.reset();
+                ProtoWriter.writeVarint(length, family.size());
+                length.writeTo(out);
+                family.writeTo(out);
+            }
+        }
+    }
+}
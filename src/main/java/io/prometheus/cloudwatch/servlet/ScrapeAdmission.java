@@ -0,0 +1,105 @@
+package io.prometheus.cloudwatch.servlet;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admission control for /metrics: at most maxConcurrentScrapes collections run at once on their own
+ * threads, up to queueSize more wait in line, and anything beyond that is turned away at once so a
+ * burst of scrapes, such as after a Prometheus restart, cannot run enough collections in parallel to
+ * exhaust the heap. A scrape that waited longer than the queue timeout, or than Prometheus will wait
+ * for it, is turned away too rather than collected for nobody.
+ */
+public class ScrapeAdmission {
+
+    static final String QUEUE_FULL = "queue_full";
+    static final String QUEUE_TIMEOUT = "queue_timeout";
+
+    private static final Gauge queued = Gauge.build()
+            .name("cloudwatch_exporter_scrape_queue_depth").help("Scrapes waiting for a scrape thread.").register();
+    private static final Gauge inProgress = Gauge.build()
+            .name("cloudwatch_exporter_scrapes_in_progress").help("Scrapes being collected.").register();
+    private static final Counter rejected = Counter.build()
+            .name("cloudwatch_exporter_scrape_rejections_total").labelNames("reason")
+            .help("Scrapes answered with 503, because the queue was full or they waited in it too long.").register();
+
+    final int maxConcurrentScrapes;
+    final int queueSize;
+    final double queueTimeoutSeconds;
+    private final ThreadPoolExecutor executor;
+
+    public ScrapeAdmission(int maxConcurrentScrapes, int queueSize, double queueTimeoutSeconds) {
+        if (maxConcurrentScrapes < 1 || queueSize < 1) {
+            throw new IllegalArgumentException("Concurrent scrapes and scrape queue size must be at least 1");
+        }
+        this.maxConcurrentScrapes = maxConcurrentScrapes;
+        this.queueSize = queueSize;
+        this.queueTimeoutSeconds = queueTimeoutSeconds;
+        final AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(maxConcurrentScrapes, maxConcurrentScrapes, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "cloudwatch-scrape-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * A scrape that was admitted, told how long it waited and whether that was too long to be worth collecting.
+     */
+    interface Scrape {
+        void run(double waitedSeconds, boolean expired);
+    }
+
+    /**
+     * Queues a scrape and returns true, or returns false at once if the queue is full.
+     *
+     * @param scrapeTimeoutSeconds how long the client waits, or zero or less if unknown
+     */
+    boolean submit(final Scrape scrape, double scrapeTimeoutSeconds) {
+        final long queuedAtNanos = System.nanoTime();
+        double timeout = queueTimeoutSeconds;
+        if (scrapeTimeoutSeconds > 0 && (timeout <= 0 || scrapeTimeoutSeconds < timeout)) {
+            timeout = scrapeTimeoutSeconds;
+        }
+        final long timeoutNanos = timeout > 0 ? (long) (timeout * 1.0E9) : Long.MAX_VALUE;
+        queued.inc();
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    queued.dec();
+                    long waitedNanos = System.nanoTime() - queuedAtNanos;
+                    boolean expired = waitedNanos >= timeoutNanos;
+                    if (expired) {
+                        rejected.labels(QUEUE_TIMEOUT).inc();
+                    }
+                    inProgress.inc();
+                    try {
+                        scrape.run(waitedNanos / 1.0E9, expired);
+                    } finally {
+                        inProgress.dec();
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            queued.dec();
+            rejected.labels(QUEUE_FULL).inc();
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "max_concurrent_scrapes=" + maxConcurrentScrapes + " queue_size=" + queueSize + " queue_timeout_seconds=" + queueTimeoutSeconds;
+    }
+}
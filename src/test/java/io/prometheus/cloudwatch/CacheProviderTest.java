@@ -0,0 +1,179 @@
+package io.prometheus.cloudwatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class CacheProviderTest {
+
+  @Test
+  public void testInProcessStoreEvictsLeastRecentlyUsedByWeight() {
+    InProcessCacheStore store = new InProcessCacheStore(1600);
+    String[] keys = new String[40];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = "key" + i;
+      store.put(keys[i], new CacheStore.Entry(i, 0), 60, 60);
+    }
+    assertTrue(store.weightBytes() <= 1600);
+    assertTrue(store.evictions() > 0);
+    assertEquals(40 - store.evictions(), store.size());
+
+    store.setMaxBytes(0);
+    assertEquals(0, store.size());
+    assertEquals(0, store.weightBytes());
+  }
+
+  @Test
+  public void testInProcessStoreKeepsEntryLargerThanOneStripesShare() {
+    InProcessCacheStore store = new InProcessCacheStore(1600);
+    for (int i = 0; i < 20; i++) {
+      store.put("key" + i, new CacheStore.Entry(i, 0), 10, 60);
+    }
+    // Well over 1600 / 16 stripes, so other entries make room for it.
+    store.put("dimensions", new CacheStore.Entry("large", 0), 1500, 60);
+    assertEquals("large", store.get("dimensions").value);
+    assertTrue(store.weightBytes() <= 1600);
+    assertEquals(10, store.evictions());
+
+    // An entry over the whole budget is not kept, and nothing else is evicted for it.
+    store.put("huge", new CacheStore.Entry("huge", 0), 2000, 60);
+    assertNull(store.get("huge"));
+    assertEquals("large", store.get("dimensions").value);
+  }
+
+  @Test
+  public void testInProcessStoreRemovesByPrefix() {
+    InProcessCacheStore store = new InProcessCacheStore(1 << 20);
+    store.put("a#1", new CacheStore.Entry("x", 0), 10, 60);
+    store.put("a#2", new CacheStore.Entry("y", 0), 10, 60);
+    store.put("b#1", new CacheStore.Entry("z", 0), 10, 60);
+    assertEquals(2, store.removeByPrefix("a#"));
+    assertNull(store.get("a#2"));
+    assertEquals("z", store.get("b#1").value);
+    assertEquals(10, store.weightBytes());
+  }
+
+  @Test
+  public void testConcurrentLoadsOfAKeyAreShared() throws Exception {
+    CacheProvider.define("test_shared", 60, 0, 1 << 20);
+    final AtomicInteger loads = new AtomicInteger();
+    final CountDownLatch started = new CountDownLatch(1);
+    final CacheProvider.Loader loader = new CacheProvider.Loader() {
+      public Object load(String key) throws Exception {
+        loads.incrementAndGet();
+        started.countDown();
+        Thread.sleep(200);
+        return "value";
+      }
+    };
+    Thread other = new Thread() {
+      public void run() {
+        CacheProvider.get("test_shared", "k", loader);
+      }
+    };
+    other.start();
+    started.await();
+    assertEquals("value", CacheProvider.get("test_shared", "k", loader));
+    other.join();
+    assertEquals(1, loads.get());
+    assertEquals("value", CacheProvider.getFromCache("test_shared", "k"));
+  }
+
+  @Test
+  public void testOldEntriesAreServedAndRefreshedInBackground() throws Exception {
+    CacheProvider.define("test_refresh", 60, 1, 1 << 20);
+    final AtomicInteger loads = new AtomicInteger();
+    CacheProvider.Loader loader = new CacheProvider.Loader() {
+      public Object load(String key) {
+        return loads.incrementAndGet();
+      }
+    };
+    assertEquals(1, CacheProvider.get("test_refresh", "k", loader));
+    Thread.sleep(1100);
+    assertEquals(1, CacheProvider.get("test_refresh", "k", loader));
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!Integer.valueOf(2).equals(CacheProvider.getFromCache("test_refresh", "k")) && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(2, CacheProvider.getFromCache("test_refresh", "k"));
+  }
+
+  @Test
+  public void testEhcacheStore() {
+    CacheStore store = EhcacheStore.FACTORY.create("test_ehcache", 1 << 20);
+    store.put("a#1", new CacheStore.Entry("x", 0), 0, 60);
+    store.put("b#1", new CacheStore.Entry("y", 0), 0, 60);
+    assertEquals("x", store.get("a#1").value);
+    assertEquals(1, store.removeByPrefix("a#"));
+    assertEquals(1, store.size());
+    store.close();
+  }
+
+  private static ResourceLabels tags(int i) {
+    Map<String, String> tags = new HashMap<String, String>();
+    tags.put("Name", "instance-" + i);
+    tags.put("Environment", "prod");
+    tags.put("Owner", null);
+    return ResourceLabels.of(tags);
+  }
+
+  @Test
+  public void testOffHeapStoreRoundTripsResourceLabels() {
+    OffHeapTagStore store = new OffHeapTagStore(1 << 16);
+    store.put("a#1", new CacheStore.Entry(tags(1), 42), 0, 60);
+    store.put("b#1", new CacheStore.Entry(ResourceLabels.EMPTY, 43), 0, 60);
+    CacheStore.Entry entry = store.get("a#1");
+    ResourceLabels labels = (ResourceLabels) entry.value;
+    assertEquals(42, entry.storedAtMillis);
+    assertEquals(tags(1).getNames(), labels.getNames());
+    assertEquals(tags(1).getValues(), labels.getValues());
+    assertNull(labels.getValues().get(labels.getNames().indexOf("owner")));
+    assertTrue(store.get("b#1").value == ResourceLabels.EMPTY);
+
+    store.put("a#1", new CacheStore.Entry(tags(2), 44), 0, 60);
+    assertEquals("instance-2", ((ResourceLabels) store.get("a#1").value).getValues().get(1));
+    assertEquals(1, store.removeByPrefix("a#"));
+    assertNull(store.get("a#1"));
+    assertEquals(1, store.size());
+  }
+
+  @Test
+  public void testOffHeapStoreEvictsOldestSegment() {
+    // 16 segments of 256 bytes, a record is about 70 bytes.
+    OffHeapTagStore store = new OffHeapTagStore(4096);
+    for (int i = 0; i < 200; i++) {
+      store.put("key" + i, new CacheStore.Entry(tags(i), 0), 0, 60);
+    }
+    assertTrue(store.evictions() > 0);
+    assertEquals(200 - store.evictions(), store.size());
+    assertTrue(store.weightBytes() <= 4096);
+    assertNull(store.get("key0"));
+    assertEquals("instance-199", ((ResourceLabels) store.get("key199").value).getValues().get(1));
+  }
+
+  @Test
+  public void testOffHeapStoreExpiresEntries() throws Exception {
+    OffHeapTagStore store = new OffHeapTagStore(1 << 16);
+    store.put("k", new CacheStore.Entry(tags(1), 0), 0, 1);
+    Thread.sleep(1100);
+    assertNull(store.get("k"));
+    assertEquals(0, store.weightBytes());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testOffHeapBackendIsOnlyForTags() {
+    CacheProvider.define("test_off_heap", 60, 0, 1 << 20);
+    Map<String, Object> config = new HashMap<String, Object>();
+    Map<String, Object> backends = new HashMap<String, Object>();
+    backends.put("test_off_heap", "off_heap");
+    config.put("backends", backends);
+    CacheProvider.Settings.fromConfig(config);
+  }
+}
@@ -0,0 +1,123 @@
+package io.prometheus.cloudwatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+  static class ManualClockBreaker extends CircuitBreaker {
+    long now;
+
+    ManualClockBreaker(int windowSize, int minimumCalls, long slowCallNanos, long openNanos, int halfOpenProbes) {
+      super(windowSize, minimumCalls, 0.5, slowCallNanos, 0.8, openNanos, halfOpenProbes, null);
+    }
+
+    @Override
+    long nanoTime() {
+      return now;
+    }
+  }
+
+  @Test
+  public void testOpensOnFailureRate() {
+    ManualClockBreaker breaker = new ManualClockBreaker(4, 4, 1000, 100, 1);
+    for (int i = 0; i < 2; i++) {
+      assertTrue(breaker.tryAcquire());
+      breaker.onSuccess(1);
+    }
+    assertTrue(breaker.tryAcquire());
+    breaker.onFailure(1);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    assertTrue(breaker.tryAcquire());
+    breaker.onFailure(1);
+
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertFalse(breaker.tryAcquire());
+  }
+
+  @Test
+  public void testOpensOnSlowCalls() {
+    ManualClockBreaker breaker = new ManualClockBreaker(5, 5, 1000, 100, 1);
+    for (int i = 0; i < 5; i++) {
+      assertTrue(breaker.tryAcquire());
+      breaker.onSuccess(i == 0 ? 1 : 5000);
+    }
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+  }
+
+  @Test
+  public void testHalfOpenProbesCloseOrReopen() {
+    ManualClockBreaker breaker = new ManualClockBreaker(1, 1, 1000, 100, 2);
+    breaker.tryAcquire();
+    breaker.onFailure(1);
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+    breaker.now = 100;
+    assertTrue(breaker.tryAcquire());
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    assertTrue(breaker.tryAcquire());
+    assertFalse(breaker.tryAcquire());
+    breaker.onSuccess(1);
+    breaker.onFailure(1);
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+    breaker.now = 200;
+    assertTrue(breaker.tryAcquire());
+    assertTrue(breaker.tryAcquire());
+    breaker.onSuccess(1);
+    breaker.onSuccess(1);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+  }
+
+  @Test
+  public void testTagLookupFailsFastWhileOpen() {
+    final AtomicInteger calls = new AtomicInteger();
+    TagLookup.Settings settings = new TagLookup.Settings();
+    settings.windowSize = 2;
+    settings.minimumCalls = 2;
+    TagLookup lookup = new TagLookup(settings, new TagLookup.Source() {
+      public Map<String, String> lookup(String fieldName, String fieldValue, String esPath, List<String> additionalLabels) throws Exception {
+        calls.incrementAndGet();
+        throw new Exception("proxy down");
+      }
+    });
+    try {
+      for (int i = 0; i < 5; i++) {
+        assertNull(lookup.findTags("InstanceId", "i-" + i, "aws/ec2", Collections.<String>emptyList(), Long.MAX_VALUE));
+      }
+      assertEquals(CircuitBreaker.State.OPEN, lookup.getState());
+      assertEquals(2, calls.get());
+    } finally {
+      lookup.shutdown();
+    }
+  }
+
+  @Test
+  public void testLookupsRejectedByShutdownAreNotFailures() {
+    TagLookup.Settings settings = new TagLookup.Settings();
+    settings.windowSize = 2;
+    settings.minimumCalls = 2;
+    TagLookup lookup = new TagLookup(settings, new TagLookup.Source() {
+      public Map<String, String> lookup(String fieldName, String fieldValue, String esPath, List<String> additionalLabels) {
+        return Collections.emptyMap();
+      }
+    });
+    lookup.retain();
+    lookup.release();
+
+    for (int i = 0; i < 5; i++) {
+      assertNull(lookup.findTags("InstanceId", "i-" + i, "aws/ec2", Collections.<String>emptyList(), Long.MAX_VALUE));
+    }
+    assertTrue(lookup.isShutdown());
+    assertEquals(CircuitBreaker.State.CLOSED, lookup.getState());
+  }
+}
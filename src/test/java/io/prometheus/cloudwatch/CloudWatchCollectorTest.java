@@ -1,7 +1,11 @@
 package io.prometheus.cloudwatch;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.anyObject;
 import static org.mockito.Matchers.argThat;
 
@@ -16,16 +20,27 @@ import com.amazonaws.services.cloudwatch.model.GetMetricStatisticsResult;
 import com.amazonaws.services.cloudwatch.model.ListMetricsRequest;
 import com.amazonaws.services.cloudwatch.model.ListMetricsResult;
 import com.amazonaws.services.cloudwatch.model.Metric;
+import io.prometheus.client.Collector;
 import io.prometheus.client.CollectorRegistry;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.ArgumentMatcher;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 public class CloudWatchCollectorTest {
   AmazonCloudWatchClient client;
@@ -35,6 +50,7 @@ public class CloudWatchCollectorTest {
   public void setUp() {
     client = Mockito.mock(AmazonCloudWatchClient.class);
     registry = new CollectorRegistry();
+    CacheProvider.clearAll();
   }
   
   class ListMetricsRequestMatcher extends ArgumentMatcher {
@@ -361,4 +377,602 @@ public class CloudWatchCollectorTest {
     assertEquals(2.0, registry.getSampleValue("aws_dynamodb_online_index_consumed_write_capacity_sum", new String[]{"job", "instance", "table_name", "global_secondary_index_name"}, new String[]{"aws_dynamodb", "", "myTable", "myIndex"}), .01);
     assertEquals(3.0, registry.getSampleValue("aws_dynamodb_consumed_read_capacity_units_sum", new String[]{"job", "instance", "table_name"}, new String[]{"aws_dynamodb", "", "myTable"}), .01);
   }
+
+  @Test
+  public void testResourceUsagePerRule() throws Exception {
+    new CloudWatchCollector(
+        "---\nregion: reg\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_dimensions:\n  - LoadBalancerName", client).register(registry);
+    Mockito.when(client.listMetrics((ListMetricsRequest)anyObject()))
+        .thenReturn(new ListMetricsResult());
+
+    assertNotNull(registry.getSampleValue("cloudwatch_exporter_scrape_cpu_seconds"));
+    assertNotNull(registry.getSampleValue("cloudwatch_exporter_scrape_allocated_bytes"));
+    assertNotNull(registry.getSampleValue("cloudwatch_exporter_rule_cpu_seconds",
+        new String[]{"aws_namespace", "aws_metric_name", "aws_dimensions"}, new String[]{"AWS/ELB", "RequestCount", "LoadBalancerName"}));
+    assertNotNull(registry.getSampleValue("cloudwatch_exporter_rule_allocated_bytes",
+        new String[]{"aws_namespace", "aws_metric_name", "aws_dimensions"}, new String[]{"AWS/ELB", "RequestCount", "LoadBalancerName"}));
+  }
+
+  @Test
+  public void testReloadInvalidatesOnlyChangedRules() throws Exception {
+    CloudWatchCollector collector = new CloudWatchCollector(
+        "---\nregion: reg\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_statistics: [Sum]\n- aws_namespace: AWS/ELB\n  aws_metric_name: Latency\n  aws_statistics: [Average]", client);
+    collector.register(registry);
+
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)argThat(
+        new GetMetricStatisticsRequestMatcher().Namespace("AWS/ELB").MetricName("RequestCount"))))
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(
+            new Datapoint().withTimestamp(new Date()).withSum(1.0)));
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)argThat(
+        new GetMetricStatisticsRequestMatcher().Namespace("AWS/ELB").MetricName("Latency"))))
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(
+            new Datapoint().withTimestamp(new Date()).withAverage(2.0)));
+    assertEquals(1.0, registry.getSampleValue("aws_elb_request_count_sum", new String[]{"job", "instance"}, new String[]{"aws_elb", ""}), .01);
+
+    ConfigDiff diff = collector.loadConfig(new StringReader(
+        "---\nregion: reg\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_statistics: [Sum]\n- aws_namespace: AWS/ELB\n  aws_metric_name: Latency\n  aws_statistics: [Average]\n  delay_seconds: 120"), client);
+    assertEquals(1, diff.changedRules.size());
+    assertEquals("Latency", diff.changedRules.get(0).awsMetricName);
+    assertTrue(diff.addedRules.isEmpty());
+    assertTrue(diff.removedRules.isEmpty());
+
+    assertEquals(2.0, registry.getSampleValue("aws_elb_latency_average", new String[]{"job", "instance"}, new String[]{"aws_elb", ""}), .01);
+    Mockito.verify(client, Mockito.times(1)).getMetricStatistics((GetMetricStatisticsRequest)argThat(
+        new GetMetricStatisticsRequestMatcher().Namespace("AWS/ELB").MetricName("RequestCount")));
+    Mockito.verify(client, Mockito.times(2)).getMetricStatistics((GetMetricStatisticsRequest)argThat(
+        new GetMetricStatisticsRequestMatcher().Namespace("AWS/ELB").MetricName("Latency")));
+  }
+
+  @Test
+  public void testReloadKeepsCachedEntriesOfRulesSharingAFetch() throws Exception {
+    String both = "---\nregion: reg\nmetrics:\n"
+        + "- aws_namespace: AWS/ELB\n  aws_metric_name: Latency\n  aws_dimensions: [LoadBalancerName]\n  aws_statistics: [Average, Maximum]\n"
+        + "- aws_namespace: AWS/ELB\n  aws_metric_name: Latency\n  aws_dimensions: [LoadBalancerName]\n  aws_statistics: [Average]\n";
+    CloudWatchCollector collector = new CloudWatchCollector(both, client);
+    Mockito.when(client.listMetrics((ListMetricsRequest)anyObject()))
+        .thenReturn(new ListMetricsResult().withMetrics(
+            new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("myLB"))));
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)anyObject()))
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(
+            new Datapoint().withTimestamp(new Date()).withAverage(1.0).withMaximum(2.0)));
+    collector.collect();
+
+    // Changing, then removing, the second rule leaves the fetch the first one shares with it cached.
+    ConfigDiff diff = collector.loadConfig(new StringReader(both + "  help: Average latency\n"), client);
+    assertEquals(1, diff.changedRules.size());
+    collector.collect();
+    diff = collector.loadConfig(new StringReader(both.substring(0, both.lastIndexOf("- aws_namespace"))), client);
+    assertEquals(1, diff.removedRules.size());
+    List<Collector.MetricFamilySamples> mfs = collector.collect();
+
+    assertEquals(2.0, sampleValue(mfs, "aws_elb_latency_maximum", "myLB"), .01);
+    Mockito.verify(client, Mockito.times(1)).listMetrics((ListMetricsRequest)anyObject());
+    Mockito.verify(client, Mockito.times(1)).getMetricStatistics((GetMetricStatisticsRequest)anyObject());
+  }
+
+  @Test
+  public void testReloadKeepsTheClientUnlessItNeedsANewOne() throws Exception {
+    String elb = "---\nregion: us-east-1\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: Latency\n  aws_statistics: [Average]\n";
+    String both = elb + "- aws_namespace: AWS/SQS\n  aws_metric_name: NumberOfMessagesSent\n  aws_statistics: [Sum]\n";
+    CloudWatchCollector collector = new CloudWatchCollector(elb);
+    AmazonCloudWatchClient built = collector.activeConfig.client;
+
+    // Another namespace still fits in the connection pool.
+    ConfigDiff diff = collector.loadConfig(new StringReader(both), null);
+    assertSame(built, collector.activeConfig.client);
+    assertNull(diff.clientChange);
+
+    diff = collector.loadConfig(new StringReader(both + "max_requests_in_flight: 40\n"), null);
+    assertNotSame(built, collector.activeConfig.client);
+    assertEquals("connection pool grown to 80 for max_requests_in_flight", diff.clientChange);
+
+    diff = collector.loadConfig(new StringReader(both.replace("us-east-1", "eu-west-1")), null);
+    assertEquals("changed region", diff.clientChange);
+  }
+
+  @Test
+  public void testReplacedClientIsShutDownWithItsLastConfig() throws Exception {
+    CloudWatchCollector.SharedClient shared = new CloudWatchCollector.SharedClient(client, 50, true);
+    shared.retain();
+    shared.retain();
+    shared.release();
+    Mockito.verify(client, Mockito.never()).shutdown();
+    shared.release();
+    Mockito.verify(client).shutdown();
+
+    AmazonCloudWatchClient supplied = Mockito.mock(AmazonCloudWatchClient.class);
+    CloudWatchCollector.SharedClient notOwned = new CloudWatchCollector.SharedClient(supplied, 50, false);
+    notOwned.retain();
+    notOwned.release();
+    Mockito.verify(supplied, Mockito.never()).shutdown();
+  }
+
+  @Test
+  public void testReloadDuringScrapeKeepsItsPoolsUntilItIsDone() throws Exception {
+    String config = "---\nregion: reg\nmetrics:\n"
+        + "- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_dimensions: [LoadBalancerName]\n  aws_statistics: [Sum]\n";
+    final CloudWatchCollector collector = new CloudWatchCollector(config, client);
+    NamespaceBulkhead oldBulkhead = collector.activeConfig.bulkheads.get("aws/elb");
+    final CountDownLatch listing = new CountDownLatch(1);
+    final CountDownLatch reloaded = new CountDownLatch(1);
+    Mockito.when(client.listMetrics((ListMetricsRequest)anyObject()))
+        .thenAnswer(new Answer<ListMetricsResult>() {
+          public ListMetricsResult answer(InvocationOnMock invocation) throws Throwable {
+            listing.countDown();
+            reloaded.await();
+            return new ListMetricsResult().withMetrics(
+                new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("myLB")));
+          }
+        });
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)anyObject()))
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(new Datapoint().withTimestamp(new Date()).withSum(1.0)));
+    final List<List<Collector.MetricFamilySamples>> result = new ArrayList<List<Collector.MetricFamilySamples>>();
+    Thread scrape = new Thread() {
+      public void run() {
+        result.add(collector.collect());
+      }
+    };
+    scrape.start();
+    listing.await();
+
+    // New limits replace the namespace's pool while the scrape is still discovering on the old one.
+    collector.loadConfig(new StringReader(config + "max_requests_in_flight: 2\n"), client);
+    assertTrue(collector.activeConfig.bulkheads.get("aws/elb") != oldBulkhead);
+    assertTrue(!oldBulkhead.pool.isShutdown());
+    reloaded.countDown();
+    scrape.join(5000);
+
+    assertEquals(1.0, sampleValue(result.get(0), "aws_elb_request_count_sum", "myLB"), .01);
+    for (Collector.MetricFamilySamples family : result.get(0)) {
+      if (family.name.equals("cloudwatch_exporter_scrape_error")) {
+        assertEquals(0.0, family.samples.get(0).value, .01);
+      }
+    }
+    assertTrue(oldBulkhead.pool.isShutdown());
+  }
+
+  @Test
+  public void testScrapeCpuIncludesFetchThreads() throws Exception {
+    CloudWatchCollector collector = new CloudWatchCollector(
+        "---\nregion: reg\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_statistics: [Sum]\n", client);
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)anyObject()))
+        .thenAnswer(new Answer<GetMetricStatisticsResult>() {
+          public GetMetricStatisticsResult answer(InvocationOnMock invocation) throws Throwable {
+            // Busy for 200ms of CPU on the fetch thread while the scraping thread waits.
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            long start = threads.getCurrentThreadCpuTime();
+            while (threads.getCurrentThreadCpuTime() - start < 200000000L) {
+            }
+            return new GetMetricStatisticsResult().withDatapoints(new Datapoint().withTimestamp(new Date()).withSum(1.0));
+          }
+        });
+
+    List<Collector.MetricFamilySamples> mfs = collector.collect();
+
+    for (Collector.MetricFamilySamples family : mfs) {
+      if (family.name.equals("cloudwatch_exporter_scrape_cpu_seconds")) {
+        double cpuSeconds = family.samples.get(0).value;
+        assertTrue(cpuSeconds >= 0.2);
+        assertTrue(cpuSeconds < 1);
+      }
+    }
+    assertTrue(sampleValue(mfs, "cloudwatch_exporter_rule_cpu_seconds", "RequestCount") >= 0.2);
+  }
+
+  @Test
+  public void testScrapeDeadlineServesCachedValuesAndMarksRuleIncomplete() throws Exception {
+    CloudWatchCollector collector = new CloudWatchCollector(
+        "---\nregion: reg\nscrape_timeout_offset_seconds: 0\nmax_requests_in_flight: 1\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_dimensions:\n  - LoadBalancerName", client);
+    Mockito.when(client.listMetrics((ListMetricsRequest)anyObject()))
+        .thenReturn(new ListMetricsResult().withMetrics(
+            new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("myLB")),
+            new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("myOtherLB"))));
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)anyObject()))
+        .thenAnswer(new Answer<GetMetricStatisticsResult>() {
+          public GetMetricStatisticsResult answer(InvocationOnMock invocation) throws Throwable {
+            Thread.sleep(100);
+            return new GetMetricStatisticsResult().withDatapoints(new Datapoint().withTimestamp(new Date()).withSum(1.0));
+          }
+        });
+
+    List<Collector.MetricFamilySamples> mfs = collector.collect(null, 0.05);
+    assertNull(sampleValue(mfs, "aws_elb_request_count_sum", "myLB"));
+    assertEquals(1.0, sampleValue(mfs, "cloudwatch_exporter_scrape_incomplete", "LoadBalancerName"), .01);
+
+    // The request in flight finishes into the cache; the queued one is dropped once the deadline has passed.
+    Thread.sleep(250);
+    Mockito.verify(client, Mockito.times(1)).getMetricStatistics((GetMetricStatisticsRequest)anyObject());
+
+    mfs = collector.collect(null, 0.05);
+    assertEquals(1.0, sampleValue(mfs, "aws_elb_request_count_sum", "myLB"), .01);
+    assertNull(sampleValue(mfs, "aws_elb_request_count_sum", "myOtherLB"));
+    assertEquals(1.0, sampleValue(mfs, "cloudwatch_exporter_scrape_incomplete", "LoadBalancerName"), .01);
+  }
+
+  @Test
+  public void testDatapointCachedUntilNextPeriodCanExist() throws Exception {
+    CloudWatchCollector collector = new CloudWatchCollector(
+        "---\nregion: reg\nmetrics:\n- aws_namespace: AWS/EBS\n  aws_metric_name: VolumeReadOps\n  period_seconds: 300\n  delay_seconds: 600\n"
+        + "- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n", client);
+    CloudWatchCollector.MetricRule slow = collector.activeConfig.rules.get(0);
+    CloudWatchCollector.MetricRule fast = collector.activeConfig.rules.get(1);
+    long now = 1000000000000L;
+
+    // The next period starts 300s after the newest datapoint and is requested 600s later.
+    assertEquals(200, CloudWatchCollector.datapointTtlSeconds(slow, datapointAt(now - 700000), now));
+    // Overdue: poll at the default rate.
+    assertEquals(120, CloudWatchCollector.datapointTtlSeconds(slow, datapointAt(now - 1000000), now));
+    // One minute periods are not fetched more often than before.
+    assertEquals(120, CloudWatchCollector.datapointTtlSeconds(fast, datapointAt(now - 10000), now));
+  }
+
+  private static SeriesValue datapointAt(long millis) {
+    return SeriesValue.of(new Datapoint().withTimestamp(new Date(millis)).withSum(1.0));
+  }
+
+  @Test
+  public void testPersistentlyEmptySeriesBackOff() throws Exception {
+    CloudWatchCollector collector = new CloudWatchCollector(
+        "---\nregion: reg\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_dimensions:\n  - LoadBalancerName", client);
+    Mockito.when(client.listMetrics((ListMetricsRequest)anyObject()))
+        .thenReturn(new ListMetricsResult().withMetrics(
+            new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("myLB")),
+            new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("idleLB"))));
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)argThat(
+        new GetMetricStatisticsRequestMatcher().Dimension("LoadBalancerName", "myLB"))))
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(new Datapoint().withTimestamp(new Date()).withSum(1.0)));
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)argThat(
+        new GetMetricStatisticsRequestMatcher().Dimension("LoadBalancerName", "idleLB"))))
+        .thenReturn(new GetMetricStatisticsResult());
+
+    collector.collect();
+    collector.collect();
+    List<Collector.MetricFamilySamples> mfs = collector.collect();
+
+    // Empty twice in a row, then skipped.
+    Mockito.verify(client, Mockito.times(2)).getMetricStatistics((GetMetricStatisticsRequest)argThat(
+        new GetMetricStatisticsRequestMatcher().Dimension("LoadBalancerName", "idleLB")));
+    assertEquals(1.0, sampleValue(mfs, "cloudwatch_exporter_series_suppressed", "LoadBalancerName"), .01);
+    assertEquals(1.0, sampleValue(mfs, "aws_elb_request_count_sum", "myLB"), .01);
+
+    CloudWatchCollector.MetricRule rule = collector.activeConfig.rules.get(0);
+    assertEquals(0, CloudWatchCollector.emptySeriesBackoffSeconds(rule, 1, 3600));
+    assertEquals(120, CloudWatchCollector.emptySeriesBackoffSeconds(rule, 2, 3600));
+    assertEquals(240, CloudWatchCollector.emptySeriesBackoffSeconds(rule, 3, 3600));
+    assertEquals(3600, CloudWatchCollector.emptySeriesBackoffSeconds(rule, 40, 3600));
+  }
+
+  @Test
+  public void testWarmUpFillsCachesBeforeFirstScrape() throws Exception {
+    CloudWatchCollector collector = new CloudWatchCollector(
+        "---\nregion: reg\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_dimensions:\n  - LoadBalancerName", client);
+    Mockito.when(client.listMetrics((ListMetricsRequest)anyObject()))
+        .thenReturn(new ListMetricsResult().withMetrics(
+            new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("myLB")),
+            new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("myOtherLB"))));
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)anyObject()))
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(new Datapoint().withTimestamp(new Date()).withSum(1.0)));
+
+    WarmUp warmUp = new WarmUp(collector, 10);
+    warmUp.start();
+    warmUp.awaitReady();
+    assertTrue(warmUp.isFinished());
+    assertTrue(warmUp.status(), warmUp.status().startsWith("Ready: warm-up finished, 1 of 1 rules"));
+
+    List<Collector.MetricFamilySamples> mfs = collector.collect();
+    assertEquals(1.0, sampleValue(mfs, "aws_elb_request_count_sum", "myOtherLB"), .01);
+    Mockito.verify(client, Mockito.times(1)).listMetrics((ListMetricsRequest)anyObject());
+    Mockito.verify(client, Mockito.times(2)).getMetricStatistics((GetMetricStatisticsRequest)anyObject());
+  }
+
+  @Test
+  public void testWarmUpIsReadyAfterTimeout() throws Exception {
+    CloudWatchCollector collector = new CloudWatchCollector(
+        "---\nregion: reg\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount", client);
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)anyObject()))
+        .thenAnswer(new Answer<GetMetricStatisticsResult>() {
+          public GetMetricStatisticsResult answer(InvocationOnMock invocation) throws Throwable {
+            Thread.sleep(1000);
+            return new GetMetricStatisticsResult();
+          }
+        });
+
+    WarmUp warmUp = new WarmUp(collector, 0.1);
+    warmUp.start();
+    assertTrue(warmUp.status(), warmUp.status().startsWith("Not ready"));
+    warmUp.awaitReady();
+    assertTrue(warmUp.isReady());
+    assertTrue(!warmUp.isFinished());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRankByWithoutRuleFetchingItIsRejected() {
+    new CloudWatchCollector("---\nregion: reg\nmetrics:\n"
+        + "- aws_namespace: AWS/ELB\n  aws_metric_name: Latency\n  aws_dimensions:\n  - LoadBalancerName\n  aws_statistics:\n  - Average\n"
+        + "  max_series: 1\n  rank_by:\n    aws_metric_name: RequestCount\n", client);
+  }
+
+  @Test
+  public void testMaxSeriesKeepsTopRankedSeriesAndCountsDropped() throws Exception {
+    CloudWatchCollector collector = new CloudWatchCollector(
+        "---\nregion: reg\nmetrics:\n"
+        + "- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_dimensions:\n  - LoadBalancerName\n  aws_statistics:\n  - Sum\n"
+        + "- aws_namespace: AWS/ELB\n  aws_metric_name: Latency\n  aws_dimensions:\n  - LoadBalancerName\n  aws_statistics:\n  - Average\n"
+        + "  max_series: 1\n  rank_by:\n    aws_metric_name: RequestCount\n", client);
+    Mockito.when(client.listMetrics((ListMetricsRequest)anyObject()))
+        .thenReturn(new ListMetricsResult().withMetrics(
+            new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("a")),
+            new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("b")),
+            new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("c"))));
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)anyObject()))
+        .thenAnswer(new Answer<GetMetricStatisticsResult>() {
+          public GetMetricStatisticsResult answer(InvocationOnMock invocation) throws Throwable {
+            GetMetricStatisticsRequest request = (GetMetricStatisticsRequest) invocation.getArguments()[0];
+            String lb = request.getDimensions().get(0).getValue();
+            Datapoint datapoint = new Datapoint().withTimestamp(new Date());
+            if (request.getMetricName().equals("RequestCount")) {
+              datapoint.setSum(lb.equals("a") ? 1.0 : lb.equals("b") ? 10.0 : 5.0);
+            } else {
+              datapoint.setAverage(0.5);
+            }
+            return new GetMetricStatisticsResult().withDatapoints(datapoint);
+          }
+        });
+
+    // Ranking uses cached RequestCount values, which the first scrape fills in.
+    collector.collect();
+    List<Collector.MetricFamilySamples> mfs = collector.collect();
+    assertEquals(.5, sampleValue(mfs, "aws_elb_latency_average", "b"), .01);
+    assertNull(sampleValue(mfs, "aws_elb_latency_average", "a"));
+    assertNull(sampleValue(mfs, "aws_elb_latency_average", "c"));
+    assertEquals(2.0, sampleValue(mfs, "cloudwatch_exporter_series_dropped", "Latency"), .01);
+    assertEquals(0.0, sampleValue(mfs, "cloudwatch_exporter_series_dropped", "RequestCount"), .01);
+  }
+
+  @Test
+  public void testGlobalMaxSeriesIsSharedByRulesInOrder() throws Exception {
+    CloudWatchCollector collector = new CloudWatchCollector(
+        "---\nregion: reg\nmax_series: 2\nmetrics:\n"
+        + "- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_dimensions:\n  - LoadBalancerName\n"
+        + "- aws_namespace: AWS/ELB\n  aws_metric_name: Latency\n  aws_dimensions:\n  - LoadBalancerName\n", client);
+    Mockito.when(client.listMetrics((ListMetricsRequest)anyObject()))
+        .thenReturn(new ListMetricsResult().withMetrics(
+            new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("b")),
+            new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("a")),
+            new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("c"))));
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)anyObject()))
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(new Datapoint().withTimestamp(new Date()).withSum(1.0)));
+
+    List<Collector.MetricFamilySamples> mfs = collector.collect();
+
+    Mockito.verify(client, Mockito.times(2)).getMetricStatistics((GetMetricStatisticsRequest)anyObject());
+    assertEquals(1.0, sampleValue(mfs, "aws_elb_request_count_sum", "a"), .01);
+    assertEquals(1.0, sampleValue(mfs, "aws_elb_request_count_sum", "b"), .01);
+    assertNull(sampleValue(mfs, "aws_elb_request_count_sum", "c"));
+    assertNull(sampleValue(mfs, "aws_elb_latency_sum", "a"));
+    assertEquals(1.0, sampleValue(mfs, "cloudwatch_exporter_series_dropped", "RequestCount"), .01);
+    assertEquals(3.0, sampleValue(mfs, "cloudwatch_exporter_series_dropped", "Latency"), .01);
+  }
+
+  @Test
+  public void testTagSelectSkipsResourcesBeforeFetching() throws Exception {
+    CloudWatchCollector collector = new CloudWatchCollector(
+        "---\nregion: reg\nmappings:\n- name: AWS/ELB\n  id_field: LoadBalancerName\n  lookup_url: http://tags\n"
+        + "metrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_dimensions:\n  - LoadBalancerName\n"
+        + "  aws_statistics:\n  - Sum\n  tag_select:\n    Environment: [prod]\n", client);
+    HashMap<String, String> prod = new HashMap<String, String>();
+    prod.put("Environment", "prod");
+    HashMap<String, String> dev = new HashMap<String, String>();
+    dev.put("Environment", "dev");
+    CacheProvider.put("es", "http://tags#LoadBalancerName#myLB", ResourceLabels.of(prod));
+    CacheProvider.put("es", "http://tags#LoadBalancerName#myOtherLB", ResourceLabels.of(dev));
+    Mockito.when(client.listMetrics((ListMetricsRequest)anyObject()))
+        .thenReturn(new ListMetricsResult().withMetrics(
+            new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("myLB")),
+            new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("myOtherLB"))));
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)anyObject()))
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(new Datapoint().withTimestamp(new Date()).withSum(2.0)));
+
+    List<Collector.MetricFamilySamples> mfs = collector.collect();
+
+    Mockito.verify(client, Mockito.times(1)).getMetricStatistics((GetMetricStatisticsRequest)anyObject());
+    assertEquals(2.0, sampleValue(mfs, "aws_elb_request_count_sum", "myLB"), .01);
+    assertNull(sampleValue(mfs, "aws_elb_request_count_sum", "myOtherLB"));
+  }
+
+  @Test
+  public void testTagLookupsStopAtTheScrapeDeadline() throws Exception {
+    String config = "---\nregion: reg\nscrape_timeout_offset_seconds: 0\nmappings:\n- name: AWS/ELB\n  id_field: LoadBalancerName\n"
+        + "  lookup_url: http://tags\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_dimensions:\n"
+        + "  - LoadBalancerName\n  aws_statistics:\n  - Sum\n";
+    CloudWatchCollector collector = new CloudWatchCollector(config, client);
+    final AtomicInteger lookups = new AtomicInteger();
+    collector.tagSource = new TagLookup.Source() {
+      public Map<String, String> lookup(String fieldName, String fieldValue, String esPath, List<String> additionalLabels) throws Exception {
+        lookups.incrementAndGet();
+        Thread.sleep(5000);
+        return new HashMap<String, String>();
+      }
+    };
+    collector.loadConfig(new StringReader(config), client);
+    Mockito.when(client.listMetrics((ListMetricsRequest)anyObject()))
+        .thenReturn(new ListMetricsResult().withMetrics(
+            new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("myLB")),
+            new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("myOtherLB"))));
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)anyObject()))
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(new Datapoint().withTimestamp(new Date()).withSum(1.0)));
+    // Caches dimensions and datapoints, then forgets the tags.
+    CacheProvider.put("es", "http://tags#LoadBalancerName#myLB", ResourceLabels.of(new HashMap<String, String>()));
+    CacheProvider.put("es", "http://tags#LoadBalancerName#myOtherLB", ResourceLabels.of(new HashMap<String, String>()));
+    collector.collect();
+    CacheProvider.remove("es", "http://tags#LoadBalancerName#myLB");
+    CacheProvider.remove("es", "http://tags#LoadBalancerName#myOtherLB");
+
+    long start = System.nanoTime();
+    List<Collector.MetricFamilySamples> mfs = collector.collect(null, 0.2);
+
+    // The first lookup is cut short by the deadline and the second is never started.
+    assertTrue(System.nanoTime() - start < 2000000000L);
+    assertEquals(1, lookups.get());
+    assertEquals(1.0, sampleValue(mfs, "aws_elb_request_count_sum", "myLB"), .01);
+    assertEquals(1.0, sampleValue(mfs, "aws_elb_request_count_sum", "myOtherLB"), .01);
+    assertEquals(1.0, sampleValue(mfs, "aws_elb_request_count_sum", "UNTAGGED"), .01);
+    assertEquals(1.0, sampleValue(mfs, "cloudwatch_exporter_scrape_incomplete", "LoadBalancerName"), .01);
+    assertNull(CacheProvider.getFromCache("es", "http://tags#LoadBalancerName#myOtherLB"));
+  }
+
+  @Test
+  public void testInventoryDiscoveryVerifiedByListMetrics() throws Exception {
+    CloudWatchCollector collector = new CloudWatchCollector(
+        "---\nregion: reg\nmappings:\n- name: AWS/ELB\n  id_field: LoadBalancerName\n  lookup_url: http://inventory\n"
+        + "  discovery: inventory\n"
+        + "metrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_dimensions:\n  - LoadBalancerName\n"
+        + "  aws_statistics:\n  - Sum\n", client);
+    collector.inventorySource = new ResourceInventory.Source() {
+      public List<String> resourceIds(String esPath, String idField) {
+        return Arrays.asList("a", "b");
+      }
+    };
+    for (String id : new String[]{"a", "b", "c"}) {
+      CacheProvider.put("es", "http://inventory#LoadBalancerName#" + id, ResourceLabels.of(new HashMap<String, String>()));
+    }
+    Mockito.when(client.listMetrics((ListMetricsRequest)anyObject()))
+        .thenReturn(new ListMetricsResult().withMetrics(
+            new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("b")),
+            new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("c"))));
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)anyObject()))
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(new Datapoint().withTimestamp(new Date()).withSum(2.0)));
+
+    List<Collector.MetricFamilySamples> mfs = collector.collect();
+
+    // Verification is due on the first discovery: c is only known to ListMetrics and is still scraped.
+    Mockito.verify(client, Mockito.times(1)).listMetrics((ListMetricsRequest)anyObject());
+    assertEquals(2.0, sampleValue(mfs, "aws_elb_request_count_sum", "a"), .01);
+    assertEquals(2.0, sampleValue(mfs, "aws_elb_request_count_sum", "c"), .01);
+    String[] labelNames = {"aws_namespace", "aws_metric_name", "aws_dimensions", "kind"};
+    assertEquals(1.0, CollectorRegistry.defaultRegistry.getSampleValue("cloudwatch_exporter_inventory_discovery_mismatch",
+        labelNames, new String[]{"AWS/ELB", "RequestCount", "LoadBalancerName", "missing"}), .01);
+    assertEquals(1.0, CollectorRegistry.defaultRegistry.getSampleValue("cloudwatch_exporter_inventory_discovery_mismatch",
+        labelNames, new String[]{"AWS/ELB", "RequestCount", "LoadBalancerName", "extra"}), .01);
+  }
+
+  @Test
+  public void testApiCallsAreAccountedPerRuleAndOutcome() throws Exception {
+    CloudWatchCollector collector = new CloudWatchCollector(
+        "---\nregion: reg\napi_prices:\n  get_metric_statistics: 0.5\nmetrics:\n"
+        + "- aws_namespace: AWS/ELB\n  aws_metric_name: HealthyHostCount\n  aws_dimensions:\n  - LoadBalancerName\n", client);
+    Mockito.when(client.listMetrics((ListMetricsRequest)anyObject()))
+        .thenReturn(new ListMetricsResult().withMetrics(
+            new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("myLB"))));
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)anyObject()))
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(new Datapoint().withTimestamp(new Date()).withSum(1.0)));
+    String[] labelNames = {"operation", "aws_namespace", "aws_metric_name", "aws_dimensions", "outcome"};
+    double listMisses = apiCalls(labelNames, "ListMetrics", "miss");
+    double getMisses = apiCalls(labelNames, "GetMetricStatistics", "miss");
+    double getHits = apiCalls(labelNames, "GetMetricStatistics", "hit");
+
+    collector.collect();
+    List<Collector.MetricFamilySamples> mfs = collector.collect();
+
+    assertEquals(1.0, apiCalls(labelNames, "ListMetrics", "miss") - listMisses, .01);
+    assertEquals(1.0, apiCalls(labelNames, "GetMetricStatistics", "miss") - getMisses, .01);
+    assertEquals(1.0, apiCalls(labelNames, "GetMetricStatistics", "hit") - getHits, .01);
+    assertTrue(sampleValue(mfs, "cloudwatch_exporter_estimated_cost_dollars_per_hour", "HealthyHostCount") >= 0.5);
+    assertTrue(collector.apiAccounting.summary().contains("AWS/ELB HealthyHostCount [LoadBalancerName]"));
+  }
+
+  private static double apiCalls(String[] labelNames, String operation, String outcome) {
+    Double value = CollectorRegistry.defaultRegistry.getSampleValue("cloudwatch_exporter_api_calls_total", labelNames,
+        new String[]{operation, "AWS/ELB", "HealthyHostCount", "LoadBalancerName", outcome});
+    return value == null ? 0 : value;
+  }
+
+  /* Value of the sample with the given name that has the given label value, or null. */
+  static Double sampleValue(List<Collector.MetricFamilySamples> mfs, String name, String labelValue) {
+    for (Collector.MetricFamilySamples family : mfs) {
+      for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+        if (sample.name.equals(name) && sample.labelValues.contains(labelValue)) {
+          return sample.value;
+        }
+      }
+    }
+    return null;
+  }
+
+  @Test
+  public void testRulesDifferingInWindowDoNotShareDatapoints() throws Exception {
+    CloudWatchCollector collector = new CloudWatchCollector("---\nregion: reg\nmetrics:\n"
+        + "- aws_namespace: AWS/ELB\n  aws_metric_name: Latency\n  aws_statistics:\n  - Average\n"
+        + "- aws_namespace: AWS/ELB\n  aws_metric_name: Latency\n  aws_statistics:\n  - Average\n  delay_seconds: 900\n"
+        + "- aws_namespace: AWS/ELB\n  aws_metric_name: Latency\n  aws_statistics:\n  - Average\n  range_seconds: 3600\n", client);
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)anyObject()))
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(new Datapoint().withTimestamp(new Date()).withAverage(1.0)));
+
+    collector.collect();
+
+    Mockito.verify(client, Mockito.times(3)).getMetricStatistics((GetMetricStatisticsRequest)anyObject());
+  }
+
+  @Test
+  public void testRulesDifferingInStatisticsShareRequests() throws Exception {
+    CloudWatchCollector collector = new CloudWatchCollector("---\nregion: reg\nmetrics:\n"
+        + "- aws_namespace: AWS/ELB\n  aws_metric_name: Latency\n  aws_statistics:\n  - Average\n"
+        + "- aws_namespace: AWS/ELB\n  aws_metric_name: Latency\n  aws_extended_statistics:\n  - p99\n", client);
+    HashMap<String, Double> extended = new HashMap<String, Double>();
+    extended.put("p99", 3.0);
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)anyObject()))
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(
+            new Datapoint().withTimestamp(new Date()).withAverage(1.0).withExtendedStatistics(extended)));
+
+    List<Collector.MetricFamilySamples> mfs = collector.collect();
+    int averages = 0;
+    int p99s = 0;
+    for (Collector.MetricFamilySamples family : mfs) {
+      if (family.name.equals("aws_elb_latency_average")) {
+        averages += family.samples.size();
+      } else if (family.name.equals("aws_elb_latency_p99")) {
+        p99s += family.samples.size();
+      }
+    }
+    assertEquals(1, averages);
+    assertEquals(1, p99s);
+
+    ArgumentCaptor<GetMetricStatisticsRequest> request = ArgumentCaptor.forClass(GetMetricStatisticsRequest.class);
+    Mockito.verify(client, Mockito.times(1)).getMetricStatistics(request.capture());
+    assertEquals(Arrays.asList("Average"), request.getValue().getStatistics());
+    assertEquals(Arrays.asList("p99"), request.getValue().getExtendedStatistics());
+  }
+
+  @Test
+  public void testAggregateWithoutSumsAcrossDroppedDimension() throws Exception {
+    CloudWatchCollector collector = new CloudWatchCollector("---\nregion: reg\nmetrics:\n"
+        + "- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_dimensions:\n  - LoadBalancerName\n  - AvailabilityZone\n"
+        + "  aws_statistics:\n  - Sum\n  - Maximum\n  - Average\n  aggregate_without:\n  - AvailabilityZone\n", client);
+    Mockito.when(client.listMetrics((ListMetricsRequest)anyObject()))
+        .thenReturn(new ListMetricsResult().withMetrics(
+            new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("a"),
+                new Dimension().withName("AvailabilityZone").withValue("az1")),
+            new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("a"),
+                new Dimension().withName("AvailabilityZone").withValue("az2")),
+            new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("b"),
+                new Dimension().withName("AvailabilityZone").withValue("az1"))));
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)anyObject())).thenAnswer(new Answer<GetMetricStatisticsResult>() {
+      public GetMetricStatisticsResult answer(InvocationOnMock invocation) {
+        GetMetricStatisticsRequest request = (GetMetricStatisticsRequest) invocation.getArguments()[0];
+        boolean second = request.getDimensions().contains(new Dimension().withName("AvailabilityZone").withValue("az2"));
+        return new GetMetricStatisticsResult().withDatapoints(new Datapoint().withTimestamp(new Date())
+            .withSum(second ? 3.0 : 1.0).withMaximum(second ? 4.0 : 5.0).withAverage(second ? 6.0 : 2.0).withSampleCount(second ? 3.0 : 1.0));
+      }
+    });
+
+    List<Collector.MetricFamilySamples> mfs = collector.collect();
+
+    assertEquals(4.0, sampleValue(mfs, "aws_elb_request_count_sum", "a"), .01);
+    assertEquals(1.0, sampleValue(mfs, "aws_elb_request_count_sum", "b"), .01);
+    assertEquals(5.0, sampleValue(mfs, "aws_elb_request_count_maximum", "a"), .01);
+    // Weighted by sample count, which is fetched for this but not exported.
+    assertEquals(5.0, sampleValue(mfs, "aws_elb_request_count_average", "a"), .01);
+    assertNull(sampleValue(mfs, "aws_elb_request_count_sum", "az1"));
+    assertNull(sampleValue(mfs, "aws_elb_request_count_sample_count", "a"));
+  }
 }
@@ -0,0 +1,48 @@
+package io.prometheus.cloudwatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+
+public class LabelSchemaTest {
+
+  @Test
+  public void testSeriesShareLabelNames() {
+    LabelSchema schema = new LabelSchema("AWS/NetworkELB", Arrays.asList("LoadBalancer", "AvailabilityZone"), "LoadBalancer");
+    ResourceLabels tags = ResourceLabels.of(Collections.singletonMap("Environment", "prod"));
+    List<Dimension> first = Arrays.asList(new Dimension().withName("LoadBalancer").withValue("net/front/1"),
+        new Dimension().withName("AvailabilityZone").withValue("a"));
+    List<Dimension> second = Arrays.asList(new Dimension().withName("LoadBalancer").withValue("net/back/2"),
+        new Dimension().withName("AvailabilityZone").withValue("b"));
+
+    List<String> names = schema.labelNames(first, tags);
+
+    assertEquals(Arrays.asList("job", "instance", "load_balancer", "availability_zone", "environment"), names);
+    assertSame(names, schema.labelNames(second, tags));
+    assertEquals(0, schema.resourceIndex(second));
+    assertEquals(Arrays.asList("aws_networkelb", "", "back", "b", "prod"), schema.labelValues(second, 0, "back", tags));
+  }
+
+  @Test
+  public void testNamesFollowDimensionOrderAndTags() {
+    LabelSchema schema = new LabelSchema("AWS/ELB", Arrays.asList("LoadBalancerName", "AvailabilityZone"), null);
+    List<Dimension> dimensions = Arrays.asList(new Dimension().withName("AvailabilityZone").withValue("a"),
+        new Dimension().withName("LoadBalancerName").withValue("lb"));
+
+    List<String> names = schema.labelNames(dimensions, ResourceLabels.EMPTY);
+    List<String> tagged = schema.labelNames(dimensions, ResourceLabels.of(Collections.singletonMap("Role", "web")));
+
+    assertEquals(Arrays.asList("job", "instance", "availability_zone", "load_balancer_name"), names);
+    assertNotSame(names, tagged);
+    assertEquals("role", tagged.get(4));
+    assertEquals(-1, schema.resourceIndex(dimensions));
+  }
+}
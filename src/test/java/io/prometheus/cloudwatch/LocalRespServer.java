@@ -0,0 +1,156 @@
+package io.prometheus.cloudwatch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Local stand-in for a Redis server, serving the commands {@link RedisClient} sends from memory.
+ */
+class LocalRespServer {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ServerSocket serverSocket;
+    private final Map<String, byte[]> values = new HashMap<String, byte[]>();
+    private final Map<String, Long> expiries = new HashMap<String, Long>();
+    private int commands;
+
+    LocalRespServer() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread("local-resp-server") {
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        final Socket socket = serverSocket.accept();
+                        Thread handler = new Thread("local-resp-connection") {
+                            public void run() {
+                                serve(socket);
+                            }
+                        };
+                        handler.setDaemon(true);
+                        handler.start();
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    synchronized int commands() {
+        return commands;
+    }
+
+    void close() throws IOException {
+        serverSocket.close();
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            while (true) {
+                List<Object> command = (List<Object>) RedisClient.read(in);
+                out.write(execute(command));
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Client went away.
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+    }
+
+    private synchronized byte[] execute(List<Object> command) {
+        commands++;
+        String name = new String((byte[]) command.get(0), UTF_8).toUpperCase();
+        if (name.equals("PING") || name.equals("AUTH")) {
+            return "+OK\r\n".getBytes(UTF_8);
+        }
+        if (name.equals("EVAL")) {
+            // The only script the client sends is its compare-and-delete; run it with KEYS[1] and ARGV[1].
+            if (!new String((byte[]) command.get(1), UTF_8).equals(RedisClient.DELETE_IF_EQUALS_SCRIPT)) {
+                return "-ERR unknown script\r\n".getBytes(UTF_8);
+            }
+            String key = new String((byte[]) command.get(3), UTF_8);
+            expire(key);
+            if (!values.containsKey(key) || !Arrays.equals(values.get(key), (byte[]) command.get(4))) {
+                return ":0\r\n".getBytes(UTF_8);
+            }
+            values.remove(key);
+            expiries.remove(key);
+            return ":1\r\n".getBytes(UTF_8);
+        }
+        String key = new String((byte[]) command.get(1), UTF_8);
+        expire(key);
+        if (name.equals("GET")) {
+            byte[] value = values.get(key);
+            if (value == null) {
+                return "$-1\r\n".getBytes(UTF_8);
+            }
+            byte[] header = ("$" + value.length + "\r\n").getBytes(UTF_8);
+            byte[] reply = new byte[header.length + value.length + 2];
+            System.arraycopy(header, 0, reply, 0, header.length);
+            System.arraycopy(value, 0, reply, header.length, value.length);
+            reply[reply.length - 2] = '\r';
+            reply[reply.length - 1] = '\n';
+            return reply;
+        }
+        if (name.equals("SET")) {
+            boolean ifAbsent = false;
+            long ttlMillis = -1;
+            for (int i = 3; i < command.size(); i++) {
+                String option = new String((byte[]) command.get(i), UTF_8).toUpperCase();
+                if (option.equals("NX")) {
+                    ifAbsent = true;
+                } else if (option.equals("PX")) {
+                    ttlMillis = Long.parseLong(new String((byte[]) command.get(++i), UTF_8));
+                }
+            }
+            if (ifAbsent && values.containsKey(key)) {
+                return "$-1\r\n".getBytes(UTF_8);
+            }
+            values.put(key, (byte[]) command.get(2));
+            if (ttlMillis > 0) {
+                expiries.put(key, System.currentTimeMillis() + ttlMillis);
+            } else {
+                expiries.remove(key);
+            }
+            return "+OK\r\n".getBytes(UTF_8);
+        }
+        if (name.equals("DEL")) {
+            expiries.remove(key);
+            return (":" + (values.remove(key) != null ? 1 : 0) + "\r\n").getBytes(UTF_8);
+        }
+        return ("-ERR unknown command '" + name + "'\r\n").getBytes(UTF_8);
+    }
+
+    private void expire(String key) {
+        Long expiry = expiries.get(key);
+        if (expiry != null && expiry <= System.currentTimeMillis()) {
+            values.remove(key);
+            expiries.remove(key);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package io.prometheus.cloudwatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class NamespaceBulkheadTest {
+
+  @Test
+  public void testNamespacesWithoutShareSplitTheRest() {
+    Map<String, Object> ec2 = new HashMap<String, Object>();
+    ec2.put("request_share", 0.5);
+    ec2.put("max_requests_in_flight", 20);
+    Map<String, Map<String, Object>> config = new HashMap<String, Map<String, Object>>();
+    config.put("AWS/EC2", ec2);
+
+    Map<String, NamespaceBulkhead.Settings> settings = NamespaceBulkhead.fromConfig(
+        config, Arrays.asList("aws/ec2", "AWS/RDS", "AWS/ELB", "AWS/rds"), 10, 40);
+
+    assertEquals(3, settings.size());
+    assertEquals(20, settings.get("aws/ec2").maxRequestsInFlight);
+    assertEquals(20, settings.get("aws/ec2").requestsPerSecond, 1e-9);
+    assertEquals(10, settings.get("aws/rds").maxRequestsInFlight);
+    assertEquals(10, settings.get("aws/rds").requestsPerSecond, 1e-9);
+    assertEquals(10, settings.get("aws/elb").requestsPerSecond, 1e-9);
+  }
+
+  @Test
+  public void testRequestsPastTheDeadlineAreNotMade() throws Exception {
+    NamespaceBulkhead bulkhead = new NamespaceBulkhead("AWS/Test", new NamespaceBulkhead.Settings(1, 2));
+    try {
+      // The bucket starts full with one second of requests.
+      assertTrue(bulkhead.acquire(0));
+      assertTrue(bulkhead.acquire(0));
+      assertFalse(bulkhead.acquire(100));
+      long start = System.nanoTime();
+      assertTrue(bulkhead.acquire(1000));
+      assertTrue(System.nanoTime() - start >= 400000000L);
+    } finally {
+      bulkhead.release();
+    }
+  }
+}
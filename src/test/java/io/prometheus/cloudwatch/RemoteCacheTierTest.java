@@ -0,0 +1,181 @@
+package io.prometheus.cloudwatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.cloudwatch.model.Datapoint;
+import com.amazonaws.services.cloudwatch.model.Dimension;
+
+public class RemoteCacheTierTest {
+
+  LocalRespServer server;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new LocalRespServer();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    CacheProvider.configure(new CacheProvider.Settings());
+    server.close();
+  }
+
+  private RemoteCacheTier.Settings settings(int port, String... caches) {
+    Map<String, Object> config = new HashMap<String, Object>();
+    config.put("address", "127.0.0.1:" + port);
+    config.put("lock_seconds", 2);
+    config.put("timeout_ms", 1000);
+    config.put("caches", Arrays.asList((Object[]) caches));
+    return RemoteCacheTier.Settings.fromConfig(config, Collections.singleton(caches[0]));
+  }
+
+  @Test
+  public void testEncodesSharedValueTypes() throws Exception {
+    SeriesValue series = SeriesValue.of(new Datapoint().withTimestamp(new Date(1500000000000L)).withUnit("Count")
+        .withAverage(1.5).withMaximum(3.0).withExtendedStatistics(Collections.singletonMap("p99", 2.5)));
+    RemoteCacheTier.Hit hit = RemoteCacheTier.decode(RemoteCacheTier.encode(new CacheStore.Entry(series, 7), 9));
+    SeriesValue decoded = (SeriesValue) hit.entry.value;
+    assertEquals(7, hit.entry.storedAtMillis);
+    assertEquals(9, hit.expiresAtMillis);
+    assertEquals(1.5, decoded.get(SeriesValue.AVERAGE), 0);
+    assertEquals(3.0, decoded.get(SeriesValue.MAXIMUM), 0);
+    assertEquals(2.5, decoded.get("p99"), 0);
+    assertEquals("Count", decoded.getUnit());
+    assertEquals(1500000000L, decoded.getTimestampSeconds());
+
+    List<List<Dimension>> dimensions = Arrays.asList(
+        Arrays.asList(new Dimension().withName("LoadBalancerName").withValue("a")), Collections.<Dimension>emptyList());
+    assertEquals(dimensions, RemoteCacheTier.decode(RemoteCacheTier.encode(new CacheStore.Entry(dimensions, 0), 0)).entry.value);
+
+    Map<String, String> tags = new HashMap<String, String>();
+    tags.put("Name", "web");
+    tags.put("Owner", null);
+    ResourceLabels labels = (ResourceLabels) RemoteCacheTier.decode(
+        RemoteCacheTier.encode(new CacheStore.Entry(ResourceLabels.of(tags), 0), 0)).entry.value;
+    assertEquals(ResourceLabels.of(tags).getNames(), labels.getNames());
+    assertEquals(ResourceLabels.of(tags).getValues(), labels.getValues());
+
+    assertNull(RemoteCacheTier.encode(new CacheStore.Entry(new Object(), 0), 0));
+  }
+
+  @Test
+  public void testSecondReplicaWaitsForTheLockHolder() throws Exception {
+    final RemoteCacheTier first = new RemoteCacheTier(settings(server.port(), "metrics"));
+    final RemoteCacheTier second = new RemoteCacheTier(settings(server.port(), "metrics"));
+    String token = first.tryLock("metrics", "k");
+    assertNotNull(token);
+    assertNull(second.tryLock("metrics", "k"));
+
+    final AtomicReference<RemoteCacheTier.Hit> awaited = new AtomicReference<RemoteCacheTier.Hit>();
+    Thread waiter = new Thread() {
+      public void run() {
+        try {
+          awaited.set(second.awaitLoad("metrics", "k", Long.MAX_VALUE));
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    waiter.start();
+    Thread.sleep(100);
+    first.put("metrics", "k", new CacheStore.Entry(Arrays.asList(Collections.<Dimension>emptyList()), 1), 60);
+    first.unlock("metrics", "k", token);
+    waiter.join();
+    assertEquals(1, awaited.get().entry.storedAtMillis);
+    assertNotNull(second.tryLock("metrics", "k"));
+  }
+
+  @Test
+  public void testUnlockLeavesALockTakenOverByAnotherReplica() throws Exception {
+    RemoteCacheTier first = new RemoteCacheTier(settings(server.port(), "metrics"));
+    RemoteCacheTier second = new RemoteCacheTier(settings(server.port(), "metrics"));
+    String token = first.tryLock("metrics", "k");
+    // As if the lock had expired and been taken again with a new token.
+    first.unlock("metrics", "k", token + "-stale");
+    assertNull(second.tryLock("metrics", "k"));
+    first.unlock("metrics", "k", token);
+    assertNotNull(second.tryLock("metrics", "k"));
+  }
+
+  @Test
+  public void testWaitForLockHolderStopsAtTheDeadline() throws Exception {
+    CacheProvider.define("test_remote_deadline", 60, 0, 1 << 20);
+    CacheProvider.Settings settings = new CacheProvider.Settings();
+    settings.remote = settings(server.port(), "test_remote_deadline");
+    CacheProvider.configure(settings);
+    RemoteCacheTier other = new RemoteCacheTier(settings(server.port(), "test_remote_deadline"));
+    assertNotNull(other.tryLock("test_remote_deadline", "k"));
+
+    final AtomicInteger loads = new AtomicInteger();
+    long start = System.currentTimeMillis();
+    Object value = CacheProvider.load("test_remote_deadline", "k", new CacheProvider.Loader() {
+      public Object load(String key) {
+        loads.incrementAndGet();
+        return "loaded";
+      }
+    }, 100);
+    assertNull(value);
+    assertEquals(0, loads.get());
+    // Well short of lock_seconds.
+    assertTrue(System.currentTimeMillis() - start < 1000);
+  }
+
+  @Test
+  public void testReplicasShareLoadsThroughCacheProvider() throws Exception {
+    CacheProvider.define("test_remote", 60, 0, 1 << 20);
+    CacheProvider.Settings settings = new CacheProvider.Settings();
+    settings.remote = settings(server.port(), "test_remote");
+    CacheProvider.configure(settings);
+
+    final AtomicInteger loads = new AtomicInteger();
+    CacheProvider.Loader loader = new CacheProvider.Loader() {
+      public Object load(String key) {
+        loads.incrementAndGet();
+        return Arrays.asList(Arrays.asList(new Dimension().withName("QueueName").withValue(key)));
+      }
+    };
+    CacheProvider.get("test_remote", "q", loader);
+    // A second replica starts with empty local caches.
+    CacheProvider.clearAll();
+    Object shared = CacheProvider.get("test_remote", "q", loader);
+    assertEquals(1, loads.get());
+    assertEquals("q", ((List<List<Dimension>>) shared).get(0).get(0).getValue());
+  }
+
+  @Test
+  public void testUnreachableStoreFallsBackToLoading() throws Exception {
+    CacheProvider.define("test_remote_down", 60, 0, 1 << 20);
+    int port = server.port();
+    server.close();
+    CacheProvider.Settings settings = new CacheProvider.Settings();
+    settings.remote = settings(port, "test_remote_down");
+    CacheProvider.configure(settings);
+
+    assertEquals("loaded", CacheProvider.get("test_remote_down", "k", new CacheProvider.Loader() {
+      public Object load(String key) {
+        return "loaded";
+      }
+    }));
+    for (CacheProvider.Stats stats : CacheProvider.stats()) {
+      if (stats.name.equals("test_remote_down")) {
+        assertEquals(1, stats.remoteErrors);
+      }
+    }
+  }
+}
@@ -0,0 +1,211 @@
+package io.prometheus.cloudwatch;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.iq80.snappy.Snappy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.amazonaws.services.cloudwatch.AmazonCloudWatchClient;
+import com.amazonaws.services.cloudwatch.model.Datapoint;
+import com.amazonaws.services.cloudwatch.model.GetMetricStatisticsRequest;
+import com.amazonaws.services.cloudwatch.model.GetMetricStatisticsResult;
+
+public class RemoteWriterTest {
+  AmazonCloudWatchClient client;
+  Server server;
+  Receiver receiver;
+  CloudWatchCollector collector;
+
+  /* Stands in for Prometheus: records the decompressed bodies and answers with the queued statuses, then 204. */
+  static class Receiver extends HttpServlet {
+    final List<byte[]> bodies = Collections.synchronizedList(new ArrayList<byte[]>());
+    final List<Integer> statuses = Collections.synchronizedList(new ArrayList<Integer>());
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+      assertEquals("snappy", req.getHeader("Content-Encoding"));
+      assertEquals("application/x-protobuf", req.getContentType());
+      byte[] compressed = readAll(req.getInputStream());
+      bodies.add(Snappy.uncompress(compressed, 0, compressed.length));
+      resp.setStatus(statuses.isEmpty() ? 204 : statuses.remove(0));
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    client = Mockito.mock(AmazonCloudWatchClient.class);
+    CacheProvider.clearAll();
+    receiver = new Receiver();
+    server = new Server(0);
+    ServletContextHandler context = new ServletContextHandler();
+    context.addServlet(new ServletHolder(receiver), "/api/v1/write");
+    server.setHandler(context);
+    server.start();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (collector != null) {
+      collector.activeConfig.remoteWriter.shutdown();
+    }
+    server.stop();
+  }
+
+  private void startCollector() {
+    String url = "http://localhost:" + server.getConnectors()[0].getLocalPort() + "/api/v1/write";
+    collector = new CloudWatchCollector("---\nregion: reg\nremote_write:\n  url: " + url
+        + "\n  interval_seconds: 0.1\n  retry_backoff_seconds: 0.05\nmetrics:\n"
+        + "- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_statistics:\n  - Sum\n", client);
+  }
+
+  @Test
+  public void testPushesEachDatapointOnceWithItsTimestamp() throws Exception {
+    Date timestamp = new Date(1500000000000L);
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)anyObject()))
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(new Datapoint().withTimestamp(timestamp).withSum(2.0)));
+
+    startCollector();
+    waitForRequests(1);
+    // Later pushes find the same datapoint and send nothing.
+    Thread.sleep(500);
+
+    assertEquals(1, receiver.bodies.size());
+    List<Series> series = decode(receiver.bodies.get(0));
+    assertEquals(1, series.size());
+    assertEquals("aws_elb_request_count_sum", series.get(0).labels.get("__name__"));
+    assertEquals("aws_elb", series.get(0).labels.get("job"));
+    assertEquals(2.0, series.get(0).value, .01);
+    assertEquals(1500000000000L, series.get(0).timestampMillis);
+  }
+
+  @Test
+  public void testLabelsAreSortedByNameWithoutEmptyValues() {
+    TimestampedSample sample = new TimestampedSample("aws_elb_request_count_sum",
+        Arrays.asList("job", "instance", "load_balancer_name", "Environment"), Arrays.asList("aws_elb", "", "myLB", "prod"), 1.0, 0);
+
+    List<Series> series = decode(RemoteWriter.encode(Collections.singletonList(sample)));
+
+    assertEquals(Arrays.asList("Environment", "__name__", "job", "load_balancer_name"),
+        new ArrayList<String>(series.get(0).labels.keySet()));
+  }
+
+  @Test
+  public void testRetriesServerErrors() throws Exception {
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)anyObject()))
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(new Datapoint().withTimestamp(new Date()).withSum(2.0)));
+    receiver.statuses.add(503);
+    receiver.statuses.add(429);
+
+    startCollector();
+    waitForRequests(3);
+    Thread.sleep(300);
+
+    assertEquals(3, receiver.bodies.size());
+    assertArrayEquals(receiver.bodies.get(0), receiver.bodies.get(2));
+  }
+
+  private void waitForRequests(int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (receiver.bodies.size() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(20);
+    }
+  }
+
+  static class Series {
+    // In the order they were written.
+    final Map<String, String> labels = new LinkedHashMap<String, String>();
+    double value;
+    long timestampMillis;
+  }
+
+  /* Reads the fields of a WriteRequest the exporter writes. */
+  static List<Series> decode(byte[] body) {
+    List<Series> result = new ArrayList<Series>();
+    int[] pos = {0};
+    while (pos[0] < body.length) {
+      assertEquals(1 << 3 | 2, body[pos[0]++]);
+      int end = (int) readVarint(body, pos) + pos[0];
+      Series series = new Series();
+      while (pos[0] < end) {
+        int tag = body[pos[0]++];
+        int messageEnd = (int) readVarint(body, pos) + pos[0];
+        if (tag == (1 << 3 | 2)) {
+          String name = null;
+          String value = null;
+          while (pos[0] < messageEnd) {
+            int field = body[pos[0]++] >> 3;
+            int length = (int) readVarint(body, pos);
+            String s = new String(body, pos[0], length);
+            pos[0] += length;
+            if (field == 1) {
+              name = s;
+            } else {
+              value = s;
+            }
+          }
+          series.labels.put(name, value);
+        } else {
+          assertEquals(2 << 3 | 2, tag);
+          while (pos[0] < messageEnd) {
+            int fieldTag = body[pos[0]++];
+            if (fieldTag == (1 << 3 | 1)) {
+              long bits = 0;
+              for (int i = 0; i < 8; i++) {
+                bits |= (body[pos[0]++] & 0xFFL) << (8 * i);
+              }
+              series.value = Double.longBitsToDouble(bits);
+            } else {
+              series.timestampMillis = readVarint(body, pos);
+            }
+          }
+        }
+      }
+      result.add(series);
+    }
+    return result;
+  }
+
+  private static long readVarint(byte[] body, int[] pos) {
+    long value = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = body[pos[0]++];
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int n;
+    while ((n = in.read(buffer)) >= 0) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+}
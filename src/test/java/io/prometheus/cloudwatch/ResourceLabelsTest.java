@@ -0,0 +1,46 @@
+package io.prometheus.cloudwatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ResourceLabelsTest {
+
+  @Test
+  public void testNamesAreSanitizedAndSorted() {
+    Map<String, String> tags = new HashMap<String, String>();
+    tags.put("workload", "batch");
+    tags.put("Resource_type", "ec2");
+    tags.put("environment", "prod");
+
+    ResourceLabels labels = ResourceLabels.of(tags);
+
+    assertEquals(Arrays.asList("environment", "resource_type", "workload"), labels.getNames());
+    assertEquals(Arrays.asList("prod", "ec2", "batch"), labels.getValues());
+    assertEquals("prod", labels.get("environment"));
+  }
+
+  @Test
+  public void testResourcesShareNamesAndValues() {
+    Map<String, String> first = new HashMap<String, String>();
+    first.put("environment", new String("UNTAGGED"));
+    Map<String, String> second = new HashMap<String, String>();
+    second.put("environment", new String("UNTAGGED"));
+
+    ResourceLabels a = ResourceLabels.of(first);
+    ResourceLabels b = ResourceLabels.of(second);
+
+    assertSame(a.getNames(), b.getNames());
+    assertSame(a.getValues().get(0), b.getValues().get(0));
+  }
+
+  @Test
+  public void testEmptyTags() {
+    assertSame(ResourceLabels.EMPTY, ResourceLabels.of(new HashMap<String, String>()));
+  }
+}
@@ -0,0 +1,61 @@
+package io.prometheus.cloudwatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.amazonaws.services.cloudwatch.AmazonCloudWatchClient;
+import com.amazonaws.services.cloudwatch.model.Dimension;
+
+import io.prometheus.cloudwatch.CloudWatchCollector.ActiveConfig;
+import io.prometheus.cloudwatch.CloudWatchCollector.MetricRule;
+
+public class ScrapePlannerTest {
+
+  @Test
+  public void testPlansFromRecording() throws Exception {
+    CloudWatchCollector collector = new CloudWatchCollector("---\nregion: reg\nmetrics:\n"
+        + "- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_dimensions:\n  - LoadBalancerName\n  max_series: 2\n"
+        + "- aws_namespace: AWS/EC2\n  aws_metric_name: CPUUtilization\n", Mockito.mock(AmazonCloudWatchClient.class));
+    ActiveConfig config = collector.activeConfig;
+    MetricRule elb = config.rules.get(0);
+    MetricRule ec2 = config.rules.get(1);
+
+    Map<MetricRule, List<List<Dimension>>> dimensions = new LinkedHashMap<MetricRule, List<List<Dimension>>>();
+    dimensions.put(elb, Arrays.asList(
+        Arrays.asList(new Dimension().withName("LoadBalancerName").withValue("a")),
+        Arrays.asList(new Dimension().withName("LoadBalancerName").withValue("b")),
+        Arrays.asList(new Dimension().withName("LoadBalancerName").withValue("c"))));
+    dimensions.put(ec2, Arrays.asList(Arrays.<Dimension>asList()));
+    StringWriter recording = new StringWriter();
+    ScrapePlanner.record(dimensions, recording);
+
+    Map<MetricRule, Integer> discovered = ScrapePlanner.replay(config, new StringReader(recording.toString()));
+    assertEquals(3, (int) discovered.get(elb));
+    assertEquals(1, (int) discovered.get(ec2));
+
+    ScrapePlanner.Options options = ScrapePlanner.Options.parse(new String[]{"config.yml", "--interval", "90"});
+    List<ScrapePlanner.RulePlan> plans = ScrapePlanner.plan(config, discovered, options);
+    ScrapePlanner.RulePlan elbPlan = plans.get(0);
+    assertEquals(2, elbPlan.series);
+    assertEquals(1, elbPlan.listMetricsPages);
+    // A 2 minute TTL with a 90 second interval is refetched every 180 seconds.
+    assertEquals(2 * 3600 / 180.0, elbPlan.getMetricStatisticsPerHour, .001);
+    assertEquals(3600 / (4 * 3600.0), elbPlan.listMetricsPerHour, .001);
+    ScrapePlanner.RulePlan ec2Plan = plans.get(1);
+    assertEquals(1, ec2Plan.series);
+    assertEquals(0, ec2Plan.listMetricsPages);
+
+    String report = ScrapePlanner.report(plans, config, options);
+    assertTrue(report, report.contains("4 with a cold cache"));
+  }
+}
@@ -0,0 +1,74 @@
+package io.prometheus.cloudwatch;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+import com.amazonaws.services.cloudwatch.model.Datapoint;
+
+/**
+ * Compares the retained heap of cached Datapoints with that of SeriesValues.
+ *
+ * Run with a fixed heap so GC noise stays low, e.g.
+ * java -Xms2g -Xmx2g -cp target/classes:target/test-classes:... io.prometheus.cloudwatch.SeriesValueBenchmark 1000000
+ */
+public class SeriesValueBenchmark {
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+        long datapointBytes = measure(new DatapointFactory(), count);
+        long seriesValueBytes = measure(new SeriesValueFactory(), count);
+
+        System.out.println("entries:            " + count);
+        System.out.println("Datapoint bytes:    " + datapointBytes + " (" + datapointBytes / count + " per entry)");
+        System.out.println("SeriesValue bytes:  " + seriesValueBytes + " (" + seriesValueBytes / count + " per entry)");
+        System.out.println("saving:             " + (100 - 100 * seriesValueBytes / datapointBytes) + "%");
+    }
+
+    private static long measure(Factory factory, int count) {
+        long before = usedHeap();
+        List<Object> retained = new ArrayList<Object>(count);
+        for (int i = 0; i < count; i++) {
+            retained.add(factory.create(i));
+        }
+        long after = usedHeap();
+        if (retained.size() != count) {
+            throw new IllegalStateException();
+        }
+        return after - before - 4L * count;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // One statistic and one extended statistic, as most rules in config.yml request.
+    static Datapoint datapoint(int i) {
+        HashMap<String, Double> extended = new HashMap<String, Double>();
+        extended.put("p99", i * 2.0);
+        return new Datapoint().withTimestamp(new Date(1500000000000L + i * 60000L))
+            .withUnit(new String("Count")).withAverage(i * 1.0).withExtendedStatistics(extended);
+    }
+
+    interface Factory {
+        Object create(int i);
+    }
+
+    static class DatapointFactory implements Factory {
+        public Object create(int i) {
+            return datapoint(i);
+        }
+    }
+
+    static class SeriesValueFactory implements Factory {
+        public Object create(int i) {
+            return SeriesValue.of(datapoint(i));
+        }
+    }
+}
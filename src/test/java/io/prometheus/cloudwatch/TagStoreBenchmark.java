@@ -0,0 +1,75 @@
+package io.prometheus.cloudwatch;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compares the heap held by cached resource tags and the time of full collections with the in-process
+ * store and the off-heap store.
+ *
+ * Run each store in its own JVM with a fixed heap, e.g.
+ * java -Xms1g -Xmx1g -XX:MaxDirectMemorySize=1g -cp target/classes:target/test-classes:... io.prometheus.cloudwatch.TagStoreBenchmark in_process 200000
+ */
+public class TagStoreBenchmark {
+
+    public static void main(String[] args) {
+        String backend = args.length > 0 ? args[0] : "in_process";
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        long maxBytes = 512L << 20;
+        CacheStore store = backend.equals("off_heap") ? new OffHeapTagStore(maxBytes) : new InProcessCacheStore(maxBytes);
+
+        long before = usedHeap();
+        for (int i = 0; i < count; i++) {
+            ResourceLabels labels = labels(i);
+            store.put("arn:aws:ec2:eu-west-1:123456789012:instance/i-" + (100000000 + i),
+                new CacheStore.Entry(labels, 0), CacheProvider.estimateBytes(labels), 3600);
+        }
+        long after = usedHeap();
+
+        int collections = 10;
+        long gcMillis = gcMillis();
+        long start = System.nanoTime();
+        for (int i = 0; i < collections; i++) {
+            System.gc();
+        }
+        long wallMillis = (System.nanoTime() - start) / 1000000;
+        gcMillis = gcMillis() - gcMillis;
+
+        System.out.println("store:              " + backend);
+        System.out.println("entries:            " + store.size() + " of " + count);
+        System.out.println("heap bytes:         " + (after - before) + " (" + (after - before) / count + " per entry)");
+        System.out.println("full gc:            " + wallMillis / collections + "ms wall, " + gcMillis / collections + "ms collector time on average");
+    }
+
+    // Eight tags, as resources of a typically tagged account carry.
+    static ResourceLabels labels(int i) {
+        Map<String, String> tags = new HashMap<String, String>();
+        tags.put("Name", "web-" + i);
+        tags.put("Environment", i % 3 == 0 ? "staging" : "production");
+        tags.put("Team", "team-" + i % 20);
+        tags.put("Service", "service-" + i % 150);
+        tags.put("CostCenter", "cc-" + i % 40);
+        tags.put("Version", "1." + i % 30 + "." + i % 7);
+        tags.put("aws:autoscaling:groupName", "asg-" + i / 10);
+        tags.put("Build", Integer.toHexString(i * 31));
+        return ResourceLabels.of(tags);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(gc.getCollectionTime(), 0);
+        }
+        return millis;
+    }
+}
@@ -0,0 +1,95 @@
+package io.prometheus.cloudwatch.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.cloudwatch.TimestampedSample;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ExpositionFormatTest {
+
+  @Test
+  public void testNegotiate() {
+    assertEquals(ExpositionFormat.TEXT_004, ExpositionFormat.negotiate(null));
+    assertEquals(ExpositionFormat.TEXT_004, ExpositionFormat.negotiate("text/plain;version=0.0.4;q=1,*/*;q=0.1"));
+    assertEquals(ExpositionFormat.OPENMETRICS, ExpositionFormat.negotiate(
+        "application/openmetrics-text;version=1.0.0;q=0.75,text/plain;version=0.0.4;q=0.5,*/*;q=0.1"));
+    assertEquals(ExpositionFormat.PROTOBUF, ExpositionFormat.negotiate(
+        "application/openmetrics-text;version=1.0.0;q=0.75,"
+        + "application/vnd.google.protobuf;proto=io.prometheus.client.MetricFamily;encoding=delimited;q=0.7"));
+  }
+
+  @Test
+  public void testOpenMetricsCarriesTimestamps() throws Exception {
+    StringWriter writer = new StringWriter();
+    ExpositionFormat.writeOpenMetrics(writer, families());
+
+    assertEquals("# TYPE aws_elb_request_count_sum gauge\n"
+        + "# HELP aws_elb_request_count_sum CloudWatch metric \\\"AWS/ELB\\\" RequestCount\n"
+        + "aws_elb_request_count_sum{job=\"aws_elb\",load_balancer_name=\"myLB\"} 42.0 1500000000.500\n"
+        + "# TYPE cloudwatch_requests counter\n"
+        + "# HELP cloudwatch_requests API requests made to CloudWatch\n"
+        + "cloudwatch_requests_total 3.0\n"
+        + "# EOF\n", writer.toString());
+  }
+
+  @Test
+  public void testOpenMetricsCounterWithoutTotalIsUnknown() throws Exception {
+    StringWriter writer = new StringWriter();
+    ExpositionFormat.writeOpenMetrics(writer, Collections.singletonList(
+        new MetricFamilySamples("cloudwatch_exporter_cache_hitcount", Collector.Type.COUNTER, "Cache Hit Count.",
+            Collections.singletonList(new MetricFamilySamples.Sample("cloudwatch_exporter_cache_hitcount",
+                Arrays.asList("cache_name"), Arrays.asList("metrics"), 5.0)))));
+
+    assertEquals("# TYPE cloudwatch_exporter_cache_hitcount unknown\n"
+        + "# HELP cloudwatch_exporter_cache_hitcount Cache Hit Count.\n"
+        + "cloudwatch_exporter_cache_hitcount{cache_name=\"metrics\"} 5.0\n"
+        + "# EOF\n", writer.toString());
+  }
+
+  @Test
+  public void testProtobufIsLengthDelimited() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ExpositionFormat.writeProtobuf(out, families());
+    byte[] bytes = out.toByteArray();
+
+    int families = 0;
+    int pos = 0;
+    while (pos < bytes.length) {
+      int length = 0;
+      for (int shift = 0; ; shift += 7) {
+        byte b = bytes[pos++];
+        length |= (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          break;
+        }
+      }
+      // MetricFamily starts with its name.
+      assertEquals(1 << 3 | 2, bytes[pos]);
+      pos += length;
+      families++;
+    }
+    assertEquals(bytes.length, pos);
+    assertEquals(2, families);
+    assertTrue(new String(bytes, "UTF-8").contains("aws_elb_request_count_sum"));
+  }
+
+  private static List<MetricFamilySamples> families() {
+    return Arrays.asList(
+        new MetricFamilySamples("aws_elb_request_count_sum", Collector.Type.GAUGE, "CloudWatch metric \"AWS/ELB\" RequestCount",
+            Collections.<MetricFamilySamples.Sample>singletonList(new TimestampedSample("aws_elb_request_count_sum",
+                Arrays.asList("job", "load_balancer_name"), Arrays.asList("aws_elb", "myLB"), 42.0, 1500000000500L))),
+        new MetricFamilySamples("cloudwatch_requests_total", Collector.Type.COUNTER, "API requests made to CloudWatch",
+            Collections.singletonList(new MetricFamilySamples.Sample("cloudwatch_requests_total",
+                Collections.<String>emptyList(), Collections.<String>emptyList(), 3.0))));
+  }
+}
@@ -0,0 +1,60 @@
+package io.prometheus.cloudwatch.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import io.prometheus.client.CollectorRegistry;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class ScrapeAdmissionTest {
+
+  private static double rejections(String reason) {
+    Double value = CollectorRegistry.defaultRegistry.getSampleValue("cloudwatch_exporter_scrape_rejections_total",
+        new String[]{"reason"}, new String[]{reason});
+    return value == null ? 0 : value;
+  }
+
+  @Test
+  public void testFullQueueRejectsAndWaitersExpire() throws Exception {
+    ScrapeAdmission admission = new ScrapeAdmission(1, 1, 0.05);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(2);
+    final AtomicBoolean queuedExpired = new AtomicBoolean();
+    double full = rejections(ScrapeAdmission.QUEUE_FULL);
+    double timedOut = rejections(ScrapeAdmission.QUEUE_TIMEOUT);
+
+    assertTrue(admission.submit(new ScrapeAdmission.Scrape() {
+      public void run(double waitedSeconds, boolean expired) {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        done.countDown();
+      }
+    }, 0));
+    assertTrue(admission.submit(new ScrapeAdmission.Scrape() {
+      public void run(double waitedSeconds, boolean expired) {
+        queuedExpired.set(expired);
+        done.countDown();
+      }
+    }, 0));
+    assertFalse(admission.submit(new ScrapeAdmission.Scrape() {
+      public void run(double waitedSeconds, boolean expired) {
+      }
+    }, 0));
+    Thread.sleep(100);
+    release.countDown();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+
+    assertTrue(queuedExpired.get());
+    assertEquals(1, rejections(ScrapeAdmission.QUEUE_FULL) - full, 0);
+    assertEquals(1, rejections(ScrapeAdmission.QUEUE_TIMEOUT) - timedOut, 0);
+  }
+}